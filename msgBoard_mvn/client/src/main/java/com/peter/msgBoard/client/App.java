@@ -45,19 +45,24 @@ public class App {
      * 5. 进入留言板
      * 6. 添加用户
      * 7. 删除用户
+     * 8. 查看服务器统计
      * 0. 退出应用
      */
-    private static final String[] mainOptionList = {"用户登录", "查看所有用户", "查看在线用户", "连接到服务器", "进入留言板", "添加用户", "删除用户", "退出应用"};
+    private static final String[] mainOptionList = {"用户登录", "查看所有用户", "查看在线用户", "连接到服务器", "进入留言板", "添加用户", "删除用户", "查看服务器统计", "退出应用"};
 
     /**
      * 二级菜单
      * 1. 查看历史留言
      * 2. 编写新的留言
      * 3. 退出留言板
-     * 4. 退出登录
+     * 4. 分页查看留言
+     * 5. 批量导入留言
+     * 6. 实时查看新留言
+     * 7. 按时间查看留言
+     * 8. 搜索留言
      * 0. 退出应用
      */
-    private static final String[] secondaryOptionList = {"查看历史留言", "编写新的留言", "退出留言板", "退出应用"};
+    private static final String[] secondaryOptionList = {"查看历史留言", "编写新的留言", "退出留言板", "分页查看留言", "批量导入留言", "实时查看新留言", "按时间查看留言", "搜索留言", "退出应用"};
 
     // 设置输入解码格式为系统默认编码
     protected static final Scanner scanner = new Scanner(System.in, Charset.forName(SYSTEM_CHARSET));
@@ -103,12 +108,18 @@ public class App {
         this.mainOptionMap.put("5", this::enterMsgBoard);
         this.mainOptionMap.put("6", this.operations::addUser);
         this.mainOptionMap.put("7", this.operations::delUser);
+        this.mainOptionMap.put("8", this.operations::showServerStats);
         this.mainOptionMap.put("/help", this::showHelp);
 
         // 二级菜单
         this.secondaryOptionMap.put("0", this::quitApp);
         this.secondaryOptionMap.put("1", this.operations::showAllMessages);
         this.secondaryOptionMap.put("2", this.operations::writeNewMessage);
+        this.secondaryOptionMap.put("4", this.operations::showMessagesByPage);
+        this.secondaryOptionMap.put("5", this.operations::importMessages);
+        this.secondaryOptionMap.put("6", this.operations::watchNewMessages);
+        this.secondaryOptionMap.put("7", this.operations::showMessagesByTime);
+        this.secondaryOptionMap.put("8", this.operations::searchMessages);
         this.secondaryOptionMap.put("/help", this::showHelp);
 
         // 输出欢迎语
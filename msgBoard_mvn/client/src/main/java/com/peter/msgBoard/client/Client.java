@@ -1,22 +1,50 @@
 package com.peter.msgBoard.client;
 
+import com.peter.msgBoard.entity.BinaryCodec;
+import com.peter.msgBoard.entity.Codec;
 import com.peter.msgBoard.entity.Request;
 import com.peter.msgBoard.entity.Response;
+import com.peter.msgBoard.utils.FrameBuffer;
+import com.peter.msgBoard.utils.FrameCompressor;
+import com.peter.msgBoard.utils.Frames;
 import com.peter.msgBoard.utils.Utils;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class Client {
     // ********************************** Members ************************************* //
 
+    // 帧压缩阈值，超过该字节数的请求帧会被压缩后发送
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    // 单个响应帧（解压后）的最大字节数，超过时视为连接出错
+    private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    // 连接空闲超过该毫秒数时发送ping请求，避免连接被服务器当作失效连接回收，也能及时发现服务器已经不可达
+    private static final long HEARTBEAT_INTERVAL = 30 * 1000;
+
     // 当前登录的用户的用户名，如果没有用户登录，则该值为null
     private String curUserName;
 
     // 当前用户是否有管理员权限
     private boolean hasAuth;
 
+    // 服务器在登录成功时签发的会话令牌，重新连接到服务器后用它恢复登录状态，没有时为null
+    private String sessionToken;
+
     /**
      * 客户端套接字实例。
      * 在Client创建时被实例化。
@@ -27,7 +55,31 @@ public class Client {
     private Socket socket;
 
     // 上次访问服务器是否成功
-    private boolean lastRequestSuc;
+    private volatile boolean lastRequestSuc;
+
+    // 与服务器通信使用的编解码器，连接时根据服务器的握手响应协商
+    private Codec codec;
+
+    // 帧压缩器，与服务器协商启用压缩之前为null
+    private volatile FrameCompressor compressor;
+
+    // 下一个异步请求的编号
+    private final AtomicInteger nextRequestId;
+
+    // 已发送但尚未收到响应的异步请求，键为请求编号
+    private final Map<Integer, CompletableFuture<Response>> pendingRequests;
+
+    // 正在运行响应读取线程的连接，没有时为null
+    private volatile Socket pipelinedSocket;
+
+    // 处理服务器推送的回调，没有订阅时为null
+    private volatile Consumer<Response> pushListener;
+
+    // 同步请求直接从套接字读取响应，持有该锁期间心跳线程不会在同一连接上发送请求
+    private final ReentrantLock requestLock;
+
+    // 最近一次向服务器发送请求的时间
+    private volatile long lastRequestAt;
 
 
     // ********************************** Functions ************************************* //
@@ -35,8 +87,18 @@ public class Client {
     protected Client() {
         this.curUserName = null;
         this.hasAuth = false;
+        this.sessionToken = null;
         this.socket = null;
         this.lastRequestSuc = true;
+        this.codec = Codec.JAVA;
+        this.compressor = null;
+        this.nextRequestId = new AtomicInteger(0);
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.pipelinedSocket = null;
+        this.requestLock = new ReentrantLock();
+        this.lastRequestAt = System.currentTimeMillis();
+        this.startHeartbeat();
+        this.pushListener = null;
     }
 
     protected boolean isNotLogin() {
@@ -107,6 +169,38 @@ public class Client {
         return this.curUserName;
     }
 
+    /**
+     * 保存登录响应中的会话令牌，旧版本的服务器不签发令牌
+     * @param response 登录或恢复会话的响应，为null时清除令牌
+     */
+    protected void setSessionToken(Response response) {
+        byte[] data = response == null ? null : response.getData();
+        this.sessionToken = data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在新的连接上用会话令牌恢复上次的登录状态，成功后保存服务器更换的新令牌。
+     * 失败时清除当前登录的用户和令牌。
+     * @return 是否恢复成功
+     */
+    protected boolean resumeSession() {
+        if (this.sessionToken == null || this.curUserName == null) {
+            this.curUserName = null;
+            this.hasAuth = false;
+            return false;
+        }
+
+        Response response = this.sendRequest(this.socket, "resume", this.sessionToken, null);
+        if (response != null && response.getStatusCode() == 200 && this.curUserName.equals(response.getMessage())) {
+            this.setSessionToken(response);
+            return true;
+        }
+        this.curUserName = null;
+        this.hasAuth = false;
+        this.sessionToken = null;
+        return false;
+    }
+
     protected boolean isLastRequestSuc() {
         return this.lastRequestSuc;
     }
@@ -119,6 +213,47 @@ public class Client {
         this.lastRequestSuc = lastRequestSuc;
     }
 
+    protected Codec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * 根据服务器的握手响应协商编码方式。
+     * 服务器在握手响应的数据部分列出其支持的二进制编码版本，包含本客户端支持的版本时使用二进制编码（优先使用最新版本），否则使用Java序列化。
+     * @param handshake 服务器的握手响应
+     */
+    protected void negotiateCodec(Response handshake) {
+        this.codec = Codec.JAVA;
+        if (handshake == null || handshake.getData() == null) return;
+        for (final byte version : handshake.getData()) {
+            if (version == BinaryCodec.VERSION) {
+                this.codec = Codec.BINARY;
+                return;
+            }
+            // 旧版本的服务器不支持操作码，使用携带请求名称的二进制编码
+            if (version == BinaryCodec.MIN_VERSION) this.codec = Codec.BINARY_V2;
+        }
+    }
+
+    /**
+     * 根据服务器的握手响应协商帧压缩。
+     * 服务器声明支持Deflate压缩时，发送negotiate请求，服务器同意后启用压缩。
+     * @param handshake 服务器的握手响应
+     */
+    protected void negotiateCompression(Response handshake) {
+        if (handshake == null || handshake.getData() == null) return;
+        boolean supported = false;
+        for (final byte feature : handshake.getData()) {
+            if (feature == FrameCompressor.FEATURE_DEFLATE) supported = true;
+        }
+        if (!supported) return;
+
+        Response response = this.sendRequest(this.socket, "negotiate", FrameCompressor.FEATURE_DEFLATE_NAME, null);
+        if (response == null || response.getStatusCode() != 200) return;
+        if (FrameCompressor.FEATURE_DEFLATE_NAME.equals(response.getMessage()))
+            this.compressor = new FrameCompressor(COMPRESSION_THRESHOLD);
+    }
+
     protected String getServerAddr() {
         if (this._isNotConnected()) return null;
         return this.socket.getInetAddress().getHostAddress() + ":" + this.socket.getPort();
@@ -150,13 +285,43 @@ public class Client {
             if (!testSocket.isConnected()) return false;
             if (!this.closeConnection()) return false;
             this.socket = testSocket;
+            this.codec = Codec.JAVA;
+            if (this.compressor != null) this.compressor.close();
+            this.compressor = null;
             this.lastRequestSuc = true;
+            this.lastRequestAt = System.currentTimeMillis();
             return true;
         } catch (Exception ignore) {
             return false;
         }
     }
 
+    /**
+     * 启动心跳线程，连接空闲超过{@code HEARTBEAT_INTERVAL}时发送ping请求。
+     * 用户正在进行同步请求时跳过本次心跳；心跳失败时与其他请求失败一样将{@code lastRequestSuc}设置为false。
+     */
+    private void startHeartbeat() {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = HEARTBEAT_INTERVAL / 6;
+        heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                Socket socket = this.socket;
+                if (socket == null || socket.isClosed() || !this.lastRequestSuc) return;
+                if (System.currentTimeMillis() - this.lastRequestAt < HEARTBEAT_INTERVAL) return;
+                if (!this.requestLock.tryLock()) return;
+                try {
+                    if (socket == this.socket) this.sendRequest(socket, "ping", null, null);
+                } finally {
+                    this.requestLock.unlock();
+                }
+            } catch (Exception ignore) {}
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * 向服务器发送请求
      * @param socket 客户端套接字实例
@@ -170,43 +335,237 @@ public class Client {
             this.lastRequestSuc = false;
             return null;
         }
+        this.lastRequestAt = System.currentTimeMillis();
+
+        // 该连接上已有响应读取线程时，同步请求也必须经由读取线程获取响应
+        if (socket != null && socket == this.pipelinedSocket) {
+            try {
+                return this.sendRequestAsync(questName, data, binData).get();
+            } catch (Exception ignore) {
+                this.lastRequestSuc = false;
+                return null;
+            }
+        }
 
+        this.requestLock.lock();
         try {
-            OutputStream outputStream = socket.getOutputStream();
-            InputStream inputStream = socket.getInputStream();
-
-            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-            DataInputStream dataInputStream = new DataInputStream(inputStream);
-
-            byte[] binDataBytes;
-            if (binData == null) {
-                binDataBytes = null;
-            } else {
-                binDataBytes = Utils.serializeObject(binData);
-                if (binDataBytes == null) throw new RuntimeException();
-            }
+            byte[] requestBytes = this.encodeRequest(questName, data, binData, 0);
+            this.writeFrame(socket, requestBytes);
 
-            Request request = new Request(data, binDataBytes, questName);
-            byte[] requestBytes = Utils.serializeObject(request);
-            if (requestBytes == null) throw new RuntimeException();
+            // 获取并返回服务器请求
+            Response response = this.readResponse(socket.getInputStream(), new FrameBuffer());
+            this.lastRequestSuc = true;
+            return response;
+        } catch (Exception ignore) {
+            this.lastRequestSuc = false;
+            return null;
+        } finally {
+            this.requestLock.unlock();
+        }
+    }
 
-            dataOutputStream.writeInt(requestBytes.length);
-            dataOutputStream.write(requestBytes);
-            dataOutputStream.flush();
+    /**
+     * 向服务器异步发送请求。请求带有编号，同一连接上可以同时有多个请求未收到响应，服务器可能乱序响应。
+     * 仅当与服务器协商使用二进制编码时可用，否则退化为同步请求，返回已完成的Future。
+     * @param questName 请求名称，如login
+     * @param data 要向服务器发送的字符串数据
+     * @param binData 要向服务器发送的二进制数据对象
+     * @return 服务器响应的Future。发生IO错误或连接断开时，以异常结束
+     */
+    protected CompletableFuture<Response> sendRequestAsync(String questName, String data, Object binData) {
+        Socket socket = this.socket;
+        if (!(this.codec instanceof BinaryCodec) || socket == null) {
+            return CompletableFuture.completedFuture(this.sendRequest(socket, questName, data, binData));
+        }
 
+        this.lastRequestAt = System.currentTimeMillis();
+        int requestId = this.nextRequestId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        this.pendingRequests.put(requestId, future);
 
-            // 获取并返回服务器请求
-            int byteLength = dataInputStream.readInt();
-            byte[] response = new byte[byteLength];
-            dataInputStream.readFully(response);
-            this.lastRequestSuc = true;
+        try {
+            this.startResponseReader(socket);
+            this.writeFrame(socket, this.encodeRequest(questName, data, binData, requestId));
+        } catch (Exception e) {
+            this.pendingRequests.remove(requestId);
+            this.lastRequestSuc = false;
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-            // 反序列化响应体
-            return Utils.deSerializeObject(response, Response.class);
+    /**
+     * 订阅某个用户的留言板，之后该留言板上的新留言会由服务器推送过来，在响应读取线程中交给回调处理。
+     * 推送的响应消息为留言板所属的用户名、数据为留言（MessageEntity），状态码为409时表示有留言因客户端读取过慢而未能推送。
+     * 推送依赖响应读取线程，因此仅当与服务器协商使用二进制编码时可用。
+     * @param userName 留言板所属的用户名
+     * @param listener 处理推送的回调
+     * @return 服务器的响应，请求失败时返回null；不支持订阅时返回状态码为400的响应
+     */
+    protected Response subscribe(String userName, Consumer<Response> listener) {
+        if (!(this.codec instanceof BinaryCodec)) return new Response("当前连接不支持订阅", null, 400);
+        this.pushListener = listener;
+        try {
+            Response response = this.sendRequestAsync("subscribe", userName, null).get();
+            if (response.getStatusCode() != 200) this.pushListener = null;
+            return response;
+        } catch (Exception ignore) {
+            this.pushListener = null;
+            return null;
+        }
+    }
+
+    /**
+     * 取消订阅某个用户的留言板
+     * @param userName 留言板所属的用户名
+     * @return 服务器的响应，请求失败时返回null
+     */
+    protected Response unsubscribe(String userName) {
+        Response response = this.sendRequest(this.socket, "unsubscribe", userName, null);
+        this.pushListener = null;
+        return response;
+    }
+
+    /**
+     * 以流式方式获取某个用户的全部留言。
+     * 服务器先发送一个响应，状态码为200时随后以分块帧发送全部留言（每条以换行符结尾），以长度为0的帧结束。
+     * 每解析出一行留言就交给回调处理，内存占用只与单条留言的长度有关，与留言总数无关。
+     * 该连接上有未完成的异步请求时，分块帧无法与其他响应区分，此时退化为displayAllMessages请求。
+     * @param userName 用户名
+     * @param consumer 处理每一行留言的回调
+     * @return 服务器的响应。请求失败时返回null；状态码为200时表示所有留言都已交给回调处理
+     */
+    @SuppressWarnings("unchecked")
+    protected Response streamAllMessages(String userName, Consumer<String> consumer) {
+        Socket socket = this.socket;
+        if (socket != null && socket == this.pipelinedSocket) {
+            Response response = this.sendRequest(socket, "displayAllMessages", userName, null);
+            if (response == null || response.getStatusCode() != 200) return response;
+            ArrayList<String> list = this.codec.decode(response.getData(), ArrayList.class);
+            if (list == null) return null;
+            list.forEach(consumer);
+            return response;
+        }
+
+        this.requestLock.lock();
+        this.lastRequestAt = System.currentTimeMillis();
+        try {
+            this.writeFrame(socket, this.encodeRequest("streamAllMessages", userName, null, 0));
+
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            Response response = this.readResponse(inputStream, new FrameBuffer());
+            if (response == null) throw new RuntimeException();
+            this.lastRequestSuc = true;
+            if (response.getStatusCode() != 200) return response;
+
+            // 分块帧不会被压缩。留言以换行符分隔，UTF-8多字节字符中不会出现换行符，因此可以按字节切分行
+            byte[] chunk = new byte[0];
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int chunkLength;
+            while ((chunkLength = Frames.checkLength(inputStream.readInt(), MAX_FRAME_SIZE)) > 0) {
+                if (chunk.length < chunkLength) chunk = new byte[chunkLength];
+                inputStream.readFully(chunk, 0, chunkLength);
+                for (int i = 0; i < chunkLength; i++) {
+                    if (chunk[i] != '\n') {
+                        line.write(chunk[i]);
+                        continue;
+                    }
+                    consumer.accept(decodeLine(line));
+                    line.reset();
+                }
+            }
+            if (line.size() > 0) consumer.accept(decodeLine(line));
+            return response;
         } catch (Exception ignore) {
             this.lastRequestSuc = false;
             return null;
+        } finally {
+            this.requestLock.unlock();
+        }
+    }
+
+    private static String decodeLine(ByteArrayOutputStream line) {
+        String str = line.toString(StandardCharsets.UTF_8);
+        return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+    }
+
+    /**
+     * 读取并反序列化一个响应帧，帧数据读取到缓冲池分配的缓冲区中，反序列化后归还
+     * @param inputStream 连接的输入流
+     * @param frame 读取时使用的帧缓冲
+     * @return 响应对象，反序列化失败时为null
+     */
+    private Response readResponse(InputStream inputStream, FrameBuffer frame) throws IOException {
+        Frames.read(inputStream, this.compressor, MAX_FRAME_SIZE, frame);
+        try {
+            return Codec.of(frame.array(), frame.length()).decode(frame.array(), 0, frame.length(), Response.class);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private byte[] encodeRequest(String questName, String data, Object binData, int requestId) {
+        byte[] binDataBytes;
+        if (binData == null) {
+            binDataBytes = null;
+        } else {
+            binDataBytes = this.codec.encode(binData);
+            if (binDataBytes == null) throw new RuntimeException();
         }
+
+        Request request = new Request(data, binDataBytes, questName);
+        request.setRequestId(requestId);
+        byte[] requestBytes = this.codec.encode(request);
+        if (requestBytes == null) throw new RuntimeException();
+        return requestBytes;
+    }
+
+    private void writeFrame(Socket socket, byte[] bytes) throws IOException {
+        OutputStream outputStream = socket.getOutputStream();
+        // 多个线程可能同时在同一连接上发送请求，保证每个请求帧完整写出
+        synchronized (outputStream) {
+            Frames.write(outputStream, bytes, this.compressor);
+        }
+    }
+
+    /**
+     * 为指定连接启动响应读取线程（已启动则不做任何操作）。
+     * 读取线程持续读取服务器响应，根据请求编号完成对应的Future；连接断开时，所有未完成的Future以异常结束。
+     */
+    private synchronized void startResponseReader(Socket socket) {
+        if (this.pipelinedSocket == socket) return;
+        this.pipelinedSocket = socket;
+
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream inputStream = socket.getInputStream();
+                FrameBuffer frame = new FrameBuffer();
+                while (true) {
+                    Response response = this.readResponse(inputStream, frame);
+                    if (response == null) throw new IOException("解析响应失败");
+
+                    if (response.getRequestId() == Response.PUSH_REQUEST_ID) {
+                        Consumer<Response> listener = this.pushListener;
+                        if (listener != null) listener.accept(response);
+                        continue;
+                    }
+
+                    CompletableFuture<Response> future = this.pendingRequests.remove(response.getRequestId());
+                    if (future != null) future.complete(response);
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    if (this.pipelinedSocket == socket) this.pipelinedSocket = null;
+                }
+                this.lastRequestSuc = false;
+                for (final Integer requestId : this.pendingRequests.keySet()) {
+                    CompletableFuture<Response> future = this.pendingRequests.remove(requestId);
+                    if (future != null) future.completeExceptionally(e);
+                }
+            }
+        }, "response-reader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
     /**
@@ -228,11 +587,7 @@ public class Client {
      */
     protected Response getResponseOfServer(Socket clientSocket) {
         try {
-            DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
-            int resLength = inputStream.readInt();
-            byte[] resBytes = new byte[resLength];
-            inputStream.readFully(resBytes);
-            return Utils.deSerializeObject(resBytes, Response.class);
+            return this.readResponse(clientSocket.getInputStream(), new FrameBuffer());
         } catch (Exception ignore) {
             return null;
         }
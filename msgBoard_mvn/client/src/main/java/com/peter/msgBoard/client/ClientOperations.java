@@ -1,18 +1,32 @@
 package com.peter.msgBoard.client;
 
+import com.peter.msgBoard.entity.BatchResult;
+import com.peter.msgBoard.entity.MessageBatch;
 import com.peter.msgBoard.entity.MessageEntity;
+import com.peter.msgBoard.entity.MessagePage;
+import com.peter.msgBoard.entity.PageQuery;
 import com.peter.msgBoard.entity.Response;
+import com.peter.msgBoard.entity.SearchQuery;
+import com.peter.msgBoard.entity.TimeRangeQuery;
 import com.peter.msgBoard.entity.UserEntity;
+import com.peter.msgBoard.utils.IO;
 import com.peter.msgBoard.utils.Utils;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 
 public class ClientOperations {
+    // 批量导入留言时每个writeMessages请求包含的留言数量
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    // 单条留言的最大长度
+    private static final int MAX_MESSAGE_LENGTH = 400;
     private final Client client;
     private final App app;
 
@@ -49,6 +63,7 @@ public class ClientOperations {
         if (this.client.getCurUserName() != null) {
             Response logoutRes = this.client.sendRequest(this.client.getSocket(), "logout", null, null);
             if (this.client.isRequestFailed(logoutRes)) return;
+            this.client.setSessionToken(null);
 
             System.out.println(logoutRes.getMessage());
             // 登出请求失败，则登录新用户也失败
@@ -67,6 +82,7 @@ public class ClientOperations {
         if (loginRes.getStatusCode() == 200) {
             this.client.setCurUserName(name);
             this.client.setHasAuth(name.equals("root"));
+            this.client.setSessionToken(loginRes);
             Utils.sleep(1000);
             Utils.clearConsole();
             this.app.printNewMainMenu();
@@ -170,9 +186,13 @@ public class ClientOperations {
                 Utils.sleep(1000);
                 return;
             }
+            this.client.negotiateCodec(response);
+            this.client.negotiateCompression(response);
             System.out.println(response.getMessage());
+            // 重新连接后尝试用会话令牌恢复上次的登录状态
+            String lastUserName = this.client.getCurUserName();
+            if (this.client.resumeSession()) System.out.println("已恢复 " + lastUserName + " 的登录状态");
             Utils.sleep(1000);
-            this.client.setCurUserName(null);
         } catch (Exception ignore) {
             System.out.println("连接服务器成功，但服务器没有任何响应。请检查服务器地址并重新连接。");
             this.client.setLastRequestSuc(false);
@@ -245,15 +265,226 @@ public class ClientOperations {
         Utils.pressEnter();
     }
 
-    @SuppressWarnings("unchecked")
+    protected void showServerStats() {
+        if (this.client.isNotConnected()) return;
+        if (this.client.isNotLogin()) return;
+        if (this.client.isNotAuthed()) return;
+
+        Response response = this.client.sendRequest(this.client.getSocket(), "stats", null, null);
+        if (this.client.isRequestFailed(response)) return;
+
+        if (response.getStatusCode() == 200) System.out.println("服务器统计信息如下：");
+        System.out.println(response.getMessage());
+        Utils.pressEnter();
+    }
+
     protected void showAllMessages() {
+        String curUserName = this.client.getCurUserName();
+        Utils.clearConsole();
+        boolean[] hasPrinted = {false};
+        Response response = this.client.streamAllMessages(curUserName, msg -> {
+            if (!hasPrinted[0]) {
+                hasPrinted[0] = true;
+                System.out.println(curUserName + " 的留言数据如下：\n");
+            }
+            this.printMessage(msg);
+        });
+        if (this.client.isRequestFailed(response)) return;
+
+        // 旧版本服务器不支持流式传输，改为一次性获取全部留言
+        if (response.getStatusCode() == 400) {
+            this.showAllMessagesAtOnce();
+            return;
+        }
+
+        if (response.getStatusCode() != 200) {
+            System.out.println(response.getMessage());
+        }
+        Utils.pressEnter();
+    }
+
+    /**
+     * 从最新的留言开始分页查看，每次只向服务器请求一页
+     */
+    protected void showMessagesByPage() {
+        final int pageSize = 10;
+        String curUserName = this.client.getCurUserName();
+        long cursor = -1;
+
+        while (true) {
+            PageQuery query = new PageQuery(cursor, pageSize, true);
+            Response response = this.client.sendRequest(this.client.getSocket(), "displayMessagesPage", curUserName, query);
+            if (this.client.isRequestFailed(response)) return;
+
+            Utils.clearConsole();
+            if (response.getStatusCode() != 200) {
+                System.out.println(response.getMessage());
+                Utils.pressEnter();
+                return;
+            }
+
+            MessagePage page = this.client.getCodec().decode(response.getData(), MessagePage.class);
+            if (page == null) {
+                System.out.println("解析数据失败");
+                Utils.pressEnter();
+                return;
+            }
+            if (page.getMessages().isEmpty()) {
+                System.out.println(curUserName + " 暂无留言记录");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.println(curUserName + " 的留言数据如下（从新到旧）：\n");
+            for (final String msg : page.getMessages()) {
+                this.printMessage(msg);
+            }
+            if (!page.hasMore()) {
+                System.out.println("没有更早的留言了");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.print("按回车键查看更早的留言，输入任意内容返回：");
+            if (!App.scanner.nextLine().trim().isEmpty()) return;
+            cursor = page.getNextCursor();
+        }
+    }
+
+    /**
+     * 查看指定时间范围内的留言，从旧到新分页显示
+     */
+    protected void showMessagesByTime() {
+        final int pageSize = 10;
+        String curUserName = this.client.getCurUserName();
+
+        System.out.print("请输入起始时间（yyyy-MM-dd 或 yyyy-MM-dd HH:mm:ss，直接回车表示不限）：");
+        String fromInput = App.scanner.nextLine().trim();
+        System.out.print("请输入结束时间（不含，格式同上，直接回车表示不限）：");
+        String toInput = App.scanner.nextLine().trim();
+        LocalDateTime from, to;
+        try {
+            from = parseDateTime(fromInput);
+            to = parseDateTime(toInput);
+        } catch (DateTimeParseException e) {
+            System.out.println("时间格式错误");
+            Utils.pressEnter();
+            return;
+        }
+
+        long cursor = 0;
+        while (true) {
+            TimeRangeQuery query = new TimeRangeQuery(from, to, cursor, pageSize);
+            Response response = this.client.sendRequest(this.client.getSocket(), "displayMessagesByTime", curUserName, query);
+            if (this.client.isRequestFailed(response)) return;
+
+            Utils.clearConsole();
+            if (response.getStatusCode() != 200) {
+                System.out.println(response.getMessage());
+                Utils.pressEnter();
+                return;
+            }
+
+            MessagePage page = this.client.getCodec().decode(response.getData(), MessagePage.class);
+            if (page == null) {
+                System.out.println("解析数据失败");
+                Utils.pressEnter();
+                return;
+            }
+            if (page.getMessages().isEmpty()) {
+                System.out.println("该时间范围内没有留言");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.println(curUserName + " 在该时间范围内的留言如下（从旧到新）：\n");
+            for (final String msg : page.getMessages()) {
+                this.printMessage(msg);
+            }
+            if (!page.hasMore()) {
+                System.out.println("没有更多的留言了");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.print("按回车键查看更多的留言，输入任意内容返回：");
+            if (!App.scanner.nextLine().trim().isEmpty()) return;
+            cursor = page.getNextCursor();
+        }
+    }
+
+    /**
+     * 全文搜索留言，按相关度从高到低分页显示
+     */
+    protected void searchMessages() {
+        final int pageSize = 10;
+        String curUserName = this.client.getCurUserName();
+
+        System.out.print("请输入要搜索的内容（多个词之间用空格分隔）：");
+        String keywords = App.scanner.nextLine().trim();
+        if (keywords.isEmpty()) {
+            System.out.println("搜索内容不能为空");
+            Utils.pressEnter();
+            return;
+        }
+
+        long cursor = 0;
+        while (true) {
+            SearchQuery query = new SearchQuery(keywords, cursor, pageSize);
+            Response response = this.client.sendRequest(this.client.getSocket(), "searchMessages", curUserName, query);
+            if (this.client.isRequestFailed(response)) return;
+
+            Utils.clearConsole();
+            if (response.getStatusCode() != 200) {
+                System.out.println(response.getMessage());
+                Utils.pressEnter();
+                return;
+            }
+
+            MessagePage page = this.client.getCodec().decode(response.getData(), MessagePage.class);
+            if (page == null) {
+                System.out.println("解析数据失败");
+                Utils.pressEnter();
+                return;
+            }
+            if (page.getMessages().isEmpty()) {
+                System.out.println("没有找到包含 \"" + keywords + "\" 的留言");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.println(curUserName + " 的留言中包含 \"" + keywords + "\" 的留言如下（按相关度排序）：\n");
+            for (final String msg : page.getMessages()) {
+                this.printMessage(msg);
+            }
+            if (!page.hasMore()) {
+                System.out.println("没有更多的结果了");
+                Utils.pressEnter();
+                return;
+            }
+
+            System.out.print("按回车键查看更多的结果，输入任意内容返回：");
+            if (!App.scanner.nextLine().trim().isEmpty()) return;
+            cursor = page.getNextCursor();
+        }
+    }
+
+    // 解析用户输入的时间，只有日期时取当天的零点，为空时返回null
+    private static LocalDateTime parseDateTime(String input) {
+        if (input.isEmpty()) return null;
+        if (input.length() <= 10) return LocalDate.parse(input).atStartOfDay();
+        return LocalDateTime.parse(input, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void showAllMessagesAtOnce() {
         Response response = this.client.sendRequest(this.client.getSocket(), "displayAllMessages", this.client.getCurUserName(), null);
         if (this.client.isRequestFailed(response)) return;
 
         Utils.clearConsole();
         int code = response.getStatusCode();
         if (code == 200) {
-            ArrayList<String> msgList = Utils.deSerializeObject(response.getData(), ArrayList.class);
+            ArrayList<String> msgList = this.client.getCodec().decode(response.getData(), ArrayList.class);
             if (msgList == null) {
                 System.out.println("解析数据失败");
                 Utils.pressEnter();
@@ -261,16 +492,10 @@ public class ClientOperations {
             }
             System.out.println(this.client.getCurUserName() + " 的留言数据如下：\n");
             for (final String msg : msgList) {
-                String[] pair = msg.split(",");
-                if (pair.length < 2) {
-                    System.out.println("解析数据失败");
+                if (!this.printMessage(msg)) {
                     Utils.pressEnter();
                     return;
                 }
-                String date = pair[0], content = pair[1];
-                System.out.println("时间：" + date);
-                System.out.println("内容：" + content);
-                System.out.println();
             }
         } else {
             System.out.println(response.getMessage());
@@ -278,6 +503,24 @@ public class ClientOperations {
         Utils.pressEnter();
     }
 
+    /**
+     * 打印一条留言
+     * @param msg 格式为"时间,内容"的留言
+     * @return 留言格式有误时打印提示并返回false
+     */
+    private boolean printMessage(String msg) {
+        String[] pair = msg.split(",");
+        if (pair.length < 2) {
+            System.out.println("解析数据失败");
+            return false;
+        }
+        String date = pair[0], content = pair[1];
+        System.out.println("时间：" + date);
+        System.out.println("内容：" + content);
+        System.out.println();
+        return true;
+    }
+
     protected void writeNewMessage() {
         System.out.print("请输入你的留言(仅支持单行文本)：");
         String input = App.scanner.nextLine().trim();
@@ -299,4 +542,82 @@ public class ClientOperations {
         System.out.println(response.getMessage());
         Utils.pressEnter();
     }
-}
\ No newline at end of file
+
+    /**
+     * 从文本文件批量导入留言，文件中每个非空行为一条留言。
+     * 留言按{@code IMPORT_BATCH_SIZE}分批通过writeMessages请求发送，每批只需要一次往返，服务器一次性追加到留言日志。
+     */
+    protected void importMessages() {
+        System.out.print("请输入要导入的文件路径(每行一条留言)：");
+        String path = App.scanner.nextLine().trim();
+        if (path.isEmpty()) return;
+
+        ArrayList<String> lines = IO.readFileByLine(path);
+        if (lines == null) {
+            System.out.println("读取文件失败");
+            Utils.pressEnter();
+            return;
+        }
+
+        String curUserName = this.client.getCurUserName();
+        int saved = 0, skipped = 0, failed = 0;
+        ArrayList<MessageEntity> batch = new ArrayList<>();
+        for (int i = 0; i <= lines.size(); i++) {
+            if (i < lines.size()) {
+                String content = lines.get(i).trim();
+                if (content.isEmpty()) continue;
+                if (content.length() > MAX_MESSAGE_LENGTH) {
+                    skipped++;
+                    continue;
+                }
+                batch.add(new MessageEntity(content, LocalDateTime.now()));
+                if (batch.size() < IMPORT_BATCH_SIZE) continue;
+            }
+            if (batch.isEmpty()) break;
+
+            Response response = this.client.sendRequest(this.client.getSocket(), "writeMessages", curUserName, new MessageBatch(batch));
+            if (this.client.isRequestFailed(response)) return;
+            BatchResult result = response.getData() == null ? null : this.client.getCodec().decode(response.getData(), BatchResult.class);
+            if (result == null) {
+                System.out.println(response.getMessage());
+                Utils.pressEnter();
+                return;
+            }
+            for (final int statusCode : result.getStatusCodes()) {
+                if (statusCode == 200) saved++;
+                else if (statusCode == 400) skipped++;
+                else failed++;
+            }
+            batch = new ArrayList<>();
+        }
+
+        System.out.println("导入完成：成功 " + saved + " 条，跳过 " + skipped + " 条不合法的留言，失败 " + failed + " 条");
+        Utils.pressEnter();
+    }
+
+    /**
+     * 订阅当前用户的留言板，实时显示新留言，直到用户按下回车键
+     */
+    protected void watchNewMessages() {
+        String curUserName = this.client.getCurUserName();
+        Response response = this.client.subscribe(curUserName, push -> {
+            if (push.getStatusCode() != 200) {
+                System.out.println(push.getMessage());
+                return;
+            }
+            MessageEntity message = this.client.getCodec().decode(push.getData(), MessageEntity.class);
+            if (message != null) this.printMessage(message.getDate() + "," + message.getContent());
+        });
+        if (this.client.isRequestFailed(response)) return;
+        if (response.getStatusCode() != 200) {
+            System.out.println(response.getMessage());
+            Utils.pressEnter();
+            return;
+        }
+
+        Utils.clearConsole();
+        System.out.println("正在实时查看 " + curUserName + " 的新留言，按回车键返回：\n");
+        App.scanner.nextLine();
+        this.client.unsubscribe(curUserName);
+    }
+}
@@ -0,0 +1,36 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+
+/**
+ * 批量请求的处理结果，按请求中的顺序给出每一项的状态码
+ */
+public class BatchResult implements Serializable {
+    // 每一项的状态码：200-成功，400-该项数据不合法，500-保存失败
+    private int[] statusCodes;
+
+    public BatchResult() {}
+
+    public BatchResult(int[] statusCodes) {
+        this.statusCodes = statusCodes;
+    }
+
+    public int[] getStatusCodes() {
+        return this.statusCodes;
+    }
+
+    public void setStatusCodes(int[] statusCodes) {
+        this.statusCodes = statusCodes;
+    }
+
+    /**
+     * @return 成功的项数
+     */
+    public int getSuccessCount() {
+        int count = 0;
+        for (final int statusCode : this.statusCodes) {
+            if (statusCode == 200) count++;
+        }
+        return count;
+    }
+}
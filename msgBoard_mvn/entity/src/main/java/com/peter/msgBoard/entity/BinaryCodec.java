@@ -0,0 +1,335 @@
+package com.peter.msgBoard.entity;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 手写的二进制编解码器。
+ * 编码格式：魔数(1字节) + 版本号(1字节) + 类型标记(1字节) + 字段。
+ * 字段中的整数使用varint编码，字符串使用UTF-8编码并以varint长度作前缀，时间使用毫秒时间戳。
+ * 可为null的字符串和字节数组的长度前缀为实际长度加1，0表示null。
+ * 版本历史：1-初始版本；2-Request和Response增加请求编号；3-Request以操作码代替请求名称（操作码为0时仍携带请求名称）。
+ * 每个实例只读写一个版本，服务器按请求的版本响应，从而兼容仍在使用旧版本的客户端。
+ */
+public class BinaryCodec implements Codec {
+    public static final byte MAGIC = 0x4D;
+    public static final byte VERSION = 3;
+    // 服务器仍然支持的最低版本
+    public static final byte MIN_VERSION = 2;
+
+    private static final byte TAG_REQUEST = 1;
+    private static final byte TAG_RESPONSE = 2;
+    private static final byte TAG_USER = 3;
+    private static final byte TAG_MESSAGE = 4;
+    private static final byte TAG_STRING_LIST = 5;
+    private static final byte TAG_PAGE_QUERY = 6;
+    private static final byte TAG_MESSAGE_PAGE = 7;
+    private static final byte TAG_MESSAGE_BATCH = 8;
+    private static final byte TAG_BATCH_RESULT = 9;
+    private static final byte TAG_TIME_RANGE_QUERY = 10;
+    private static final byte TAG_SEARCH_QUERY = 11;
+
+    private final byte version;
+
+    protected BinaryCodec(byte version) {
+        this.version = version;
+    }
+
+    public byte getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public byte[] encode(Object object) {
+        try {
+            Writer writer = new Writer();
+            writer.write(MAGIC);
+            writer.write(this.version);
+
+            if (object instanceof Request request && this.version >= 3) {
+                writer.write(TAG_REQUEST);
+                writer.writeVarInt(request.getRequestId());
+                writer.writeVarInt(request.getOpcode());
+                if (request.getOpcode() == Opcode.UNKNOWN) writer.writeString(request.getRequestTarget());
+                writer.writeString(request.getMessage());
+                writer.writeNullableBytes(request.getData());
+            } else if (object instanceof Request request) {
+                writer.write(TAG_REQUEST);
+                writer.writeVarInt(request.getRequestId());
+                writer.writeString(request.getMessage());
+                writer.writeNullableBytes(request.getData());
+                writer.writeString(request.getRequestTarget());
+            } else if (object instanceof Response response) {
+                writer.write(TAG_RESPONSE);
+                writer.writeVarInt(response.getRequestId());
+                writer.writeString(response.getMessage());
+                writer.writeNullableBytes(response.getData());
+                writer.writeVarInt(response.getStatusCode());
+            } else if (object instanceof UserEntity user) {
+                writer.write(TAG_USER);
+                writer.writeString(user.getUserName());
+                writer.writeString(user.getPassword_md5());
+            } else if (object instanceof MessageEntity message) {
+                writer.write(TAG_MESSAGE);
+                writer.writeMessage(message);
+            } else if (object instanceof List<?> list) {
+                writer.write(TAG_STRING_LIST);
+                writer.writeStringList(list);
+            } else if (object instanceof PageQuery query) {
+                writer.write(TAG_PAGE_QUERY);
+                writer.writeVarLong(query.getCursor());
+                writer.writeVarInt(query.getPageSize());
+                writer.write(query.isNewestFirst() ? 1 : 0);
+            } else if (object instanceof MessagePage page) {
+                writer.write(TAG_MESSAGE_PAGE);
+                writer.writeStringList(page.getMessages());
+                writer.writeVarLong(page.getNextCursor());
+            } else if (object instanceof MessageBatch batch) {
+                writer.write(TAG_MESSAGE_BATCH);
+                writer.writeVarInt(batch.getMessages().size());
+                for (final MessageEntity message : batch.getMessages()) {
+                    writer.writeMessage(message);
+                }
+            } else if (object instanceof BatchResult result) {
+                writer.write(TAG_BATCH_RESULT);
+                writer.writeVarInt(result.getStatusCodes().length);
+                for (final int statusCode : result.getStatusCodes()) {
+                    writer.writeVarInt(statusCode);
+                }
+            } else if (object instanceof TimeRangeQuery query) {
+                writer.write(TAG_TIME_RANGE_QUERY);
+                writer.writeDateTime(query.getFrom());
+                writer.writeDateTime(query.getTo());
+                writer.writeVarLong(query.getCursor());
+                writer.writeVarInt(query.getPageSize());
+            } else if (object instanceof SearchQuery query) {
+                writer.write(TAG_SEARCH_QUERY);
+                writer.writeString(query.getKeywords());
+                writer.writeVarLong(query.getCursor());
+                writer.writeVarInt(query.getPageSize());
+            } else {
+                return null;
+            }
+
+            return writer.toByteArray();
+        } catch (Exception ignore) {
+            return null;
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> clazz) {
+        try {
+            Reader reader = new Reader(bytes, offset, offset + length);
+            if (reader.read() != MAGIC || reader.read() != this.version) return null;
+
+            Object obj;
+            byte tag = reader.read();
+            if (tag == TAG_REQUEST && this.version >= 3) {
+                Request request = new Request();
+                request.setRequestId(reader.readVarInt());
+                int opcode = reader.readVarInt();
+                request.setOpcode(opcode);
+                request.setRequestTarget(opcode == Opcode.UNKNOWN ? reader.readString() : Opcode.nameOf(opcode));
+                request.setMessage(reader.readString());
+                request.setData(reader.readNullableBytes());
+                obj = request;
+            } else if (tag == TAG_REQUEST) {
+                int requestId = reader.readVarInt();
+                String msg = reader.readString();
+                byte[] data = reader.readNullableBytes();
+                Request request = new Request(msg, data, reader.readString());
+                request.setRequestId(requestId);
+                obj = request;
+            } else if (tag == TAG_RESPONSE) {
+                int requestId = reader.readVarInt();
+                String msg = reader.readString();
+                byte[] data = reader.readNullableBytes();
+                Response response = new Response(msg, data, reader.readVarInt());
+                response.setRequestId(requestId);
+                obj = response;
+            } else if (tag == TAG_USER) {
+                String userName = reader.readString();
+                obj = new UserEntity(userName, reader.readString());
+            } else if (tag == TAG_MESSAGE) {
+                obj = reader.readMessage();
+            } else if (tag == TAG_STRING_LIST) {
+                obj = reader.readStringList();
+            } else if (tag == TAG_PAGE_QUERY) {
+                long cursor = reader.readVarLong();
+                int pageSize = reader.readVarInt();
+                obj = new PageQuery(cursor, pageSize, reader.read() == 1);
+            } else if (tag == TAG_MESSAGE_PAGE) {
+                ArrayList<String> messages = reader.readStringList();
+                obj = new MessagePage(messages, reader.readVarLong());
+            } else if (tag == TAG_MESSAGE_BATCH) {
+                int size = reader.readVarInt();
+                // 每条留言至少占2个字节，避免错误的数量导致分配过大的列表
+                ArrayList<MessageEntity> messages = new ArrayList<>(Math.min(size, reader.remaining() / 2));
+                for (int i = 0; i < size; i++) {
+                    messages.add(reader.readMessage());
+                }
+                obj = new MessageBatch(messages);
+            } else if (tag == TAG_BATCH_RESULT) {
+                int size = reader.readVarInt();
+                if (size < 0 || size > reader.remaining()) throw new IllegalStateException("长度越界");
+                int[] statusCodes = new int[size];
+                for (int i = 0; i < size; i++) {
+                    statusCodes[i] = reader.readVarInt();
+                }
+                obj = new BatchResult(statusCodes);
+            } else if (tag == TAG_TIME_RANGE_QUERY) {
+                LocalDateTime from = reader.readDateTime();
+                LocalDateTime to = reader.readDateTime();
+                long cursor = reader.readVarLong();
+                obj = new TimeRangeQuery(from, to, cursor, reader.readVarInt());
+            } else if (tag == TAG_SEARCH_QUERY) {
+                String keywords = reader.readString();
+                long cursor = reader.readVarLong();
+                obj = new SearchQuery(keywords, cursor, reader.readVarInt());
+            } else {
+                return null;
+            }
+
+            if (reader.remaining() != 0) return null;
+            if (clazz.isInstance(obj)) return clazz.cast(obj);
+            else return null;
+        } catch (Exception ignore) {
+            return null;
+        }
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                this.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.write(value);
+        }
+
+        // 使用zigzag编码，使负数也能得到较短的编码
+        private void writeVarLong(long value) {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                this.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            this.write((int) v);
+        }
+
+        private void writeNullableBytes(byte[] bytes) {
+            if (bytes == null) {
+                this.writeVarInt(0);
+                return;
+            }
+            this.writeVarInt(bytes.length + 1);
+            this.write(bytes, 0, bytes.length);
+        }
+
+        private void writeString(String str) {
+            this.writeNullableBytes(str == null ? null : str.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeDateTime(LocalDateTime dateTime) {
+            this.write(dateTime == null ? 0 : 1);
+            if (dateTime != null) this.writeVarLong(dateTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+        }
+
+        private void writeMessage(MessageEntity message) {
+            this.writeDateTime(message.getDateTime());
+            this.writeString(message.getContent());
+        }
+
+        private void writeStringList(List<?> list) {
+            this.writeVarInt(list.size());
+            for (final Object item : list) {
+                this.writeString((String) item);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        private Reader(byte[] buf, int offset, int end) {
+            this.buf = buf;
+            this.end = end;
+            this.pos = offset;
+        }
+
+        private int remaining() {
+            return this.end - this.pos;
+        }
+
+        private byte read() {
+            if (this.pos >= this.end) throw new IllegalStateException("数据不完整");
+            return this.buf[this.pos++];
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = this.read();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalStateException("varint过长");
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = this.read();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+            }
+            throw new IllegalStateException("varint过长");
+        }
+
+        private byte[] readNullableBytes() {
+            int length = this.readVarInt() - 1;
+            if (length < 0) return null;
+            if (length > this.remaining()) throw new IllegalStateException("长度越界");
+            byte[] bytes = new byte[length];
+            System.arraycopy(this.buf, this.pos, bytes, 0, length);
+            this.pos += length;
+            return bytes;
+        }
+
+        private String readString() {
+            int length = this.readVarInt() - 1;
+            if (length < 0) return null;
+            if (length > this.remaining()) throw new IllegalStateException("长度越界");
+            String str = new String(this.buf, this.pos, length, StandardCharsets.UTF_8);
+            this.pos += length;
+            return str;
+        }
+
+        private LocalDateTime readDateTime() {
+            if (this.read() != 1) return null;
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(this.readVarLong()), ZoneOffset.UTC);
+        }
+
+        private MessageEntity readMessage() {
+            LocalDateTime dateTime = this.readDateTime();
+            return new MessageEntity(this.readString(), dateTime);
+        }
+
+        private ArrayList<String> readStringList() {
+            int size = this.readVarInt();
+            ArrayList<String> list = new ArrayList<>(Math.min(size, this.remaining()));
+            for (int i = 0; i < size; i++) {
+                list.add(this.readString());
+            }
+            return list;
+        }
+    }
+}
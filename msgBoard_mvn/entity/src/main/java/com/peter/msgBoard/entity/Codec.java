@@ -0,0 +1,61 @@
+package com.peter.msgBoard.entity;
+
+/**
+ * 请求、响应及其负载数据的编解码器。
+ * 支持的对象类型：Request、Response、UserEntity、MessageEntity、PageQuery、MessagePage、MessageBatch、BatchResult，
+ * 以及留言列表（元素为String的List）。
+ */
+public interface Codec {
+    // Java序列化，所有客户端都支持，作为兜底方案
+    Codec JAVA = new JavaCodec();
+
+    // 紧凑的二进制编码，由服务器在连接时声明支持，客户端选择使用
+    Codec BINARY = new BinaryCodec(BinaryCodec.VERSION);
+
+    // 旧版本的二进制编码，请求中携带请求名称而不是操作码，用于兼容旧版本的客户端和服务器
+    Codec BINARY_V2 = new BinaryCodec(BinaryCodec.MIN_VERSION);
+
+    /**
+     * 将对象编码为字节序列
+     * @param object 要编码的对象
+     * @return 编码后的字节序列，编码失败或不支持该类型时返回null
+     */
+    byte[] encode(Object object);
+
+    /**
+     * 将字节序列解码为指定类型的对象
+     * @param bytes 字节序列
+     * @param clazz 目标类型
+     * @return 解码后的对象，解码失败或类型不匹配时返回null
+     */
+    default <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (bytes == null) return null;
+        return this.decode(bytes, 0, bytes.length, clazz);
+    }
+
+    /**
+     * 将字节数组的指定部分解码为指定类型的对象，用于解码缓冲池中的帧数据
+     * @param bytes 字节数组
+     * @param offset 起始位置
+     * @param length 字节数
+     * @param clazz 目标类型
+     * @return 解码后的对象，解码失败或类型不匹配时返回null
+     */
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> clazz);
+
+    /**
+     * 根据字节序列的首字节判断其使用的编码方式。
+     * 二进制编码以{@link BinaryCodec#MAGIC}开头，Java序列化流以0xACED开头，两者不会冲突；二进制编码再根据第二个字节区分版本。
+     * @param bytes 字节序列
+     * @return 对应的编解码器
+     */
+    static Codec of(byte[] bytes) {
+        if (bytes == null) return JAVA;
+        return of(bytes, bytes.length);
+    }
+
+    static Codec of(byte[] bytes, int length) {
+        if (bytes == null || length < 2 || bytes[0] != BinaryCodec.MAGIC) return JAVA;
+        return bytes[1] == BinaryCodec.MIN_VERSION ? BINARY_V2 : BINARY;
+    }
+}
@@ -3,8 +3,15 @@ package com.peter.msgBoard.entity;
 import java.io.Serializable;
 
 public class DataWrapper implements Serializable {
+    // 固定为旧版本自动生成的值，新增字段后旧版本仍能正常反序列化
+    private static final long serialVersionUID = 4118868923235953406L;
+    // 服务器主动推送的响应使用的请求编号，不对应任何请求
+    public static final int PUSH_REQUEST_ID = -1;
+
     private String message;
     private byte[] data;
+    // 请求编号，用于在同一连接上同时发送多个请求时将响应与请求对应起来，0表示不使用
+    private int requestId;
 
     public DataWrapper() {}
 
@@ -28,4 +35,12 @@ public class DataWrapper implements Serializable {
     public void setData(byte[] data) {
         this.data = data;
     }
+
+    public int getRequestId() {
+        return this.requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
 }
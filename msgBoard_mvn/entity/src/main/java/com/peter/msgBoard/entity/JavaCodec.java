@@ -0,0 +1,20 @@
+package com.peter.msgBoard.entity;
+
+import com.peter.msgBoard.utils.Utils;
+
+/**
+ * 基于Java序列化的编解码器，与旧版本客户端和服务器兼容
+ */
+public class JavaCodec implements Codec {
+    protected JavaCodec() {}
+
+    @Override
+    public byte[] encode(Object object) {
+        return Utils.serializeObject(object);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> clazz) {
+        return Utils.deSerializeObject(bytes, offset, length, clazz);
+    }
+}
@@ -0,0 +1,25 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * 批量写入的留言，用于writeMessages请求，服务器在一次文件操作中追加所有留言
+ */
+public class MessageBatch implements Serializable {
+    private ArrayList<MessageEntity> messages;
+
+    public MessageBatch() {}
+
+    public MessageBatch(ArrayList<MessageEntity> messages) {
+        this.messages = messages;
+    }
+
+    public ArrayList<MessageEntity> getMessages() {
+        return this.messages;
+    }
+
+    public void setMessages(ArrayList<MessageEntity> messages) {
+        this.messages = messages;
+    }
+}
@@ -5,6 +5,9 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class MessageEntity implements Serializable {
+    // 固定为旧版本自动生成的值，保证新增方法后仍能与旧版本客户端互相反序列化
+    private static final long serialVersionUID = 8434168660162344568L;
+
     private LocalDateTime dateTime;
     private String content;
 
@@ -19,6 +22,10 @@ public class MessageEntity implements Serializable {
         return this.dateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     }
 
+    public LocalDateTime getDateTime() {
+        return this.dateTime;
+    }
+
     public void setDateTime(LocalDateTime dateTime) {
         this.dateTime = dateTime;
     }
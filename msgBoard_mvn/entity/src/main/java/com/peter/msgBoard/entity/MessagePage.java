@@ -0,0 +1,40 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * 分页查询留言的结果
+ */
+public class MessagePage implements Serializable {
+    private ArrayList<String> messages;
+    // 下一页的游标，-1表示没有更多留言
+    private long nextCursor;
+
+    public MessagePage() {}
+
+    public MessagePage(ArrayList<String> messages, long nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    public ArrayList<String> getMessages() {
+        return this.messages;
+    }
+
+    public void setMessages(ArrayList<String> messages) {
+        this.messages = messages;
+    }
+
+    public long getNextCursor() {
+        return this.nextCursor;
+    }
+
+    public void setNextCursor(long nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public boolean hasMore() {
+        return this.nextCursor >= 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.peter.msgBoard.entity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 请求操作码。
+ * 每种请求对应一个固定的小整数，二进制编码（版本3起）中只传输操作码而不再传输请求名称，服务器直接以操作码为下标查找处理方法。
+ * 操作码一经分配就不能修改或复用，新增的请求只能追加在末尾。
+ */
+public final class Opcode {
+    // 未知请求，或只携带了请求名称的旧版本请求
+    public static final int UNKNOWN = 0;
+    public static final int LOGIN = 1;
+    public static final int QUIT = 2;
+    public static final int DISPLAY_ALL_USERS = 3;
+    public static final int DISPLAY_ONLINE_USERS = 4;
+    public static final int ADD_USER = 5;
+    public static final int DEL_USER = 6;
+    public static final int LOGOUT = 7;
+    public static final int DISPLAY_ALL_MESSAGES = 8;
+    public static final int WRITE_NEW_MESSAGE = 9;
+    public static final int STREAM_ALL_MESSAGES = 10;
+    public static final int DISPLAY_MESSAGES_PAGE = 11;
+    public static final int NEGOTIATE = 12;
+    public static final int WRITE_MESSAGES = 13;
+    public static final int SUBSCRIBE = 14;
+    public static final int UNSUBSCRIBE = 15;
+    public static final int RESUME = 16;
+    public static final int PING = 17;
+    public static final int STATS = 18;
+    public static final int DISPLAY_MESSAGES_BY_TIME = 19;
+    public static final int SEARCH_MESSAGES = 20;
+
+    // 下标为操作码，元素为对应的请求名称
+    private static final String[] NAMES = {
+            null,
+            "login",
+            "quit",
+            "displayAllUsers",
+            "displayOnlineUsers",
+            "addUser",
+            "delUser",
+            "logout",
+            "displayAllMessages",
+            "writeNewMessage",
+            "streamAllMessages",
+            "displayMessagesPage",
+            "negotiate",
+            "writeMessages",
+            "subscribe",
+            "unsubscribe",
+            "resume",
+            "ping",
+            "stats",
+            "displayMessagesByTime",
+            "searchMessages",
+    };
+    private static final Map<String, Integer> CODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < NAMES.length; i++) {
+            CODES.put(NAMES[i], i);
+        }
+    }
+
+    private Opcode() {}
+
+    /**
+     * @return 操作码的数量（含{@link #UNKNOWN}），可用作按操作码索引的数组的长度
+     */
+    public static int count() {
+        return NAMES.length;
+    }
+
+    /**
+     * 根据请求名称获取操作码
+     * @param name 请求名称，如login
+     * @return 对应的操作码，未知的请求名称返回{@link #UNKNOWN}
+     */
+    public static int of(String name) {
+        if (name == null) return UNKNOWN;
+        return CODES.getOrDefault(name, UNKNOWN);
+    }
+
+    /**
+     * 根据操作码获取请求名称
+     * @param opcode 操作码
+     * @return 对应的请求名称，未知的操作码返回null
+     */
+    public static String nameOf(int opcode) {
+        if (opcode <= UNKNOWN || opcode >= NAMES.length) return null;
+        return NAMES[opcode];
+    }
+}
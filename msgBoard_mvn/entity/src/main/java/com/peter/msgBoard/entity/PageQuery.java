@@ -0,0 +1,46 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+
+/**
+ * 分页查询留言的参数
+ */
+public class PageQuery implements Serializable {
+    // 游标，即留言序号。正序查询时为起始序号，初始为0；倒序查询时为结束序号（不含），初始为-1表示从最新的留言开始
+    private long cursor;
+    private int pageSize;
+    // 是否按从新到旧的顺序查询
+    private boolean newestFirst;
+
+    public PageQuery() {}
+
+    public PageQuery(long cursor, int pageSize, boolean newestFirst) {
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+        this.newestFirst = newestFirst;
+    }
+
+    public long getCursor() {
+        return this.cursor;
+    }
+
+    public void setCursor(long cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public boolean isNewestFirst() {
+        return this.newestFirst;
+    }
+
+    public void setNewestFirst(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+    }
+}
@@ -3,7 +3,12 @@ package com.peter.msgBoard.entity;
 import java.io.Serializable;
 
 public class Request extends DataWrapper implements Serializable {
+    // 固定为旧版本自动生成的值，新增字段后旧版本仍能正常反序列化
+    private static final long serialVersionUID = -1992619588476876457L;
+
     private String requestTarget;
+    // 请求的操作码，见Opcode，旧版本客户端发送的请求中为0
+    private int opcode;
 
     public Request() {
         super();
@@ -12,6 +17,7 @@ public class Request extends DataWrapper implements Serializable {
     public Request(String msg, byte[] data, String requestTarget) {
         super(msg, data);
         this.requestTarget = requestTarget;
+        this.opcode = Opcode.of(requestTarget);
     }
 
     public String getRequestTarget() {
@@ -21,4 +27,12 @@ public class Request extends DataWrapper implements Serializable {
     public void setRequestTarget(String requestTarget) {
         this.requestTarget = requestTarget;
     }
+
+    public int getOpcode() {
+        return this.opcode;
+    }
+
+    public void setOpcode(int opcode) {
+        this.opcode = opcode;
+    }
 }
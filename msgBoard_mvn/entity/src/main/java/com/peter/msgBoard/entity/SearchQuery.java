@@ -0,0 +1,46 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+
+/**
+ * 全文搜索留言的参数，返回包含全部查询词的留言，按相关度从高到低分页返回
+ */
+public class SearchQuery implements Serializable {
+    // 查询词，多个词之间用空格或标点分隔
+    private String keywords;
+    // 游标，即已经返回的结果数量，初始为0
+    private long cursor;
+    private int pageSize;
+
+    public SearchQuery() {}
+
+    public SearchQuery(String keywords, long cursor, int pageSize) {
+        this.keywords = keywords;
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+    }
+
+    public String getKeywords() {
+        return this.keywords;
+    }
+
+    public void setKeywords(String keywords) {
+        this.keywords = keywords;
+    }
+
+    public long getCursor() {
+        return this.cursor;
+    }
+
+    public void setCursor(long cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+}
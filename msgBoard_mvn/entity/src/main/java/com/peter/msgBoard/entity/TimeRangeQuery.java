@@ -0,0 +1,58 @@
+package com.peter.msgBoard.entity;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * 按时间范围查询留言的参数，查询发布时间在 [from, to) 内的留言，按从旧到新的顺序分页返回
+ */
+public class TimeRangeQuery implements Serializable {
+    // 起始时间（含），为null表示不限制
+    private LocalDateTime from;
+    // 结束时间（不含），为null表示不限制
+    private LocalDateTime to;
+    // 游标，即开始查找的留言序号，初始为0
+    private long cursor;
+    private int pageSize;
+
+    public TimeRangeQuery() {}
+
+    public TimeRangeQuery(LocalDateTime from, LocalDateTime to, long cursor, int pageSize) {
+        this.from = from;
+        this.to = to;
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+    }
+
+    public LocalDateTime getFrom() {
+        return this.from;
+    }
+
+    public void setFrom(LocalDateTime from) {
+        this.from = from;
+    }
+
+    public LocalDateTime getTo() {
+        return this.to;
+    }
+
+    public void setTo(LocalDateTime to) {
+        this.to = to;
+    }
+
+    public long getCursor() {
+        return this.cursor;
+    }
+
+    public void setCursor(long cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+}
@@ -0,0 +1,226 @@
+package com.peter.msgBoard.entity;
+
+import junit.framework.TestCase;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BinaryCodec的编解码往返测试，覆盖所有支持的类型、null字段和边界值，以及损坏数据的处理
+ */
+public class BinaryCodecTest extends TestCase {
+    // 时间以毫秒时间戳编码，测试数据不带更小的精度
+    private static final LocalDateTime TIME = LocalDateTime.of(2026, 10, 18, 9, 30, 15, 123_000_000);
+
+    private static <T> T roundTrip(Codec codec, Object object, Class<T> clazz) {
+        byte[] bytes = codec.encode(object);
+        assertNotNull(bytes);
+        assertSame(codec, Codec.of(bytes));
+        T decoded = codec.decode(bytes, clazz);
+        assertNotNull(decoded);
+        return decoded;
+    }
+
+    private static void assertMessageEquals(MessageEntity expected, MessageEntity actual) {
+        assertEquals(expected.getDateTime(), actual.getDateTime());
+        assertEquals(expected.getContent(), actual.getContent());
+    }
+
+    public void testRequestWithOpcode() {
+        Request request = new Request("root", new byte[] {1, 2, 3}, "login");
+        request.setRequestId(42);
+        Request decoded = roundTrip(Codec.BINARY, request, Request.class);
+        assertEquals(42, decoded.getRequestId());
+        assertEquals(Opcode.LOGIN, decoded.getOpcode());
+        assertEquals("login", decoded.getRequestTarget());
+        assertEquals("root", decoded.getMessage());
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, decoded.getData()));
+    }
+
+    public void testRequestWithoutOpcodeKeepsTarget() {
+        Request request = new Request(null, null, "someFutureRequest");
+        request.setRequestId(Integer.MAX_VALUE);
+        Request decoded = roundTrip(Codec.BINARY, request, Request.class);
+        assertEquals(Integer.MAX_VALUE, decoded.getRequestId());
+        assertEquals(Opcode.UNKNOWN, decoded.getOpcode());
+        assertEquals("someFutureRequest", decoded.getRequestTarget());
+        assertNull(decoded.getMessage());
+        assertNull(decoded.getData());
+    }
+
+    public void testRequestVersion2() {
+        Request request = new Request("留言板", new byte[0], "writeNewMessage");
+        request.setRequestId(7);
+        Request decoded = roundTrip(Codec.BINARY_V2, request, Request.class);
+        assertEquals(7, decoded.getRequestId());
+        assertEquals("writeNewMessage", decoded.getRequestTarget());
+        assertEquals("留言板", decoded.getMessage());
+        assertEquals(0, decoded.getData().length);
+        // 版本2的请求不能被版本3的编解码器解码
+        assertNull(Codec.BINARY.decode(Codec.BINARY_V2.encode(request), Request.class));
+    }
+
+    public void testResponse() {
+        Response response = new Response("登录成功", new byte[] {-1, 0, 127}, 200);
+        response.setRequestId(Response.PUSH_REQUEST_ID);
+        for (final Codec codec : new Codec[] {Codec.BINARY, Codec.BINARY_V2}) {
+            Response decoded = roundTrip(codec, response, Response.class);
+            assertEquals(Response.PUSH_REQUEST_ID, decoded.getRequestId());
+            assertEquals("登录成功", decoded.getMessage());
+            assertTrue(Arrays.equals(new byte[] {-1, 0, 127}, decoded.getData()));
+            assertEquals(200, decoded.getStatusCode());
+        }
+
+        Response empty = roundTrip(Codec.BINARY, new Response(null, null, 404), Response.class);
+        assertNull(empty.getMessage());
+        assertNull(empty.getData());
+        assertEquals(404, empty.getStatusCode());
+    }
+
+    public void testUserEntity() {
+        UserEntity decoded = roundTrip(Codec.BINARY, new UserEntity("用户", "e10adc3949ba59abbe56e057f20f883e"), UserEntity.class);
+        assertEquals("用户", decoded.getUserName());
+        assertEquals("e10adc3949ba59abbe56e057f20f883e", decoded.getPassword_md5());
+
+        decoded = roundTrip(Codec.BINARY, new UserEntity("", null), UserEntity.class);
+        assertEquals("", decoded.getUserName());
+        assertNull(decoded.getPassword_md5());
+    }
+
+    public void testMessageEntity() {
+        MessageEntity message = new MessageEntity("你好，world 😀\n第二行", TIME);
+        assertMessageEquals(message, roundTrip(Codec.BINARY, message, MessageEntity.class));
+
+        MessageEntity empty = new MessageEntity(null, null);
+        assertMessageEquals(empty, roundTrip(Codec.BINARY, empty, MessageEntity.class));
+
+        // 1970年之前的时间编码为负数的时间戳
+        MessageEntity old = new MessageEntity("old", LocalDateTime.of(1900, 1, 1, 0, 0));
+        assertMessageEquals(old, roundTrip(Codec.BINARY, old, MessageEntity.class));
+    }
+
+    public void testStringList() {
+        List<String> list = Arrays.asList("2026-10-18 09:30:15,第一条", "", null, "x".repeat(100000));
+        @SuppressWarnings("unchecked")
+        List<String> decoded = roundTrip(Codec.BINARY, new ArrayList<>(list), List.class);
+        assertEquals(list, decoded);
+
+        assertTrue(roundTrip(Codec.BINARY, new ArrayList<String>(), List.class).isEmpty());
+    }
+
+    public void testPageQuery() {
+        for (final PageQuery query : new PageQuery[] {new PageQuery(-1, 50, true), new PageQuery(Long.MAX_VALUE, 1000, false),
+                new PageQuery(0, 0, false)}) {
+            PageQuery decoded = roundTrip(Codec.BINARY, query, PageQuery.class);
+            assertEquals(query.getCursor(), decoded.getCursor());
+            assertEquals(query.getPageSize(), decoded.getPageSize());
+            assertEquals(query.isNewestFirst(), decoded.isNewestFirst());
+        }
+    }
+
+    public void testMessagePage() {
+        ArrayList<String> messages = new ArrayList<>(Arrays.asList("a", "留言", ""));
+        MessagePage decoded = roundTrip(Codec.BINARY, new MessagePage(messages, 12345678901L), MessagePage.class);
+        assertEquals(messages, decoded.getMessages());
+        assertEquals(12345678901L, decoded.getNextCursor());
+
+        decoded = roundTrip(Codec.BINARY, new MessagePage(new ArrayList<>(), -1), MessagePage.class);
+        assertTrue(decoded.getMessages().isEmpty());
+        assertEquals(-1, decoded.getNextCursor());
+        assertFalse(decoded.hasMore());
+    }
+
+    public void testMessageBatch() {
+        ArrayList<MessageEntity> messages = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            messages.add(new MessageEntity("批量留言 " + i, TIME.plus(i, ChronoUnit.MILLIS)));
+        }
+        messages.add(new MessageEntity(null, null));
+        MessageBatch decoded = roundTrip(Codec.BINARY, new MessageBatch(messages), MessageBatch.class);
+        assertEquals(messages.size(), decoded.getMessages().size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertMessageEquals(messages.get(i), decoded.getMessages().get(i));
+        }
+
+        assertTrue(roundTrip(Codec.BINARY, new MessageBatch(new ArrayList<>()), MessageBatch.class).getMessages().isEmpty());
+    }
+
+    public void testBatchResult() {
+        int[] statusCodes = {200, 400, 500, 200, 0};
+        BatchResult decoded = roundTrip(Codec.BINARY, new BatchResult(statusCodes), BatchResult.class);
+        assertTrue(Arrays.equals(statusCodes, decoded.getStatusCodes()));
+        assertEquals(2, decoded.getSuccessCount());
+
+        assertEquals(0, roundTrip(Codec.BINARY, new BatchResult(new int[0]), BatchResult.class).getStatusCodes().length);
+    }
+
+    public void testTimeRangeQuery() {
+        TimeRangeQuery query = new TimeRangeQuery(TIME, TIME.plusDays(1), 99, 200);
+        TimeRangeQuery decoded = roundTrip(Codec.BINARY, query, TimeRangeQuery.class);
+        assertEquals(TIME, decoded.getFrom());
+        assertEquals(TIME.plusDays(1), decoded.getTo());
+        assertEquals(99, decoded.getCursor());
+        assertEquals(200, decoded.getPageSize());
+
+        // 不限制起止时间
+        decoded = roundTrip(Codec.BINARY, new TimeRangeQuery(null, null, 0, 10), TimeRangeQuery.class);
+        assertNull(decoded.getFrom());
+        assertNull(decoded.getTo());
+    }
+
+    public void testSearchQuery() {
+        SearchQuery decoded = roundTrip(Codec.BINARY, new SearchQuery("天气 不错", -1, 20), SearchQuery.class);
+        assertEquals("天气 不错", decoded.getKeywords());
+        assertEquals(-1, decoded.getCursor());
+        assertEquals(20, decoded.getPageSize());
+    }
+
+    /**
+     * 解码缓冲池中的帧时，数据只占数组的一部分
+     */
+    public void testDecodeWithOffset() {
+        byte[] bytes = Codec.BINARY.encode(new MessageEntity("offset", TIME));
+        byte[] padded = new byte[bytes.length + 10];
+        Arrays.fill(padded, (byte) 0x55);
+        System.arraycopy(bytes, 0, padded, 3, bytes.length);
+        assertSame(Codec.BINARY, Codec.of(Arrays.copyOfRange(padded, 3, padded.length)));
+        MessageEntity decoded = Codec.BINARY.decode(padded, 3, bytes.length, MessageEntity.class);
+        assertNotNull(decoded);
+        assertEquals("offset", decoded.getContent());
+    }
+
+    public void testUnsupportedAndMismatchedTypes() {
+        assertNull(Codec.BINARY.encode(new Object()));
+        assertNull(Codec.BINARY.encode(null));
+        byte[] bytes = Codec.BINARY.encode(new UserEntity("root", "pwd"));
+        assertNull(Codec.BINARY.decode(bytes, MessageEntity.class));
+        assertNull(Codec.BINARY.decode(null, UserEntity.class));
+    }
+
+    /**
+     * 截断的数据、多余的字节、错误的魔数和越界的长度都解码为null，不抛出异常
+     */
+    public void testCorruptData() {
+        byte[] bytes = Codec.BINARY.encode(new Response("message", new byte[] {1, 2, 3}, 200));
+        for (int length = 0; length < bytes.length; length++) {
+            assertNull(Codec.BINARY.decode(Arrays.copyOf(bytes, length), Response.class));
+        }
+        assertNull(Codec.BINARY.decode(Arrays.copyOf(bytes, bytes.length + 1), Response.class));
+
+        byte[] wrongMagic = bytes.clone();
+        wrongMagic[0] = 0;
+        assertNull(Codec.BINARY.decode(wrongMagic, Response.class));
+
+        // 批量写入的留言数量远大于实际数据
+        byte[] batch = Codec.BINARY.encode(new MessageBatch(new ArrayList<>()));
+        byte[] hugeCount = Arrays.copyOf(batch, batch.length + 4);
+        hugeCount[3] = (byte) 0xFF;
+        hugeCount[4] = (byte) 0xFF;
+        hugeCount[5] = (byte) 0xFF;
+        hugeCount[6] = (byte) 0x07;
+        assertNull(Codec.BINARY.decode(hugeCount, MessageBatch.class));
+    }
+}
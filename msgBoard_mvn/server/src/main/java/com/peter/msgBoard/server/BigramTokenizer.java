@@ -0,0 +1,88 @@
+package com.peter.msgBoard.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * 全文索引的分词器。
+ * 中日韩文字之间没有空格，按相邻的两个字切分（二元切分），例如"留言板"切分为"留言"和"言板"，建立索引时同时切分出每个单字，
+ * 只有一个字的查询词按单字查找，两个字以上的查询词只按二元词查找。
+ * 其他的字母和数字按连续的一段切分为一个词并转换为小写，其余的字符都视为分隔符。
+ */
+public class BigramTokenizer {
+    // 字母和数字组成的词的最大长度（字符数），超出的部分截断
+    private static final int MAX_WORD_LENGTH = 64;
+    // 查询词切分出的词的最大数量，超出的词忽略
+    private static final int MAX_QUERY_TERMS = 32;
+
+    private BigramTokenizer() {}
+
+    /**
+     * 切分留言，统计每个词出现的次数
+     * @param text 留言内容
+     * @return 词 -> 出现的次数
+     */
+    protected static HashMap<String, Integer> index(String text) {
+        HashMap<String, Integer> terms = new HashMap<>();
+        tokenize(text, false, term -> terms.merge(term, 1, Integer::sum));
+        return terms;
+    }
+
+    /**
+     * 切分查询词，重复的词只保留一个
+     * @param text 查询词
+     * @return 切分出的词，按出现的顺序排列
+     */
+    protected static ArrayList<String> query(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        tokenize(text, true, term -> {
+            if (terms.size() < MAX_QUERY_TERMS) terms.add(term);
+        });
+        return new ArrayList<>(terms);
+    }
+
+    private static void tokenize(String text, boolean query, Consumer<String> sink) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                // 一段连续的中日韩文字
+                int runStart = i;
+                int runLength = 0;
+                int previous = -1;
+                while (i < length && isCjk(codePoint = text.codePointAt(i))) {
+                    int next = i + Character.charCount(codePoint);
+                    if (!query) sink.accept(text.substring(i, next));
+                    if (previous >= 0) sink.accept(text.substring(previous, next));
+                    previous = i;
+                    runLength++;
+                    i = next;
+                }
+                if (query && runLength == 1) sink.accept(text.substring(runStart, i));
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                StringBuilder word = new StringBuilder();
+                int wordLength = 0;
+                while (i < length && !isCjk(codePoint = text.codePointAt(i)) && Character.isLetterOrDigit(codePoint)) {
+                    if (wordLength++ < MAX_WORD_LENGTH) word.appendCodePoint(codePoint);
+                    i += Character.charCount(codePoint);
+                }
+                sink.accept(word.toString().toLowerCase(Locale.ROOT));
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        // 常见字符不查找文字类别
+        if (codePoint < 0x2E80) return false;
+        if (codePoint >= 0x4E00 && codePoint <= 0x9FFF) return true;
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
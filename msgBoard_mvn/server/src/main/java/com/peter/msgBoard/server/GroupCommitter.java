@@ -0,0 +1,223 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.SegmentedLog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * 组提交。
+ * 保存留言的线程只把要追加的记录放入队列，由一个提交线程负责写入：提交线程每次取出队列中所有排队的请求，
+ * 对每个涉及的日志只做一次追加，需要落盘时再做一次fsync，最后通知所有等待的线程。
+ * 提交线程写入期间到达的请求会在下一次提交中合并，因此并发写入越多，每次系统调用分摊的留言越多。
+ * fsync模式下提交线程取到第一个请求后还会在{@code windowNanos}内继续等待并发到达的请求，用少量延迟换取更少的fsync；
+ * 其他模式下写操作的代价很小，不再额外等待。同一个日志的记录按入队的顺序追加。
+ */
+public class GroupCommitter implements Runnable {
+    // 提交队列的容量，队列已满时保存留言的线程等待，避免buffer模式下积压的留言占用过多内存
+    private static final int QUEUE_SIZE = 8192;
+    // 一次提交最多收集的记录数，达到后不再等待窗口结束
+    private static final int MAX_BATCH_RECORDS = 4096;
+
+    /**
+     * 持久化级别，决定保存留言的线程在什么时候返回
+     */
+    public enum Durability {
+        // 放入提交队列后立即返回，服务器进程崩溃时可能丢失尚未写入的留言
+        BUFFER,
+        // 写入操作系统的页缓存后返回，服务器进程崩溃不会丢失留言，操作系统崩溃或断电时可能丢失
+        WRITE,
+        // 刷新到磁盘后返回
+        FSYNC
+    }
+
+    private final BlockingQueue<Pending> queue;
+    private final Durability durability;
+    private final long windowNanos;
+    private final Thread thread;
+    private volatile boolean running;
+
+    protected GroupCommitter(Durability durability, long windowMicros) {
+        this.queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.durability = durability;
+        this.windowNanos = durability == Durability.FSYNC ? Math.max(0, windowMicros) * 1000 : 0;
+        this.running = true;
+        this.thread = new Thread(this, "group-committer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        // 退出前写完队列中剩余的留言
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    protected Durability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * 提交要追加的记录，按持久化级别等待
+     * @param log 要追加到的日志
+     * @param records 要追加的记录
+     * @param onDone 写入完成（无论成功与否）后调用，参数为第一条记录在日志中的序号，记录没有追加到日志时为-1。
+     *               由提交线程按追加的顺序执行，记录没有进入队列时由调用线程执行
+     * @return 是否达到了持久化级别，buffer模式下只要放入队列就返回true
+     */
+    protected boolean commit(SegmentedLog log, List<byte[]> records, LongConsumer onDone) {
+        Pending pending = new Pending(log, records, onDone);
+        try {
+            if (!this.running) {
+                onDone.accept(-1);
+                return false;
+            }
+            this.queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onDone.accept(-1);
+            return false;
+        }
+
+        if (this.durability == Durability.BUFFER) return true;
+        try {
+            pending.future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception ignore) {
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Pending> batch = new ArrayList<>();
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Pending first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                this.collect(batch, first.records.size());
+                this.write(batch);
+            } catch (InterruptedException ignore) {
+                // 提交线程不会被中断，中断正在读写的FileChannel会导致通道被关闭
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // 在窗口期内继续收集请求，队列中已有的请求总是一并取出
+    private void collect(List<Pending> batch, int records) throws InterruptedException {
+        long deadline = System.nanoTime() + this.windowNanos;
+        while (records < MAX_BATCH_RECORDS) {
+            Pending pending = this.queue.poll();
+            if (pending == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || !this.running) return;
+                pending = this.queue.poll(wait, TimeUnit.NANOSECONDS);
+                if (pending == null) return;
+            }
+            batch.add(pending);
+            records += pending.records.size();
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        Map<SegmentedLog, List<Pending>> byLog = new LinkedHashMap<>();
+        for (final Pending pending : batch) {
+            byLog.computeIfAbsent(pending.log, key -> new ArrayList<>()).add(pending);
+        }
+
+        // 先追加所有日志，再统一fsync，多个日志的刷新可以由磁盘合并处理
+        ArrayList<SegmentedLog> written = new ArrayList<>(byLog.size());
+        for (final Map.Entry<SegmentedLog, List<Pending>> entry : byLog.entrySet()) {
+            List<Pending> pendings = entry.getValue();
+            try {
+                long sequence;
+                if (pendings.size() == 1) {
+                    sequence = entry.getKey().append(pendings.get(0).records);
+                } else {
+                    ArrayList<byte[]> records = new ArrayList<>();
+                    for (final Pending pending : pendings) {
+                        records.addAll(pending.records);
+                    }
+                    sequence = entry.getKey().append(records);
+                }
+                for (final Pending pending : pendings) {
+                    pending.firstSequence = sequence;
+                    sequence += pending.records.size();
+                }
+                written.add(entry.getKey());
+            } catch (Exception e) {
+                this.fail(pendings, e);
+            }
+        }
+
+        for (final SegmentedLog log : written) {
+            List<Pending> pendings = byLog.get(log);
+            try {
+                if (this.durability == Durability.FSYNC) log.force();
+                // 先执行回调再唤醒等待的线程，保存留言的请求返回后缓存中已经包含新留言
+                for (final Pending pending : pendings) {
+                    done(pending);
+                    pending.future.complete(null);
+                }
+            } catch (Exception e) {
+                this.fail(pendings, e);
+            }
+        }
+    }
+
+    private void fail(List<Pending> pendings, Exception e) {
+        AsyncLogger.log(AsyncLogger.Level.ERROR, null, "保存留言失败：", String.valueOf(e));
+        for (final Pending pending : pendings) {
+            done(pending);
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    // 回调抛出的异常不能影响同一批次中的其他请求，也不能让等待的线程永远阻塞
+    private static void done(Pending pending) {
+        try {
+            pending.onDone.accept(pending.firstSequence);
+        } catch (Exception e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, null, "留言写入后的回调失败：", String.valueOf(e));
+        }
+    }
+
+    /**
+     * 停止接收新的留言，写完队列中剩余的留言后返回
+     */
+    protected void stop() {
+        this.running = false;
+        try {
+            this.thread.join();
+        } catch (InterruptedException ignore) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Pending {
+        private final SegmentedLog log;
+        private final List<byte[]> records;
+        private final LongConsumer onDone;
+        private final CompletableFuture<Void> future;
+        // 第一条记录在日志中的序号，追加之前为-1。追加之后即使fsync失败，记录仍然可以读到
+        private long firstSequence;
+
+        private Pending(SegmentedLog log, List<byte[]> records, LongConsumer onDone) {
+            this.log = log;
+            this.records = records;
+            this.onDone = onDone;
+            this.future = new CompletableFuture<>();
+            this.firstSequence = -1;
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.peter.msgBoard.server;
 
+import com.peter.msgBoard.utils.AsyncLogger;
+
 import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) throws IOException {
+        if (AsyncLogger.start(ServerConfig.LOG_FILE, ServerConfig.LOG_LEVEL, ServerConfig.LOG_SAMPLE_RATE,
+                ServerConfig.LOG_BUFFER_SIZE, ServerConfig.LOG_MAX_FILE_SIZE, ServerConfig.LOG_MAX_FILES)) {
+            System.out.println("日志输出到：" + ("-".equals(ServerConfig.LOG_FILE) ? "标准输出" : ServerConfig.LOG_FILE));
+        } else {
+            System.out.println("无法创建日志文件 " + ServerConfig.LOG_FILE + "，日志将同步输出到标准输出");
+        }
         new Server(new UserManager());
     }
 }
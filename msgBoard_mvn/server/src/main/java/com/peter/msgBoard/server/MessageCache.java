@@ -0,0 +1,207 @@
+package com.peter.msgBoard.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 留言缓存。
+ * 按用户缓存完整的留言列表，热门留言板的displayAllMessages请求不需要每次都从磁盘读取并解码。
+ * 所有列表估算的总字节数不超过{@code maxBytes}，超出时淘汰最久未使用的列表，单个超过上限的列表不缓存。
+ * <p>
+ * 缓存是写穿的：留言写入日志后，提交线程按写入的顺序调用{@link #append(String, long, List)}，已缓存的列表直接追加新留言，
+ * 因此缓存的内容始终与日志一致，只有日志开头的留言被删除时需要通过{@link #invalidate(String)}失效。每个列表记录其后下一条留言的序号，留言在写入日志之后、通知缓存之前就可能被加载，
+ * 通知时跳过列表中已有的留言。从磁盘加载列表与写入新留言并发时，加载到的列表可能缺少新留言，
+ * 这样的列表不会放入缓存，见{@link #beginLoad(String)}。
+ */
+public class MessageCache {
+    // 估算每条留言除字符以外占用的字节数：String和byte[]的对象头、字段以及列表中的引用
+    private static final int LINE_OVERHEAD = 64;
+
+    private final long maxBytes;
+    // 用户名 -> 留言列表，按访问顺序排列，第一个为最久未使用的列表
+    private final LinkedHashMap<String, Entry> entries;
+    // 正在从磁盘加载列表的用户 -> 加载状态
+    private final Map<String, Load> loads;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    protected MessageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.loads = new HashMap<>();
+        this.bytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * 获取缓存的留言列表
+     * @param userName 用户名
+     * @return 留言列表的副本，没有缓存时返回null
+     */
+    protected synchronized ArrayList<String> get(String userName) {
+        Entry entry = this.entries.get(userName);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return new ArrayList<>(entry.lines);
+    }
+
+    /**
+     * 开始从磁盘加载留言列表，必须在读取磁盘之前调用，读取完成后调用{@link #endLoad(String, Load, MessageStore.Messages)}
+     * @param userName 用户名
+     * @return 加载状态，缓存已禁用时返回null
+     */
+    protected synchronized Load beginLoad(String userName) {
+        if (this.maxBytes <= 0) return null;
+        Load load = this.loads.computeIfAbsent(userName, key -> new Load());
+        load.loaders++;
+        return load;
+    }
+
+    /**
+     * 结束加载，加载期间该用户没有新留言写入时将列表放入缓存
+     * @param userName 用户名
+     * @param load {@link #beginLoad(String)}返回的加载状态
+     * @param messages 从磁盘读取到的完整留言列表，读取失败时为null
+     */
+    protected synchronized void endLoad(String userName, Load load, MessageStore.Messages messages) {
+        if (load == null) return;
+        if (--load.loaders == 0) this.loads.remove(userName);
+        if (load.dirty || messages == null || this.entries.containsKey(userName)) return;
+
+        ArrayList<String> lines = messages.getLines();
+        long size = 0;
+        for (final String line : lines) {
+            size += weigh(line);
+        }
+        if (size > this.maxBytes) return;
+
+        this.entries.put(userName, new Entry(new ArrayList<>(lines), messages.getFirstSequence() + lines.size(), size));
+        this.bytes += size;
+        this.evictIfNeeded();
+    }
+
+    /**
+     * 新留言已经写入日志，由提交线程按写入的顺序调用
+     * @param userName 用户名
+     * @param firstSequence 第一条新留言的序号
+     * @param lines 新写入的留言
+     */
+    protected synchronized void append(String userName, long firstSequence, List<String> lines) {
+        Load load = this.loads.get(userName);
+        if (load != null) load.dirty = true;
+
+        Entry entry = this.entries.get(userName);
+        if (entry == null) return;
+        // 列表已经包含的留言不再追加，中间缺少留言时列表已经无法与日志保持一致
+        long skip = entry.nextSequence - firstSequence;
+        if (skip < 0) {
+            this.entries.remove(userName);
+            this.bytes -= entry.bytes;
+            return;
+        }
+        for (int i = (int) Math.min(skip, lines.size()); i < lines.size(); i++) {
+            String line = lines.get(i);
+            long size = weigh(line);
+            entry.lines.add(line);
+            entry.bytes += size;
+            this.bytes += size;
+        }
+        entry.nextSequence = Math.max(entry.nextSequence, firstSequence + lines.size());
+        if (entry.bytes > this.maxBytes) {
+            this.entries.remove(userName);
+            this.bytes -= entry.bytes;
+            this.evictions++;
+        }
+        this.evictIfNeeded();
+    }
+
+    /**
+     * 日志开头的留言已经删除，移除该用户缓存的列表，正在加载的列表可能包含已经删除的留言，同样不放入缓存
+     * @param userName 用户名
+     */
+    protected synchronized void invalidate(String userName) {
+        Load load = this.loads.get(userName);
+        if (load != null) load.dirty = true;
+        Entry entry = this.entries.remove(userName);
+        if (entry != null) this.bytes -= entry.bytes;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.bytes > this.maxBytes && iterator.hasNext()) {
+            this.bytes -= iterator.next().bytes;
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+
+    private static long weigh(String line) {
+        return LINE_OVERHEAD + 2L * line.length();
+    }
+
+    protected synchronized long getHitCount() {
+        return this.hits;
+    }
+
+    protected synchronized long getMissCount() {
+        return this.misses;
+    }
+
+    protected synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+
+    /**
+     * @return 缓存的所有留言列表估算的总字节数
+     */
+    protected synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    protected long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return 缓存的留言列表数量
+     */
+    protected synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    private static class Entry {
+        private final ArrayList<String> lines;
+        // 列表中最后一条留言的序号 + 1
+        private long nextSequence;
+        private long bytes;
+
+        private Entry(ArrayList<String> lines, long nextSequence, long bytes) {
+            this.lines = lines;
+            this.nextSequence = nextSequence;
+            this.bytes = bytes;
+        }
+    }
+
+    protected static class Load {
+        // 正在加载同一用户的请求数量
+        private int loaders;
+        // 加载期间是否有新留言写入或开头的留言被删除
+        private boolean dirty;
+
+        private Load() {
+            this.loaders = 0;
+            this.dirty = false;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 留言日志的后台压缩。
+ * 定期检查所有用户的留言日志，按保留策略（保留时间、保留数量）删除日志开头过期的段，开启归档时（默认关闭，见{@link ServerConfig#ARCHIVE_HOURS}）
+ * 还把一段时间没有修改的段压缩为只读的归档文件，归档的留言仍然可以正常读取，见{@link MessageStore#compact(String, long, long, long)}。
+ * 留言按段删除，删除后日志中剩下的留言可能略多于保留数量；段写满后不再修改，压缩在后台线程完成，不阻塞新留言的写入。
+ * 删除留言后从留言缓存中移除该用户的列表，下次查看时重新读取。
+ */
+public class MessageCompactor {
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    // 第一次检查前等待的最长时间（秒），服务器经常重启时也能进行压缩
+    private static final long MAX_INITIAL_DELAY_SECONDS = 60;
+
+    private final MessageStore messageStore;
+    private final MessageCache messageCache;
+    private final long retentionHours;
+    private final long retentionMessages;
+    private final long archiveHours;
+
+    /**
+     * @param messageStore 留言存储
+     * @param messageCache 留言缓存
+     * @param retentionHours 留言的保留时间（小时），不大于0表示永久保留
+     * @param retentionMessages 每个用户最多保留的留言数量，不大于0表示不限制
+     * @param archiveHours 段写满多少小时后归档，小于0表示不归档
+     */
+    protected MessageCompactor(MessageStore messageStore, MessageCache messageCache,
+                               long retentionHours, long retentionMessages, long archiveHours) {
+        this.messageStore = messageStore;
+        this.messageCache = messageCache;
+        this.retentionHours = retentionHours;
+        this.retentionMessages = retentionMessages;
+        this.archiveHours = archiveHours;
+    }
+
+    /**
+     * 启动后台压缩线程
+     * @param intervalSeconds 两次检查之间的间隔（秒），不大于0或者没有配置任何保留策略和归档时不启动
+     */
+    protected void start(long intervalSeconds) {
+        if (intervalSeconds <= 0 || (this.retentionHours <= 0 && this.retentionMessages <= 0 && this.archiveHours < 0)) return;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactAll, Math.min(intervalSeconds, MAX_INITIAL_DELAY_SECONDS),
+                intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 检查并压缩所有用户的留言日志
+     */
+    protected void compactAll() {
+        long now = System.currentTimeMillis();
+        long expireBefore = this.retentionHours > 0 ? now - this.retentionHours * HOUR_MILLIS : Long.MIN_VALUE;
+        long archiveBefore = this.archiveHours >= 0 ? now - this.archiveHours * HOUR_MILLIS : Long.MIN_VALUE;
+        for (final String userName : this.messageStore.listUsers()) {
+            // 抛出异常后定时任务不再执行，单个用户失败不影响其他用户
+            try {
+                long expired = this.messageStore.compact(userName, expireBefore, this.retentionMessages, archiveBefore);
+                if (expired > 0) this.messageCache.invalidate(userName);
+            } catch (Exception e) {
+                AsyncLogger.log(AsyncLogger.Level.WARN, null, "压缩留言日志失败：" + userName + "，", String.valueOf(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.entity.MessagePage;
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.IO;
+import com.peter.msgBoard.utils.SegmentedLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 留言存储。
+ * 每个用户的留言保存在留言目录下以用户名命名的子目录中，由一个{@link SegmentedLog}管理，每条留言一条记录，
+ * 记录内容为"日期,内容"的UTF-8编码。留言的序号从0开始连续递增，分页查询的游标即留言序号。
+ * 旧版本的留言文件（用户名.dat，每行一条留言）在第一次访问该用户的留言时导入日志，导入完成后重命名为用户名.dat.migrated。
+ * 新留言通过{@link GroupCommitter}写入，并发保存的留言合并为一次写操作，写入后按写入顺序通知{@link AppendListener}。
+ * <p>
+ * 打开的日志按用户名缓存，最多缓存{@code maxOpenLogs}个，超出时关闭最久未使用的日志，活跃用户的请求不需要重新打开文件。
+ * 每次使用日志前先获取句柄、用完后释放，正在使用（包括还在提交队列中等待写入）的日志不会被关闭，
+ * 因此所有日志都在使用时缓存的数量可能暂时超过上限。
+ * <p>
+ * 每个日志目录下还有一个{@link TimeIndex}，记录每块留言的发布时间范围，按时间范围查询时只读取时间有交集的块，时间索引随日志一起缓存。
+ * 以及一个{@link SearchIndex}，新留言写入日志后加入全文索引，全文索引也随日志一起缓存，所有用户的全文索引共用后台的写入线程和合并线程。
+ * <p>
+ * {@link #compact(String, long, long, long)}按保留策略删除日志开头的段，并把较旧的段压缩为归档文件，由{@link MessageCompactor}定期调用。
+ * 读取时以日志当前的第一条留言为起点，读取期间开头的段被删除时重新读取。
+ */
+public class MessageStore {
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    private static final String MIGRATING_SUFFIX = ".migrating";
+    // 导入旧版本留言文件时每次追加的留言数量
+    private static final int MIGRATE_BATCH_SIZE = 1000;
+
+    private final String dataDir;
+    private final long segmentSize;
+    // 是否通过内存映射读取日志中已经写满的段，映射随日志一起缓存，日志被淘汰关闭时释放
+    private final boolean mappedReads;
+    private final GroupCommitter committer;
+    private final AppendListener appendListener;
+    private final int maxOpenLogs;
+    // 全文索引在内存中积累的留言数量达到该值后写成段
+    private final int searchFlushMessages;
+    private final ExecutorService searchFlusher;
+    private final ExecutorService searchMerger;
+    // 用户名 -> 日志句柄，按访问顺序排列，第一个为最久未使用的句柄，由this保护
+    private final LinkedHashMap<String, Handle> handles;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    // 按保留策略删除的留言数量和归档的段数
+    private final LongAdder expiredMessages;
+    private final LongAdder archivedSegments;
+
+    protected MessageStore(String dataDir, long segmentSize, boolean mappedReads, GroupCommitter committer,
+                           AppendListener appendListener, int maxOpenLogs, int searchFlushMessages) {
+        this.dataDir = dataDir;
+        this.segmentSize = segmentSize;
+        this.mappedReads = mappedReads;
+        this.committer = committer;
+        this.appendListener = appendListener;
+        this.maxOpenLogs = Math.max(1, maxOpenLogs);
+        this.searchFlushMessages = Math.max(1, searchFlushMessages);
+        this.searchFlusher = newDaemonExecutor("search-flusher");
+        this.searchMerger = newDaemonExecutor("search-merger");
+        this.handles = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.expiredMessages = new LongAdder();
+        this.archivedSegments = new LongAdder();
+    }
+
+    private static ExecutorService newDaemonExecutor(String name) {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return 请求的日志已经打开的次数
+     */
+    protected long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return 请求的日志需要重新打开的次数
+     */
+    protected long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return 因缓存已满而关闭的日志数量
+     */
+    protected long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return 按保留策略删除的留言数量
+     */
+    protected long getExpiredCount() {
+        return this.expiredMessages.sum();
+    }
+
+    /**
+     * @return 压缩为归档文件的段数
+     */
+    protected long getArchivedCount() {
+        return this.archivedSegments.sum();
+    }
+
+    /**
+     * @return 当前打开的日志数量
+     */
+    protected synchronized int getOpenCount() {
+        return this.handles.size();
+    }
+
+    /**
+     * 获取用户的日志句柄，必要时打开日志并导入旧版本的留言文件，使用完毕后必须调用{@link #release(Handle)}。
+     * 打开日志在全局锁之外进行，同一用户的其他请求等待打开完成，不影响其他用户
+     * @param userName 用户名
+     * @param create 日志不存在时是否创建
+     * @return 日志句柄，日志不存在且不创建时返回null
+     */
+    private Handle acquire(String userName, boolean create) throws IOException {
+        while (true) {
+            Handle handle;
+            boolean opener = false;
+            synchronized (this) {
+                handle = this.handles.get(userName);
+                if (handle == null) {
+                    handle = new Handle(userName);
+                    this.handles.put(userName, handle);
+                    opener = true;
+                    this.misses.increment();
+                } else {
+                    this.hits.increment();
+                }
+                handle.refCount++;
+            }
+
+            if (opener) {
+                SegmentedLog log = null;
+                TimeIndex timeIndex = null;
+                SearchIndex searchIndex = null;
+                try {
+                    log = this.openLog(userName, create);
+                    if (log != null) {
+                        timeIndex = new TimeIndex(new File(this.dataDir + userName));
+                        searchIndex = this.openSearchIndex(userName, log);
+                    }
+                } finally {
+                    // 无论打开是否成功都要唤醒等待的请求，索引打开失败时关闭日志，按打开失败处理
+                    if (log != null && searchIndex == null) {
+                        if (timeIndex != null) timeIndex.close();
+                        try {
+                            log.close();
+                        } catch (IOException ignore) {
+                        }
+                        log = null;
+                        timeIndex = null;
+                    }
+                    synchronized (handle) {
+                        handle.log = log;
+                        handle.timeIndex = timeIndex;
+                        handle.searchIndex = searchIndex;
+                        handle.opened = true;
+                        handle.notifyAll();
+                    }
+                    if (log == null) this.discard(handle);
+                }
+                if (log == null) return null;
+                this.evictIfNeeded();
+                return handle;
+            }
+
+            SegmentedLog log = handle.await();
+            if (log != null) return handle;
+            // 打开该日志的请求不创建日志或打开失败，句柄已被丢弃
+            this.release(handle);
+            if (!create) return null;
+        }
+    }
+
+    /**
+     * 释放日志句柄
+     */
+    private void release(Handle handle) {
+        synchronized (this) {
+            handle.refCount--;
+        }
+        this.evictIfNeeded();
+    }
+
+    // 从缓存中移除没有打开日志的句柄
+    private void discard(Handle handle) {
+        synchronized (this) {
+            handle.refCount--;
+            if (this.handles.get(handle.userName) == handle) this.handles.remove(handle.userName);
+        }
+    }
+
+    // 缓存超出上限时，从最久未使用的句柄开始关闭没有被使用的日志
+    private void evictIfNeeded() {
+        ArrayList<Handle> evicted = null;
+        synchronized (this) {
+            if (this.handles.size() <= this.maxOpenLogs) return;
+            Iterator<Handle> iterator = this.handles.values().iterator();
+            while (this.handles.size() > this.maxOpenLogs && iterator.hasNext()) {
+                Handle handle = iterator.next();
+                if (handle.refCount > 0 || handle.log == null) continue;
+                iterator.remove();
+                if (evicted == null) evicted = new ArrayList<>();
+                evicted.add(handle);
+                this.evictions.increment();
+            }
+        }
+        if (evicted == null) return;
+        for (final Handle handle : evicted) {
+            handle.timeIndex.close();
+            handle.searchIndex.close();
+            try {
+                handle.log.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * 打开全文索引，并从日志补齐上次关闭时内存中的索引，之后写入的留言可以直接加入索引。
+     * 需要补齐的留言较多时（例如从没有建立过索引的日志）留到第一次查询时补齐，不阻塞打开日志
+     */
+    private SearchIndex openSearchIndex(String userName, SegmentedLog log) {
+        SearchIndex searchIndex = new SearchIndex(new File(this.dataDir + userName), log.getNextSequence(),
+                this.searchFlushMessages, this.searchFlusher, this.searchMerger);
+        try {
+            searchIndex.catchUp(log, this.searchFlushMessages);
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "补齐全文索引失败：", String.valueOf(e));
+        }
+        return searchIndex;
+    }
+
+    private SegmentedLog openLog(String userName, boolean create) throws IOException {
+        File dir = new File(this.dataDir + userName);
+        File legacyFile = new File(this.dataDir + userName + IO.FILE_SUFFIX);
+        boolean hasLegacy = legacyFile.isFile() && legacyFile.length() > 0;
+        if (!dir.isDirectory()) {
+            if (hasLegacy) {
+                migrate(legacyFile, dir);
+            } else if (!create) {
+                return null;
+            }
+        }
+        return SegmentedLog.open(dir, this.segmentSize, this.mappedReads);
+    }
+
+    /**
+     * 将旧版本的留言文件导入新的日志。先导入到临时目录，完成后再重命名为日志目录，导入中途失败不会留下不完整的日志
+     */
+    private void migrate(File legacyFile, File dir) throws IOException {
+        File tempDir = new File(dir.getPath() + MIGRATING_SUFFIX);
+        File[] stale = tempDir.listFiles();
+        if (stale != null) {
+            for (final File file : stale) {
+                Files.delete(file.toPath());
+            }
+        }
+
+        try (SegmentedLog log = SegmentedLog.open(tempDir, this.segmentSize);
+             BufferedReader reader = Files.newBufferedReader(legacyFile.toPath(), StandardCharsets.UTF_8)) {
+            ArrayList<byte[]> batch = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                batch.add(line.getBytes(StandardCharsets.UTF_8));
+                if (batch.size() == MIGRATE_BATCH_SIZE) {
+                    log.append(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) log.append(batch);
+            log.force();
+        }
+
+        if (!tempDir.renameTo(dir)) throw new IOException("重命名目录失败：" + tempDir);
+        if (!legacyFile.renameTo(new File(legacyFile.getPath() + MIGRATED_SUFFIX)))
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "重命名旧版本留言文件失败：", String.valueOf(legacyFile));
+    }
+
+    /**
+     * 追加留言，按服务器配置的持久化级别等待写入完成
+     * @param userName 用户名
+     * @param lines 要追加的留言，每条为"日期,内容"
+     * @return 是否保存成功
+     */
+    protected boolean append(String userName, List<String> lines) {
+        Handle handle;
+        ArrayList<byte[]> records = new ArrayList<>(lines.size());
+        try {
+            for (final String line : lines) {
+                records.add(line.getBytes(StandardCharsets.UTF_8));
+            }
+            handle = this.acquire(userName, true);
+        } catch (Exception ignore) {
+            return false;
+        }
+        // 句柄在写入完成后由提交线程释放，buffer模式下本方法返回时留言可能还没有写入
+        return this.committer.commit(handle.log, records, firstSequence -> {
+            try {
+                if (firstSequence >= 0) {
+                    handle.searchIndex.add(firstSequence, lines);
+                    this.appendListener.appended(userName, firstSequence, lines);
+                }
+            } finally {
+                this.release(handle);
+            }
+        });
+    }
+
+    /**
+     * 读取从指定序号开始的若干条留言
+     * @param userName 用户名
+     * @param from 第一条留言的序号，小于最早的留言的序号时从最早的留言开始
+     * @param maxCount 最多读取的留言数量
+     * @return 读取到的留言（从旧到新）及第一条留言的序号，该用户没有任何留言记录或读取失败时返回null
+     */
+    protected Messages read(String userName, long from, int maxCount) {
+        Handle handle = null;
+        try {
+            handle = this.acquire(userName, false);
+            if (handle == null) return null;
+            SegmentedLog log = handle.log;
+            while (true) {
+                long first = Math.max(from, log.getFirstSequence());
+                List<byte[]> records = log.read(first, maxCount);
+                // 读取期间开头的留言被删除时，读到的留言不是从first开始
+                if (log.getFirstSequence() <= first) return new Messages(first, decode(records));
+            }
+        } catch (Exception ignore) {
+            return null;
+        } finally {
+            if (handle != null) this.release(handle);
+        }
+    }
+
+    /**
+     * 分页读取留言
+     * @param userName 用户名
+     * @param cursor 游标，即留言序号。正序时为第一条留言的序号，倒序时为最后一条留言的序号 + 1（小于0表示从最新的留言开始）
+     * @param pageSize 每页的留言数量
+     * @param newestFirst 是否按从新到旧的顺序读取
+     * @return 一页留言及下一页的游标，该用户没有任何留言记录或读取失败时返回null
+     */
+    protected MessagePage readPage(String userName, long cursor, int pageSize, boolean newestFirst) {
+        Handle handle = null;
+        try {
+            handle = this.acquire(userName, false);
+            if (handle == null) return null;
+
+            SegmentedLog log = handle.log;
+            while (true) {
+                long first = log.getFirstSequence();
+                long next = log.getNextSequence();
+                if (newestFirst) {
+                    long end = cursor < 0 || cursor > next ? next : Math.max(cursor, first);
+                    long start = Math.max(first, end - pageSize);
+                    List<byte[]> records = log.read(start, (int) (end - start));
+                    // 读取期间开头的留言被删除时重新读取
+                    if (log.getFirstSequence() > start) continue;
+                    ArrayList<String> lines = decode(records);
+                    Collections.reverse(lines);
+                    return new MessagePage(lines, start > first ? start : -1);
+                }
+
+                long start = Math.max(first, cursor);
+                List<byte[]> records = log.read(start, pageSize);
+                if (log.getFirstSequence() > start) continue;
+                long end = start + records.size();
+                return new MessagePage(decode(records), end < next ? end : -1);
+            }
+        } catch (Exception ignore) {
+            return null;
+        } finally {
+            if (handle != null) this.release(handle);
+        }
+    }
+
+    /**
+     * 按时间范围读取留言，只读取时间索引中时间范围有交集的块
+     * @param userName 用户名
+     * @param from 起始时间（按UTC换算的毫秒数，含）
+     * @param to 结束时间（按UTC换算的毫秒数，不含）
+     * @param cursor 开始查找的留言序号
+     * @param pageSize 每页的留言数量
+     * @return 一页留言（从旧到新）及下一页的游标，该用户没有任何留言记录或读取失败时返回null
+     */
+    protected MessagePage readRange(String userName, long from, long to, long cursor, int pageSize) {
+        Handle handle = null;
+        try {
+            handle = this.acquire(userName, false);
+            if (handle == null) return null;
+
+            SegmentedLog log = handle.log;
+            TimeIndex timeIndex = handle.timeIndex;
+            timeIndex.catchUp(log);
+            // 没有时间的留言不属于任何时间范围
+            from = Math.max(from, TimeIndex.NO_TIME + 1);
+            long end = timeIndex.getIndexedNext();
+            long sequence = Math.max(cursor, log.getFirstSequence());
+            ArrayList<String> lines = new ArrayList<>(Math.min(pageSize, 1024));
+            while ((sequence = timeIndex.nextCandidate(sequence, from, to)) < end) {
+                long blockEnd = Math.min(end, TimeIndex.blockEnd(sequence));
+                List<byte[]> records = log.read(sequence, (int) (blockEnd - sequence));
+                if (log.getFirstSequence() > sequence) {
+                    // 读取期间开头的留言被删除，从新的第一条留言继续查找
+                    sequence = log.getFirstSequence();
+                    continue;
+                }
+                for (final byte[] record : records) {
+                    long time = TimeIndex.parseTime(record);
+                    if (time >= from && time < to) {
+                        // 多找到一条时才返回游标，最后一页不会返回指向空页的游标
+                        if (lines.size() == pageSize) return new MessagePage(lines, sequence);
+                        lines.add(new String(record, StandardCharsets.UTF_8));
+                    }
+                    sequence++;
+                }
+                sequence = blockEnd;
+            }
+            return new MessagePage(lines, -1);
+        } catch (Exception ignore) {
+            return null;
+        } finally {
+            if (handle != null) this.release(handle);
+        }
+    }
+
+    /**
+     * 全文搜索留言，通过全文索引查找包含全部查询词的留言，按相关度分页返回
+     * @param userName 用户名
+     * @param keywords 查询词
+     * @param cursor 游标，即已经返回的结果数量
+     * @param pageSize 每页的留言数量
+     * @return 一页留言（按相关度从高到低）及下一页的游标，该用户没有任何留言记录或读取失败时返回null
+     */
+    protected MessagePage search(String userName, String keywords, long cursor, int pageSize) {
+        Handle handle = null;
+        try {
+            handle = this.acquire(userName, false);
+            if (handle == null) return null;
+
+            SegmentedLog log = handle.log;
+            SearchIndex searchIndex = handle.searchIndex;
+            searchIndex.catchUp(log, Long.MAX_VALUE);
+            int start = (int) Math.min(Math.max(cursor, 0), SearchIndex.MAX_HITS);
+            // 多选出一条，用于判断是否还有下一页
+            long[] hits = searchIndex.search(BigramTokenizer.query(keywords), log.getFirstSequence(), start + pageSize + 1);
+            int end = Math.min(start + pageSize, hits.length);
+            ArrayList<String> lines = new ArrayList<>(Math.max(0, end - start));
+            for (int i = start; i < end; i++) {
+                List<byte[]> records = log.read(hits[i], 1);
+                // 读取期间该留言被删除时读到的是其他留言
+                if (log.getFirstSequence() <= hits[i]) lines.addAll(decode(records));
+            }
+            return new MessagePage(lines, end < hits.length ? end : -1);
+        } catch (Exception ignore) {
+            return null;
+        } finally {
+            if (handle != null) this.release(handle);
+        }
+    }
+
+    /**
+     * 按保留策略压缩用户的留言日志：删除日志开头过期的段，并删除全文索引中只包含这些留言的段，再把较旧的只读段压缩为归档文件。
+     * 先根据文件名和修改时间判断，不需要处理的日志不会被打开
+     * @param userName 用户名
+     * @param expireBefore 最后修改时间早于该时间（毫秒）的段过期，{@link Long#MIN_VALUE}表示不按时间过期
+     * @param maxMessages 最多保留的留言数量，不大于0表示不限制
+     * @param archiveBefore 最后修改时间早于该时间（毫秒）的段归档，{@link Long#MIN_VALUE}表示不归档
+     * @return 删除的留言数量
+     */
+    protected long compact(String userName, long expireBefore, long maxMessages, long archiveBefore) {
+        if (!SegmentedLog.needsCompaction(new File(this.dataDir + userName), expireBefore, maxMessages, archiveBefore)) return 0;
+        Handle handle = null;
+        try {
+            handle = this.acquire(userName, false);
+            if (handle == null) return 0;
+
+            SegmentedLog log = handle.log;
+            long first = log.getFirstSequence();
+            int archived = 0;
+            try {
+                log.deleteExpired(expireBefore, maxMessages);
+                if (archiveBefore != Long.MIN_VALUE) archived = log.archive(archiveBefore);
+            } catch (IOException e) {
+                AsyncLogger.log(AsyncLogger.Level.WARN, null, "压缩留言日志失败：" + userName + "，", String.valueOf(e));
+            }
+            // 删除文件失败时段也可能已经从日志中移除，按第一条留言的序号计算
+            long expired = log.getFirstSequence() - first;
+            if (expired > 0) handle.searchIndex.deleteBefore(log.getFirstSequence());
+            if (expired > 0 || archived > 0) {
+                this.expiredMessages.add(expired);
+                this.archivedSegments.add(archived);
+                AsyncLogger.log(AsyncLogger.Level.INFO, null, "压缩留言日志：" + userName,
+                        "，删除 " + expired + " 条留言，归档 " + archived + " 个段");
+            }
+            return expired;
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "打开留言日志失败：" + userName + "，", String.valueOf(e));
+            return 0;
+        } finally {
+            if (handle != null) this.release(handle);
+        }
+    }
+
+    /**
+     * @return 留言目录下所有留言日志的用户名，不包括还没有导入的旧版本留言文件
+     */
+    protected ArrayList<String> listUsers() {
+        ArrayList<String> userNames = new ArrayList<>();
+        File[] dirs = new File(this.dataDir).listFiles(file -> file.isDirectory() && !file.getName().endsWith(MIGRATING_SUFFIX));
+        if (dirs == null) return userNames;
+        for (final File dir : dirs) {
+            userNames.add(dir.getName());
+        }
+        return userNames;
+    }
+
+    private static ArrayList<String> decode(List<byte[]> records) {
+        ArrayList<String> lines = new ArrayList<>(records.size());
+        for (final byte[] record : records) {
+            lines.add(new String(record, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /**
+     * 留言写入日志后的回调，由提交线程按写入的顺序调用
+     */
+    protected interface AppendListener {
+        /**
+         * @param userName 用户名
+         * @param firstSequence 第一条新留言的序号
+         * @param lines 新写入的留言
+         */
+        void appended(String userName, long firstSequence, List<String> lines);
+    }
+
+    /**
+     * 从日志中读取的一段序号连续的留言
+     */
+    protected static class Messages {
+        private final long firstSequence;
+        private final ArrayList<String> lines;
+
+        private Messages(long firstSequence, ArrayList<String> lines) {
+            this.firstSequence = firstSequence;
+            this.lines = lines;
+        }
+
+        protected long getFirstSequence() {
+            return this.firstSequence;
+        }
+
+        protected ArrayList<String> getLines() {
+            return this.lines;
+        }
+    }
+
+    private static class Handle {
+        private final String userName;
+        // 打开的日志，打开完成前以及日志不存在或打开失败时为null
+        private SegmentedLog log;
+        // 日志的时间索引和全文索引，与log同时设置
+        private TimeIndex timeIndex;
+        private SearchIndex searchIndex;
+        private boolean opened;
+        // 正在使用该句柄的请求数量，由MessageStore的锁保护
+        private int refCount;
+
+        private Handle(String userName) {
+            this.userName = userName;
+            this.log = null;
+            this.timeIndex = null;
+            this.searchIndex = null;
+            this.opened = false;
+            this.refCount = 0;
+        }
+
+        // 等待打开该日志的请求完成
+        private synchronized SegmentedLog await() throws IOException {
+            try {
+                while (!this.opened) this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待打开日志时被中断");
+            }
+            return this.log;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.BufferPool;
+import com.peter.msgBoard.utils.Frames;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * 基于Selector的事件循环，一个线程负责多个非阻塞连接的读写。
+ * 请求帧的格式与阻塞模式相同（4字节长度前缀 + 请求体），这里按字节增量解析，
+ * 每解析出一个完整的帧就交给该连接的RequestHandler解码和分发。
+ * 请求的处理方法可能阻塞，事件循环线程不执行处理方法：不带编号的请求进入连接的请求队列，由工作线程按到达顺序逐个处理，
+ * 队列中的请求过多时暂停读取该连接，处理完一半后恢复。
+ * 响应由工作线程放入连接的写队列，事件循环线程在连接可写时发送。写队列中的数据超过{@link ServerConfig#MAX_PENDING_OUTPUT}时，
+ * 写出响应的线程等待事件循环发送，例如流式传输留言时每发送完一部分才从留言日志中读取下一批，读取缓慢的客户端不会使留言堆积在堆内存中。
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // 输出流内部缓冲区超过该容量时在flush后收缩，避免偶尔的大响应使每个连接长期占用大块内存
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 64 * 1024;
+    // 连接的请求队列中等待处理的请求达到该数量时暂停读取该连接
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    // 等待注册到selector的连接，注册操作必须在事件循环线程中进行
+    private final Queue<Connection> pendingRegisters;
+    // 由其他线程写入了数据或恢复了读取、等待事件循环线程发送数据并更新关注事件的连接
+    private final Queue<Connection> pendingFlushes;
+    // 由其他线程（例如回收线程）要求关闭、等待事件循环线程关闭的连接
+    private final Queue<Connection> pendingCloses;
+    private Thread thread;
+
+    protected NioEventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ServerConfig.DIRECT_BUFFERS
+                ? ByteBuffer.allocateDirect(READ_BUFFER_SIZE)
+                : ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.pendingRegisters = new ConcurrentLinkedQueue<>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<>();
+        this.pendingCloses = new ConcurrentLinkedQueue<>();
+        this.thread = null;
+    }
+
+    protected void start(String name) {
+        this.thread = new Thread(this, name);
+        this.thread.start();
+    }
+
+    /**
+     * 将一个已完成握手的连接交给该事件循环处理
+     * @param server 服务器实例
+     * @param clientSocket 客户端套接字实例，其通道必须已经切换到非阻塞模式
+     * @param userManager 用户管理实例
+     * @return 该连接的请求处理实例
+     */
+    protected RequestHandler register(Server server, Socket clientSocket, UserManager userManager) {
+        Connection connection = new Connection(clientSocket.getChannel(), server.getWorkers());
+        connection.handler = new RequestHandler(server, clientSocket, userManager, new FrameOutputStream(connection),
+                new RequestQueue(connection));
+        this.pendingRegisters.add(connection);
+        this.selector.wakeup();
+        return connection.handler;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+                this.registerPending();
+                this.flushPending();
+                this.closePending();
+
+                Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) this.read(connection);
+                        if (key.isValid() && key.isWritable()) this.flush(connection);
+                    } catch (Exception ignore) {
+                        this.close(connection);
+                    }
+                }
+            } catch (Exception e) {
+                AsyncLogger.log(AsyncLogger.Level.ERROR, null, "事件循环遇到内部错误", null, e);
+            }
+        }
+    }
+
+    private void registerPending() {
+        Connection connection;
+        while ((connection = this.pendingRegisters.poll()) != null) {
+            try {
+                connection.key = connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+            } catch (Exception ignore) {
+                connection.handler.close();
+            }
+        }
+    }
+
+    private void flushPending() {
+        Connection connection;
+        while ((connection = this.pendingFlushes.poll()) != null) {
+            try {
+                this.flush(connection);
+            } catch (Exception ignore) {
+                this.close(connection);
+            }
+        }
+    }
+
+    private void closePending() {
+        Connection connection;
+        while ((connection = this.pendingCloses.poll()) != null) {
+            this.close(connection);
+        }
+    }
+
+    /**
+     * 读取连接上的可用数据并增量解析请求帧，一次读取中可能解析出零个或多个完整的帧
+     */
+    private void read(Connection connection) throws IOException {
+        ByteBuffer buffer = this.readBuffer;
+        buffer.clear();
+        if (connection.channel.read(buffer) < 0) {
+            this.close(connection);
+            return;
+        }
+        buffer.flip();
+        connection.handler.markActive();
+
+        while (buffer.hasRemaining()) {
+            if (connection.body == null) {
+                if (connection.header.position() == 0) connection.handler.markFrameStarted();
+                transfer(buffer, connection.header);
+                if (connection.header.hasRemaining()) return;
+                connection.frameHeader = connection.header.getInt(0);
+                connection.header.clear();
+                int length = Frames.checkLength(connection.frameHeader & Frames.LENGTH_MASK, ServerConfig.MAX_FRAME_SIZE);
+                connection.body = ByteBuffer.wrap(BufferPool.acquire(length), 0, length);
+            }
+
+            transfer(buffer, connection.body);
+            if (connection.body.hasRemaining()) return;
+            byte[] frame = connection.body.array();
+            int length = connection.body.position();
+            connection.body = null;
+            connection.handler.handleFrame(connection.frameHeader, frame, length);
+
+            // 处理方法可能已经关闭了连接，例如客户端发送了quit请求
+            if (!connection.channel.isOpen()) {
+                this.close(connection);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 尽可能多地发送连接写队列中的数据，发送不完时关注OP_WRITE事件，等待下次可写时继续。
+     * 请求队列中的请求过多时不关注OP_READ事件，暂停读取该连接。
+     */
+    private void flush(Connection connection) throws IOException {
+        if (connection.key == null || !connection.key.isValid()) return;
+        int readOps = connection.readPaused ? 0 : SelectionKey.OP_READ;
+
+        ByteBuffer buffer;
+        while ((buffer = connection.writeQueue.peek()) != null) {
+            if (connection.channel.write(buffer) > 0) connection.handler.markActive();
+            if (buffer.hasRemaining()) {
+                connection.key.interestOps(readOps | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.writeQueue.poll();
+            connection.sent(buffer.limit());
+            BufferPool.release(buffer.array());
+        }
+        connection.key.interestOps(readOps);
+    }
+
+    /**
+     * 暂停或恢复读取连接，可以在任意线程中调用，关注事件由事件循环线程更新
+     */
+    private void setReadPaused(Connection connection, boolean paused) {
+        connection.readPaused = paused;
+        if (Thread.currentThread() == this.thread) {
+            try {
+                this.flush(connection);
+            } catch (Exception ignore) {
+                this.close(connection);
+            }
+        } else {
+            this.pendingFlushes.add(connection);
+            this.selector.wakeup();
+        }
+    }
+
+    private void enqueue(Connection connection, ByteBuffer buffer) throws IOException {
+        synchronized (connection) {
+            if (connection.closed) {
+                BufferPool.release(buffer.array());
+                throw new IOException("连接已关闭");
+            }
+            connection.pendingBytes += buffer.remaining();
+            connection.writeQueue.add(buffer);
+        }
+        if (Thread.currentThread() == this.thread) {
+            this.flush(connection);
+        } else {
+            this.pendingFlushes.add(connection);
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * 在事件循环线程中关闭连接，供其他线程调用
+     */
+    private void closeLater(Connection connection) {
+        this.pendingCloses.add(connection);
+        this.selector.wakeup();
+    }
+
+    private void close(Connection connection) {
+        if (connection.key != null) connection.key.cancel();
+        synchronized (connection) {
+            if (connection.closed) return;
+            connection.closed = true;
+            // 唤醒等待发送的线程，它们会因连接关闭而写出失败
+            connection.notifyAll();
+        }
+        connection.handler.close();
+        try {
+            connection.channel.close();
+        } catch (Exception ignore) {}
+
+        // 归还尚未读取完的请求帧的缓冲区
+        if (connection.body != null) {
+            BufferPool.release(connection.body.array());
+            connection.body = null;
+        }
+
+        // 释放尚未发送完的数据占用的缓冲区
+        ByteBuffer buffer;
+        while ((buffer = connection.writeQueue.poll()) != null) {
+            BufferPool.release(buffer.array());
+        }
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.slice();
+        slice.limit(n);
+        dst.put(slice);
+        src.position(src.position() + n);
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer header;
+        private final Queue<ByteBuffer> writeQueue;
+        // 执行请求队列中的请求的线程池
+        private final Executor workers;
+        private ByteBuffer body;
+        // 当前正在读取的帧的帧头
+        private int frameHeader;
+        private SelectionKey key;
+        private RequestHandler handler;
+        // 以下两个字段由连接自身的锁保护
+        private boolean closed;
+        // 写队列中还没有发送完的字节数
+        private long pendingBytes;
+        // 请求队列中的请求过多，暂停读取
+        private volatile boolean readPaused;
+
+        private Connection(SocketChannel channel, Executor workers) {
+            this.channel = channel;
+            this.header = ByteBuffer.allocate(4);
+            this.writeQueue = new ConcurrentLinkedQueue<>();
+            this.workers = workers;
+            this.body = null;
+            this.key = null;
+            this.handler = null;
+            this.closed = false;
+            this.pendingBytes = 0;
+            this.readPaused = false;
+        }
+
+        /**
+         * 事件循环发送完写队列中的一个缓冲区后调用，写队列中的数据降到上限以下时唤醒等待发送的线程
+         */
+        private synchronized void sent(int length) {
+            this.pendingBytes -= length;
+            if (this.pendingBytes <= ServerConfig.MAX_PENDING_OUTPUT) this.notifyAll();
+        }
+
+        /**
+         * 等待写队列中的数据降到{@link ServerConfig#MAX_PENDING_OUTPUT}以下，不能在事件循环线程中调用
+         * @throws IOException 连接已经关闭或者等待时被中断
+         */
+        private synchronized void awaitDrained() throws IOException {
+            try {
+                while (!this.closed && this.pendingBytes > ServerConfig.MAX_PENDING_OUTPUT) this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待发送时被中断");
+            }
+            if (this.closed) throw new IOException("连接已关闭");
+        }
+    }
+
+    /**
+     * 连接的请求队列，提交的请求在工作线程池中按提交顺序逐个执行。
+     * 每次只执行一个请求，执行完后再把下一个请求提交给线程池，一个连接上的大量请求不会长期占用某个工作线程。
+     */
+    private class RequestQueue implements Executor {
+        private final Connection connection;
+        private final ArrayDeque<Runnable> requests;
+        // 是否有请求已经提交给线程池、正在等待执行或执行中
+        private boolean running;
+
+        private RequestQueue(Connection connection) {
+            this.connection = connection;
+            this.requests = new ArrayDeque<>();
+            this.running = false;
+        }
+
+        @Override
+        public void execute(Runnable request) {
+            synchronized (this) {
+                this.requests.add(request);
+                if (this.requests.size() >= MAX_QUEUED_REQUESTS && !this.connection.readPaused)
+                    NioEventLoop.this.setReadPaused(this.connection, true);
+                if (this.running) return;
+                this.running = true;
+            }
+            this.connection.workers.execute(this::runNext);
+        }
+
+        private void runNext() {
+            Runnable request;
+            synchronized (this) {
+                request = this.requests.poll();
+                if (this.connection.readPaused && this.requests.size() <= MAX_QUEUED_REQUESTS / 2)
+                    NioEventLoop.this.setReadPaused(this.connection, false);
+            }
+
+            try {
+                request.run();
+            } finally {
+                this.scheduleNext();
+            }
+        }
+
+        private void scheduleNext() {
+            synchronized (this) {
+                if (this.requests.isEmpty()) {
+                    this.running = false;
+                    return;
+                }
+            }
+            this.connection.workers.execute(this::runNext);
+        }
+    }
+
+    /**
+     * 供RequestHandler写出响应的输出流，每次flush时将缓冲的数据复制到缓冲池分配的数组中，作为一个整体放入连接的写队列，
+     * 数组在发送完成或连接关闭后归还。在事件循环线程之外flush时，如果写队列中的数据超过上限，先等待事件循环发送，
+     * 因此写队列中的数据最多超出上限一个帧；写队列中的数据没有超过上限时flush不会阻塞
+     */
+    private class FrameOutputStream extends ByteArrayOutputStream implements RequestHandler.PendingOutput {
+        private final Connection connection;
+
+        private FrameOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (this.count == 0) return;
+            if (Thread.currentThread() != NioEventLoop.this.thread) this.connection.awaitDrained();
+            byte[] array = BufferPool.acquire(this.count);
+            System.arraycopy(this.buf, 0, array, 0, this.count);
+            ByteBuffer buffer = ByteBuffer.wrap(array, 0, this.count);
+            this.reset();
+            if (this.buf.length > MAX_RETAINED_OUTPUT_SIZE) this.buf = new byte[32];
+            NioEventLoop.this.enqueue(this.connection, buffer);
+        }
+
+        @Override
+        public long pendingBytes() {
+            synchronized (this.connection) {
+                return this.connection.pendingBytes;
+            }
+        }
+
+        /**
+         * 关闭输出流即关闭连接，RequestHandler关闭连接时（可能在回收线程中）由此通知事件循环释放连接占用的资源
+         */
+        @Override
+        public void close() {
+            NioEventLoop.this.closeLater(this.connection);
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package com.peter.msgBoard.server;
 
+import com.peter.msgBoard.entity.BatchResult;
+import com.peter.msgBoard.entity.Codec;
+import com.peter.msgBoard.entity.MessageBatch;
 import com.peter.msgBoard.entity.MessageEntity;
+import com.peter.msgBoard.entity.MessagePage;
+import com.peter.msgBoard.entity.Opcode;
+import com.peter.msgBoard.entity.PageQuery;
 import com.peter.msgBoard.entity.Request;
 import com.peter.msgBoard.entity.Response;
+import com.peter.msgBoard.entity.SearchQuery;
+import com.peter.msgBoard.entity.TimeRangeQuery;
 import com.peter.msgBoard.entity.UserEntity;
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.FrameBuffer;
+import com.peter.msgBoard.utils.FrameCompressor;
+import com.peter.msgBoard.utils.Frames;
 import com.peter.msgBoard.utils.Utils;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
 public class RequestHandler implements Runnable {
@@ -22,19 +39,75 @@ public class RequestHandler implements Runnable {
     private InputStream inputStream;
     private OutputStream outputStream;
     private static final Map<String, BiConsumer<RequestHandler, Request>> optionMap = new HashMap<>();
-    private String userName;
+    // 操作码-方法映射，下标为操作码，带操作码的请求直接按下标分发，不再查找请求名称
+    private static final BiConsumer<RequestHandler, Request>[] opcodeTable = newOpcodeTable();
+    // 流式传输留言时每个分块帧的最大字节数
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    // 流式传输留言时每次从留言日志中读取的留言数量
+    private static final int STREAM_BATCH_SIZE = 1024;
+    // 分页查询留言时每页的最大数量
+    private static final int MAX_PAGE_SIZE = 1000;
+    // 批量写入留言时每个请求的最大留言数量
+    private static final int MAX_BATCH_SIZE = 10000;
+    private volatile String userName;
+    // 当前登录用户的会话令牌，未登录时为null
+    private volatile String sessionToken;
+    // 当前连接使用的编解码器，与客户端最近一次请求使用的编码方式保持一致
+    private volatile Codec codec;
+    // 当前连接的帧压缩器，客户端通过negotiate请求协商压缩之前为null
+    private volatile FrameCompressor compressor;
+    // 当前正在处理的请求帧，每次读取时复用，其缓冲区在请求反序列化后归还给缓冲池
+    private final FrameBuffer frame;
+    // 最近一次在连接上读到或写出数据的时间，超过ServerConfig.IDLE_TIMEOUT_SECONDS没有任何读写的连接会被回收
+    private volatile long lastActiveAt;
+    // 当前请求帧开始到达的时间，没有读取到一半的帧时为0，超过ServerConfig.READ_TIMEOUT_SECONDS仍未读完的连接会被回收
+    private volatile long frameStartedAt;
+    // 连接是否已经关闭，连接可能同时被处理线程、事件循环和回收线程关闭，保证关闭流程只执行一次
+    private final AtomicBoolean closed;
+    // 非阻塞模式下按到达顺序执行不带编号请求的执行器，阻塞模式下为null，不带编号的请求在读取线程中处理
+    private Executor requestExecutor;
+    // 写出响应时持有的锁，保证每个响应帧完整写出，流式传输期间其他响应不会插入到分块帧之间
+    private final ReentrantLock outputLock;
+    // 阻塞模式下向订阅者推送留言的写出线程，第一次推送时创建
+    private PushWriter pushWriter;
 
     static {
         // 操作-方法映射
-        optionMap.put("login", RequestHandler::handleLogin);
-        optionMap.put("quit", RequestHandler::handleClientQuit);
-        optionMap.put("displayAllUsers", RequestHandler::handleDisplayAllUsers);
-        optionMap.put("displayOnlineUsers", RequestHandler::handleDisplayOnlineUsers);
-        optionMap.put("addUser", RequestHandler::handleAddUser);
-        optionMap.put("delUser", RequestHandler::handleDelUser);
-        optionMap.put("logout", RequestHandler::handleLogout);
-        optionMap.put("displayAllMessages", RequestHandler::handleDisplayAllMessages);
-        optionMap.put("writeNewMessage", RequestHandler::handleWriteNewMessage);
+        register(Opcode.LOGIN, RequestHandler::handleLogin);
+        register(Opcode.QUIT, RequestHandler::handleClientQuit);
+        register(Opcode.DISPLAY_ALL_USERS, RequestHandler::handleDisplayAllUsers);
+        register(Opcode.DISPLAY_ONLINE_USERS, RequestHandler::handleDisplayOnlineUsers);
+        register(Opcode.ADD_USER, RequestHandler::handleAddUser);
+        register(Opcode.DEL_USER, RequestHandler::handleDelUser);
+        register(Opcode.LOGOUT, RequestHandler::handleLogout);
+        register(Opcode.DISPLAY_ALL_MESSAGES, RequestHandler::handleDisplayAllMessages);
+        register(Opcode.WRITE_NEW_MESSAGE, RequestHandler::handleWriteNewMessage);
+        register(Opcode.STREAM_ALL_MESSAGES, RequestHandler::handleStreamAllMessages);
+        register(Opcode.DISPLAY_MESSAGES_PAGE, RequestHandler::handleDisplayMessagesPage);
+        register(Opcode.NEGOTIATE, RequestHandler::handleNegotiate);
+        register(Opcode.WRITE_MESSAGES, RequestHandler::handleWriteMessages);
+        register(Opcode.SUBSCRIBE, RequestHandler::handleSubscribe);
+        register(Opcode.UNSUBSCRIBE, RequestHandler::handleUnsubscribe);
+        register(Opcode.RESUME, RequestHandler::handleResume);
+        register(Opcode.PING, RequestHandler::handlePing);
+        register(Opcode.STATS, RequestHandler::handleStats);
+        register(Opcode.DISPLAY_MESSAGES_BY_TIME, RequestHandler::handleDisplayMessagesByTime);
+        register(Opcode.SEARCH_MESSAGES, RequestHandler::handleSearchMessages);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<RequestHandler, Request>[] newOpcodeTable() {
+        return (BiConsumer<RequestHandler, Request>[]) new BiConsumer[Opcode.count()];
+    }
+
+    /**
+     * 注册请求处理方法，同时登记到操作码表和请求名称表，后者用于只发送请求名称的旧版本客户端
+     * @param opcode 请求的操作码
+     * @param consumer 处理方法
+     */
+    private static void register(int opcode, BiConsumer<RequestHandler, Request> consumer) {
+        opcodeTable[opcode] = consumer;
+        optionMap.put(Opcode.nameOf(opcode), consumer);
     }
 
     protected RequestHandler(Server server, Socket clientSocket, UserManager userManager) {
@@ -44,6 +117,16 @@ public class RequestHandler implements Runnable {
         this.inputStream = null;
         this.outputStream = null;
         this.userName = null;
+        this.sessionToken = null;
+        this.codec = Codec.JAVA;
+        this.compressor = null;
+        this.frame = new FrameBuffer();
+        this.lastActiveAt = System.currentTimeMillis();
+        this.frameStartedAt = 0;
+        this.closed = new AtomicBoolean(false);
+        this.requestExecutor = null;
+        this.outputLock = new ReentrantLock();
+        this.pushWriter = null;
 
         this.server = server;
         this.clientSocket = clientSocket;
@@ -51,13 +134,25 @@ public class RequestHandler implements Runnable {
         Utils.printLog(this.clientSocket, "连接成功");
     }
 
+    /**
+     * 非阻塞模式下使用的构造函数，响应通过传输层提供的输出流写出，而不是直接写套接字
+     * @param outputStream 传输层提供的输出流，每次flush对应一个完整的响应帧
+     * @param requestExecutor 按提交顺序逐个执行任务的执行器，不带编号的请求交给它处理，事件循环线程只负责读取和解码请求帧
+     */
+    protected RequestHandler(Server server, Socket clientSocket, UserManager userManager, OutputStream outputStream,
+                             Executor requestExecutor) {
+        this(server, clientSocket, userManager);
+        this.outputStream = outputStream;
+        this.requestExecutor = requestExecutor;
+    }
+
     @Override
     public void run() {
         try {
             this.reader = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
             this.writer = new BufferedWriter(new OutputStreamWriter(this.clientSocket.getOutputStream()));
-            this.inputStream = this.clientSocket.getInputStream();
-            this.outputStream = this.clientSocket.getOutputStream();
+            this.inputStream = new TrackedInputStream(this.clientSocket.getInputStream());
+            this.outputStream = new TrackedOutputStream(this.clientSocket.getOutputStream());
             this.handleRequest();
         } catch (Exception ignore) {
             closeConnectionWithTip(this);
@@ -65,27 +160,10 @@ public class RequestHandler implements Runnable {
     }
 
     private void handleRequest() {
-        int requestBytesLength;
-        DataInputStream inputStream = new DataInputStream(this.inputStream);
         while (true) {
             try {
-                requestBytesLength = inputStream.readInt();
-                byte[] clientRequestBytes = new byte[requestBytesLength];
-                inputStream.readFully(clientRequestBytes);
-
-                Request request = Utils.deSerializeObject(clientRequestBytes, Request.class);
-                if (request == null) throw new RuntimeException();
-
-                String requestTarget = request.getRequestTarget();
-                if (optionMap.containsKey(requestTarget)) {
-                    Utils.printLog(this.clientSocket, "收到请求：" + requestTarget);
-                    BiConsumer<RequestHandler, Request> consumer = optionMap.get(requestTarget);
-                    consumer.accept(this, request);
-                } else {
-                    Utils.printLog(this.clientSocket, "未知请求：" + requestTarget);
-                    Response response = new Response("未知请求", null, 400);
-                    sendResponse(this.clientSocket, response);
-                }
+                Frames.read(this.inputStream, this.compressor, ServerConfig.MAX_FRAME_SIZE, this.frame);
+                this.handleFrame(this.frame);
             } catch (Exception ignore) {
                 closeConnectionWithTip(this);
                 return;
@@ -93,17 +171,143 @@ public class RequestHandler implements Runnable {
         }
     }
 
+    /**
+     * 处理一个从非阻塞连接上读取的请求帧，压缩帧会先被解压
+     * @param header 帧头
+     * @param payload 帧数据，必须由缓冲池分配，所有权转移给该方法
+     * @param length 帧数据的长度
+     */
+    protected void handleFrame(int header, byte[] payload, int length) throws IOException {
+        Frames.unwrap(header, payload, length, this.compressor, ServerConfig.MAX_FRAME_SIZE, this.frame);
+        this.handleFrame(this.frame);
+    }
+
+    /**
+     * 处理一个完整的请求帧（不含长度前缀），反序列化后根据请求名称分发到对应的处理方法。
+     * 带编号的请求交给工作线程池处理，读取线程可以继续读取同一连接上的后续请求，响应的顺序不做保证；
+     * 不带编号的请求按顺序处理：阻塞模式下在读取线程中处理，非阻塞模式下交给连接的请求执行器，
+     * 处理方法可能阻塞（例如等待留言落盘），不能占用事件循环线程。
+     * @param frame 请求帧，反序列化后其缓冲区会被归还
+     * @throws IOException 发送响应失败时抛出
+     */
+    private void handleFrame(FrameBuffer frame) throws IOException {
+        this.frameStartedAt = 0;
+        Request request;
+        try {
+            this.codec = Codec.of(frame.array(), frame.length());
+            request = this.codec.decode(frame.array(), 0, frame.length(), Request.class);
+        } finally {
+            frame.release();
+        }
+        if (request == null) throw new RuntimeException();
+
+        if (request.getRequestId() == 0 && this.requestExecutor == null) {
+            this.dispatch(request);
+            return;
+        }
+
+        Executor executor = request.getRequestId() == 0 ? this.requestExecutor : this.server.getWorkers();
+        executor.execute(() -> {
+            try {
+                this.dispatch(request);
+            } catch (Exception ignore) {
+                closeConnectionWithTip(this);
+            }
+        });
+    }
+
+    private void dispatch(Request request) throws IOException {
+        String requestTarget = request.getRequestTarget();
+        int opcode = request.getOpcode();
+        BiConsumer<RequestHandler, Request> consumer = opcode > Opcode.UNKNOWN && opcode < opcodeTable.length
+                ? opcodeTable[opcode]
+                : optionMap.get(requestTarget);
+        if (consumer != null) {
+            if (opcode != Opcode.PING) AsyncLogger.request(this.clientSocket, "收到请求：", requestTarget);
+            consumer.accept(this, request);
+        } else {
+            AsyncLogger.log(AsyncLogger.Level.WARN, this.clientSocket, "未知请求：", requestTarget);
+            Response response = new Response("未知请求", null, 400);
+            sendResponse(this, request, response);
+        }
+    }
+
+    /**
+     * 由传输层在连接断开或读写出错时调用，登出用户并释放连接
+     */
+    protected void close() {
+        closeConnectionWithTip(this);
+    }
+
+    /**
+     * 记录连接上的读写活动，由传输层在读到或写出数据时调用
+     */
+    protected void markActive() {
+        this.lastActiveAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 由传输层在读到一个新请求帧的第一个字节时调用
+     */
+    protected void markFrameStarted() {
+        long now = System.currentTimeMillis();
+        this.lastActiveAt = now;
+        this.frameStartedAt = now;
+    }
+
+    /**
+     * 检查连接是否超时，超时则关闭连接。由服务器的回收线程定期调用
+     * @param now 当前时间
+     * @return 连接是否因超时被关闭
+     */
+    protected boolean closeIfTimedOut(long now) {
+        long frameStartedAt = this.frameStartedAt;
+        String reason;
+        if (ServerConfig.READ_TIMEOUT_SECONDS > 0 && frameStartedAt != 0
+                && now - frameStartedAt > ServerConfig.READ_TIMEOUT_SECONDS * 1000L) {
+            reason = "读取请求超时";
+        } else if (ServerConfig.IDLE_TIMEOUT_SECONDS > 0
+                && now - this.lastActiveAt > ServerConfig.IDLE_TIMEOUT_SECONDS * 1000L) {
+            reason = "连接空闲超时";
+        } else {
+            return false;
+        }
+
+        if (this.closed.get()) return false;
+        Utils.printLog(this.clientSocket, reason + "，断开连接");
+        closeConnection(this);
+        return true;
+    }
+
     private static boolean logout(RequestHandler handler) {
-        if (handler.userName != null) {
-            handler.userManager.logout(handler.userName);
-            Utils.printLog(handler.clientSocket, "用户 " + handler.userName + " 退出登录");
+        String userName = handler.takeUserName();
+        if (userName != null) {
+            handler.userManager.logout(userName);
+            Utils.printLog(handler.clientSocket, "用户 " + userName + " 退出登录");
             return true;
         }
         return false;
     }
 
+    /**
+     * 取出并清除当前登录的用户名，保证同一次登录只会被登出一次。
+     * 会话被其他连接恢复时，旧连接的登录状态由恢复会话的线程清除，与旧连接自身的断开处理可能同时发生。
+     * @return 之前登录的用户名，未登录时返回null
+     */
+    private synchronized String takeUserName() {
+        String userName = this.userName;
+        this.userName = null;
+        return userName;
+    }
+
     private static void closeConnection(RequestHandler handler) {
+        if (!handler.closed.compareAndSet(false, true)) return;
+        handler.server.removeHandler(handler);
+        // 意外断开的连接保留会话令牌，客户端可以在有效期内用它恢复登录状态
+        handler.server.getSessions().detach(handler.sessionToken);
         logout(handler);
+        handler.server.getSubscriptions().unsubscribeAll(handler);
+        handler.closePushWriter();
 
         try {
             handler.server.removeConnection(handler.clientSocket);
@@ -111,6 +315,7 @@ public class RequestHandler implements Runnable {
             if (handler.writer != null) handler.writer.close();
             if (handler.inputStream != null) handler.inputStream.close();
             if (handler.outputStream != null) handler.outputStream.close();
+            if (handler.compressor != null) handler.compressor.close();
             Utils.printLog(handler.clientSocket, "成功断开连接");
         } catch (Exception _ignore) {
             Utils.printLog(handler.clientSocket, "断开连接失败");
@@ -120,21 +325,32 @@ public class RequestHandler implements Runnable {
     }
 
     private static void closeConnectionWithError(RequestHandler handler, Exception err) {
+        if (handler.closed.get()) return;
         Utils.printLog(handler.clientSocket, "发生内部错误，重置连接中");
         closeConnection(handler);
-        System.out.println(err.getMessage());
+        AsyncLogger.log(AsyncLogger.Level.ERROR, handler.clientSocket, "处理请求时发生内部错误", null, err);
     }
 
     private static void closeConnectionWithTip(RequestHandler handler) {
+        if (handler.closed.get()) return;
         Utils.printLog(handler.clientSocket, "客户端连接重置");
         closeConnection(handler);
     }
 
-    private static void _sendResponse(OutputStream outputStream, byte[] data) throws IOException {
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-        dataOutputStream.writeInt(data.length);
-        dataOutputStream.write(data);
-        dataOutputStream.flush();
+    private static void _sendResponse(OutputStream outputStream, byte[] data, FrameCompressor compressor) throws IOException {
+        synchronized (outputStream) {
+            Frames.write(outputStream, data, compressor);
+        }
+    }
+
+    private static void _sendResponse(RequestHandler handler, byte[] data, FrameCompressor compressor) throws IOException {
+        // 带编号的请求可能在多个线程中同时响应，保证每个响应帧完整写出
+        handler.outputLock.lock();
+        try {
+            Frames.write(handler.outputStream, data, compressor);
+        } finally {
+            handler.outputLock.unlock();
+        }
     }
 
     /**
@@ -143,39 +359,180 @@ public class RequestHandler implements Runnable {
      * @param response 响应对象
      */
     protected static void sendResponse(RequestHandler handler, Response response) throws IOException {
-        byte[] bytes = Utils.serializeObject(response);
+        byte[] bytes = handler.codec.encode(response);
+        if (bytes == null) throw new RuntimeException();
+
+        _sendResponse(handler, bytes, handler.compressor);
+    }
+
+    /**
+     * 响应客户端的某个请求，响应会带上该请求的编号
+     * @param handler 请求处理实例
+     * @param request 要响应的请求
+     * @param response 响应对象
+     */
+    protected static void sendResponse(RequestHandler handler, Request request, Response response) throws IOException {
+        response.setRequestId(request.getRequestId());
+        sendResponse(handler, response);
+    }
+
+    /**
+     * 向订阅者推送一条新留言，推送的响应编号为{@link Response#PUSH_REQUEST_ID}，消息为留言板所属的用户名，数据为留言。
+     * 推送不会阻塞，见{@link #offerPush(Response)}
+     * @param board 留言板所属的用户名
+     * @param message 新留言
+     * @return 是否已经推送，连接上积压的数据过多时返回false，调用者应保留该留言稍后重试
+     * @throws IOException 发送失败时抛出
+     */
+    protected boolean pushMessage(String board, MessageEntity message) throws IOException {
+        byte[] messageBytes = this.codec.encode(message);
+        if (messageBytes == null) throw new RuntimeException();
+        Response response = new Response(board, messageBytes, 200);
+        response.setRequestId(Response.PUSH_REQUEST_ID);
+        return this.offerPush(response);
+    }
+
+    /**
+     * 向订阅者推送一条通知，状态码为409，表示有新留言因推送队列已满而未能推送，客户端应重新获取留言
+     * @param notice 通知内容
+     * @return 是否已经推送，连接上积压的数据过多时返回false
+     * @throws IOException 发送失败时抛出
+     */
+    protected boolean pushNotice(String notice) throws IOException {
+        Response response = new Response(notice, null, 409);
+        response.setRequestId(Response.PUSH_REQUEST_ID);
+        return this.offerPush(response);
+    }
+
+    /**
+     * 不阻塞地推送一个响应，推送线程由所有订阅者共享，一个不读取数据的客户端不能占用推送线程。
+     * 非阻塞模式下直接放入连接的写队列，连接正在写出其他响应（例如流式传输留言）或者写队列中的数据超过
+     * {@link ServerConfig#MAX_PENDING_OUTPUT}时不推送；阻塞模式下交给该连接的推送写出线程，它积压的数据超过上限时不推送。
+     * @return 是否已经推送
+     */
+    private boolean offerPush(Response response) throws IOException {
+        byte[] bytes = this.codec.encode(response);
+        if (bytes == null) throw new RuntimeException();
+
+        if (this.outputStream instanceof PendingOutput) {
+            if (!this.outputLock.tryLock()) return false;
+            try {
+                if (((PendingOutput) this.outputStream).pendingBytes() > ServerConfig.MAX_PENDING_OUTPUT) return false;
+                Frames.write(this.outputStream, bytes, this.compressor);
+                return true;
+            } finally {
+                this.outputLock.unlock();
+            }
+        }
+
+        PushWriter pushWriter = this.getPushWriter();
+        if (pushWriter == null) throw new IOException("连接已关闭");
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.length + 4);
+        Frames.write(frame, bytes, this.compressor);
+        return pushWriter.offer(frame.toByteArray());
+    }
+
+    private synchronized PushWriter getPushWriter() {
+        if (this.pushWriter == null && !this.closed.get()) {
+            this.pushWriter = new PushWriter();
+            Thread thread = new Thread(this.pushWriter, "message-push-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this.pushWriter;
+    }
+
+    private synchronized void closePushWriter() {
+        if (this.pushWriter != null) this.pushWriter.close();
+    }
+
+    /**
+     * 以流式方式向客户端发送某个用户的全部留言。
+     * 先发送一个响应，然后将留言逐条编码为UTF-8并以换行符结尾，拼接为不超过{@code STREAM_CHUNK_SIZE}字节的分块帧（4字节长度前缀 + 原始字节）发送，
+     * 最后发送一个长度为0的帧表示结束。分块帧不经过编解码器；每次只从留言日志中读取{@code STREAM_BATCH_SIZE}条留言，堆内存占用与留言总数无关。
+     * 非阻塞模式下该方法在工作线程中执行，写队列中的数据超过上限时等待事件循环发送，客户端读取缓慢时传输随之放慢，不会把留言堆积在写队列中。
+     * @param handler 请求处理实例
+     * @param request 要响应的请求
+     * @param response 在分块帧之前发送的响应
+     * @param userName 留言所属的用户名
+     * @param page 第一批留言，之后的留言从该页的游标开始继续读取
+     */
+    protected static void sendMessages(RequestHandler handler, Request request, Response response, String userName,
+                                       MessagePage page) throws IOException {
+        response.setRequestId(request.getRequestId());
+        byte[] bytes = handler.codec.encode(response);
         if (bytes == null) throw new RuntimeException();
 
-        _sendResponse(handler.outputStream, bytes);
+        // 整个传输过程持有输出锁，避免其他响应插入到分块帧之间
+        handler.outputLock.lock();
+        try {
+            Frames.write(handler.outputStream, bytes, null);
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(STREAM_CHUNK_SIZE);
+            while (true) {
+                for (final String message : page.getMessages()) {
+                    byte[] line = message.getBytes(StandardCharsets.UTF_8);
+                    if (chunk.size() > 0 && chunk.size() + line.length + 1 > STREAM_CHUNK_SIZE) writeChunk(handler.outputStream, chunk);
+                    chunk.write(line);
+                    chunk.write('\n');
+                }
+                if (!page.hasMore()) break;
+                page = handler.userManager.getAllMessages(userName, page.getNextCursor(), STREAM_BATCH_SIZE, false);
+                // 读取失败时中断传输，客户端收不到结束帧，不会把不完整的留言当作全部留言
+                if (page == null) throw new IOException("读取留言失败");
+            }
+            if (chunk.size() > 0) writeChunk(handler.outputStream, chunk);
+
+            Frames.writeHeader(handler.outputStream, 0);
+            handler.outputStream.flush();
+        } finally {
+            handler.outputLock.unlock();
+        }
+    }
+
+    private static void writeChunk(OutputStream outputStream, ByteArrayOutputStream chunk) throws IOException {
+        Frames.writeHeader(outputStream, chunk.size());
+        chunk.writeTo(outputStream);
+        outputStream.flush();
+        chunk.reset();
     }
 
+    /**
+     * 在RequestHandler创建之前向客户端发送响应，例如连接握手。此时还不知道客户端支持的编码方式，始终使用Java序列化
+     * @param clientSocket 客户端套接字实例
+     * @param response 响应对象
+     */
     protected static void sendResponse(Socket clientSocket, Response response) throws IOException {
-        byte[] bytes = Utils.serializeObject(response);
+        byte[] bytes = Codec.JAVA.encode(response);
         if (bytes == null) throw new RuntimeException();
 
-        _sendResponse(clientSocket.getOutputStream(), bytes);
+        _sendResponse(clientSocket.getOutputStream(), bytes, null);
     }
 
     private static void handleLogin(RequestHandler handler, Request request) {
         try {
             Response response = new Response();
 
-            UserEntity user = Utils.deSerializeObject(request.getData(), UserEntity.class);
+            UserEntity user = handler.codec.decode(request.getData(), UserEntity.class);
             if (user == null) throw new RuntimeException();
             String userName = user.getUserName(), pwd = user.getPassword_md5();
 
             if (!handler.userManager.hasUser(userName)) {
                 response.setMessage("没有该用户");
                 response.setStatusCode(404);
-                sendResponse(handler, response);
+                sendResponse(handler, request, response);
                 return;
             }
 
             int code = handler.userManager.login(userName, pwd);
             if (code == 1) {
                 handler.userName = userName;
+                handler.sessionToken = handler.server.getSessions().issue(userName,
+                        handler.userManager.getGeneration(userName), handler);
                 Utils.printLog(handler.clientSocket, "用户 " + userName + " 登录成功");
                 response.setMessage(userName + " 登录成功");
+                // 响应数据为会话令牌，旧版本客户端会忽略它
+                response.setData(handler.sessionToken.getBytes(StandardCharsets.UTF_8));
                 response.setStatusCode(200);
             } else if (code == 2) {
                 response.setMessage("密码错误，登录失败");
@@ -185,18 +542,48 @@ public class RequestHandler implements Runnable {
                 response.setStatusCode(403);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 协商连接特性。请求的message为客户端支持的特性名称（以逗号分隔），响应的message为服务器同意启用的特性。
+     * 目前支持的特性：deflate-对超过阈值的帧进行压缩。
+     */
+    private static void handleNegotiate(RequestHandler handler, Request request) {
+        try {
+            String features = request.getMessage() == null ? "" : request.getMessage();
+            boolean useDeflate = false;
+            for (final String feature : features.split(",")) {
+                if (FrameCompressor.FEATURE_DEFLATE_NAME.equals(feature.trim()) && ServerConfig.COMPRESSION_THRESHOLD >= 0)
+                    useDeflate = true;
+            }
+
+            Response response = new Response(useDeflate ? FrameCompressor.FEATURE_DEFLATE_NAME : "", null, 200);
+            response.setRequestId(request.getRequestId());
+            byte[] bytes = handler.codec.encode(response);
+            if (bytes == null) throw new RuntimeException();
+
+            // 先启用压缩再发送不压缩的响应：非阻塞模式下协商在工作线程中处理，客户端收到响应后发送的压缩帧
+            // 会立即在事件循环线程中解压，此时压缩器必须已经就绪；不压缩该响应，保证客户端能够正常读取
+            if (useDeflate && handler.compressor == null)
+                handler.compressor = new FrameCompressor(ServerConfig.COMPRESSION_THRESHOLD);
+            _sendResponse(handler, bytes, null);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
     }
 
     private static void handleClientQuit(RequestHandler handler, Request ignore) {
+        handler.server.getSessions().invalidate(handler.sessionToken);
+        handler.sessionToken = null;
         handler.server.removeConnection(handler.clientSocket);
         Utils.printLog(handler.clientSocket, "客户端断开连接");
     }
 
-    private static void handleDisplayAllUsers(RequestHandler handler, Request ignore) {
+    private static void handleDisplayAllUsers(RequestHandler handler, Request request) {
         try {
             Response response = new Response();
             String userList = handler.userManager.getAllUsersList();
@@ -208,13 +595,13 @@ public class RequestHandler implements Runnable {
                 response.setMessage(userList);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
     }
 
-    private static void handleDisplayOnlineUsers(RequestHandler handler, Request ignore) {
+    private static void handleDisplayOnlineUsers(RequestHandler handler, Request request) {
         try {
             Response response = new Response();
             String onlineUserList = handler.userManager.getOnlineUsersList();
@@ -226,7 +613,7 @@ public class RequestHandler implements Runnable {
                 response.setMessage(onlineUserList);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
@@ -236,7 +623,7 @@ public class RequestHandler implements Runnable {
         try {
             Response response = new Response();
 
-            UserEntity user = Utils.deSerializeObject(request.getData(), UserEntity.class);
+            UserEntity user = handler.codec.decode(request.getData(), UserEntity.class);
             if (user == null) throw new RuntimeException();
 
             int code = handler.userManager.addUser(user);
@@ -251,7 +638,7 @@ public class RequestHandler implements Runnable {
                 response.setStatusCode(500);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
@@ -271,6 +658,8 @@ public class RequestHandler implements Runnable {
                 response.setMessage("删除失败，服务器内部错误");
                 response.setStatusCode(500);
             } else if (code == 3) {
+                // 用户意外断开后保留的会话令牌随账户一起失效
+                handler.server.getSessions().invalidateUser(userName);
                 response.setMessage("删除成功");
                 response.setStatusCode(200);
             } else if (code ==4) {
@@ -281,7 +670,7 @@ public class RequestHandler implements Runnable {
                 response.setStatusCode(403);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
@@ -291,15 +680,18 @@ public class RequestHandler implements Runnable {
         try {
             Response response = new Response();
 
+            String userName = handler.userName;
+            handler.server.getSessions().invalidate(handler.sessionToken);
+            handler.sessionToken = null;
             if (logout(handler)) {
-                response.setMessage(handler.userName + " 登出成功");
+                response.setMessage(userName + " 登出成功");
                 response.setStatusCode(200);
             } else {
-                response.setMessage(handler.userName + " 登出失败");
+                response.setMessage(userName + " 登出失败");
                 response.setStatusCode(500);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
@@ -316,24 +708,135 @@ public class RequestHandler implements Runnable {
                 response.setMessage(name + " 暂无留言记录");
                 response.setStatusCode(404);
             } else {
-                byte[] listBytes = Utils.serializeObject(list);
+                byte[] listBytes = handler.codec.encode(list);
                 if (listBytes == null) throw new RuntimeException();
                 response.setData(listBytes);
                 response.setStatusCode(200);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 以流式方式发送某个用户的全部留言，见{@link #sendMessages}。
+     * 客户端逐块接收并解析，不需要像displayAllMessages那样把整个留言列表放进一个响应。
+     */
+    private static void handleStreamAllMessages(RequestHandler handler, Request request) {
+        try {
+            String name = request.getMessage();
+            MessagePage page = handler.userManager.getAllMessages(name, 0, STREAM_BATCH_SIZE, false);
+
+            if (page == null || page.getMessages().isEmpty()) {
+                Response response = new Response(name + " 暂无留言记录", null, 404);
+                sendResponse(handler, request, response);
+                return;
+            }
+
+            sendMessages(handler, request, new Response(null, null, 200), name, page);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    private static void handleDisplayMessagesPage(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            String name = request.getMessage();
+            PageQuery query = handler.codec.decode(request.getData(), PageQuery.class);
+            if (query == null) throw new RuntimeException();
+            int pageSize = Math.max(1, Math.min(query.getPageSize(), MAX_PAGE_SIZE));
+
+            MessagePage page = handler.userManager.getAllMessages(name, query.getCursor(), pageSize, query.isNewestFirst());
+            if (page == null) {
+                response.setMessage(name + " 暂无留言记录");
+                response.setStatusCode(404);
+            } else {
+                byte[] pageBytes = handler.codec.encode(page);
+                if (pageBytes == null) throw new RuntimeException();
+                response.setData(pageBytes);
+                response.setStatusCode(200);
+            }
+
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 按时间范围分页查询留言，返回发布时间在 [from, to) 内的留言（从旧到新）
+     */
+    private static void handleDisplayMessagesByTime(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            String name = request.getMessage();
+            TimeRangeQuery query = handler.codec.decode(request.getData(), TimeRangeQuery.class);
+            if (query == null) throw new RuntimeException();
+            int pageSize = Math.max(1, Math.min(query.getPageSize(), MAX_PAGE_SIZE));
+
+            MessagePage page = handler.userManager.getMessagesByTime(name, query.getFrom(), query.getTo(),
+                    query.getCursor(), pageSize);
+            if (page == null) {
+                response.setMessage(name + " 暂无留言记录");
+                response.setStatusCode(404);
+            } else {
+                byte[] pageBytes = handler.codec.encode(page);
+                if (pageBytes == null) throw new RuntimeException();
+                response.setData(pageBytes);
+                response.setStatusCode(200);
+            }
+
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 全文搜索留言，返回包含全部查询词的留言（按相关度从高到低）
+     */
+    private static void handleSearchMessages(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            String name = request.getMessage();
+            SearchQuery query = handler.codec.decode(request.getData(), SearchQuery.class);
+            if (query == null) throw new RuntimeException();
+            String keywords = query.getKeywords() == null ? "" : query.getKeywords();
+            int pageSize = Math.max(1, Math.min(query.getPageSize(), MAX_PAGE_SIZE));
+
+            MessagePage page = handler.userManager.searchMessages(name, keywords, query.getCursor(), pageSize);
+            if (page == null) {
+                response.setMessage(name + " 暂无留言记录");
+                response.setStatusCode(404);
+            } else {
+                byte[] pageBytes = handler.codec.encode(page);
+                if (pageBytes == null) throw new RuntimeException();
+                response.setData(pageBytes);
+                response.setStatusCode(200);
+            }
+
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
     }
 
+    /**
+     * 写入一条留言。留言达到服务器配置的持久化级别（见{@link GroupCommitter.Durability}）之后才回复，
+     * 回复200时留言已经按该级别保存。
+     */
     private static void handleWriteNewMessage(RequestHandler handler, Request request) {
         try {
             Response response = new Response();
 
             String userName = request.getMessage();
-            MessageEntity message = Utils.deSerializeObject(request.getData(), MessageEntity.class);
+            MessageEntity message = handler.codec.decode(request.getData(), MessageEntity.class);
             if (message == null) throw new RuntimeException();
 
             String content = message.getDate() + "," + message.getContent();
@@ -341,14 +844,302 @@ public class RequestHandler implements Runnable {
             if (handler.userManager.saveMessage(userName, content)) {
                 response.setMessage("保存成功");
                 response.setStatusCode(200);
+                handler.server.getSubscriptions().publish(userName, message);
             } else {
                 response.setMessage("保存失败，相关问题请咨询管理员");
                 response.setStatusCode(500);
             }
 
-            sendResponse(handler, response);
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 批量写入留言。所有合法的留言在一次文件操作中追加，响应中的BatchResult按顺序给出每条留言的状态码。
+     * 内容为空的留言，以及包含换行符、流式传输时会被客户端拆成多条的留言不会被保存，状态码为400。
+     */
+    private static void handleWriteMessages(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            String userName = request.getMessage();
+            MessageBatch batch = handler.codec.decode(request.getData(), MessageBatch.class);
+            if (batch == null || batch.getMessages() == null) throw new RuntimeException();
+
+            ArrayList<MessageEntity> messages = batch.getMessages();
+            if (messages.size() > MAX_BATCH_SIZE) {
+                response.setMessage("单次最多写入" + MAX_BATCH_SIZE + "条留言");
+                response.setStatusCode(413);
+                sendResponse(handler, request, response);
+                return;
+            }
+
+            int[] statusCodes = new int[messages.size()];
+            ArrayList<String> contents = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                MessageEntity message = messages.get(i);
+                String content = message.getContent();
+                if (message.getDateTime() == null || content == null || content.isEmpty()
+                        || content.indexOf('\n') >= 0 || content.indexOf('\r') >= 0) {
+                    statusCodes[i] = 400;
+                    continue;
+                }
+                contents.add(message.getDate() + "," + content);
+                statusCodes[i] = 200;
+            }
+
+            boolean saved = contents.isEmpty() || handler.userManager.saveMessages(userName, contents);
+            for (int i = 0; i < statusCodes.length; i++) {
+                if (statusCodes[i] != 200) continue;
+                if (saved) handler.server.getSubscriptions().publish(userName, messages.get(i));
+                else statusCodes[i] = 500;
+            }
+
+            byte[] resultBytes = handler.codec.encode(new BatchResult(statusCodes));
+            if (resultBytes == null) throw new RuntimeException();
+            response.setData(resultBytes);
+            response.setMessage(saved ? "保存成功" : "保存失败，相关问题请咨询管理员");
+            response.setStatusCode(saved ? 200 : 500);
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 订阅某个用户的留言板，请求的消息为留言板所属的用户名，为空时订阅当前登录用户的留言板。
+     * 订阅成功后，该留言板上新保存的留言会以编号为{@link Response#PUSH_REQUEST_ID}的响应推送过来，见{@link SubscriptionManager}。
+     */
+    private static void handleSubscribe(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            String board = request.getMessage() == null ? handler.userName : request.getMessage();
+            if (handler.userName == null) {
+                response.setMessage("请先登录");
+                response.setStatusCode(403);
+            } else if (!handler.userManager.hasUser(board)) {
+                response.setMessage("没有该用户");
+                response.setStatusCode(404);
+            } else {
+                // 先订阅再响应，客户端收到响应后不会漏掉任何新留言
+                handler.server.getSubscriptions().subscribe(board, handler);
+                response.setMessage("订阅成功");
+                response.setStatusCode(200);
+            }
+
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    private static void handleUnsubscribe(RequestHandler handler, Request request) {
+        try {
+            String board = request.getMessage() == null ? handler.userName : request.getMessage();
+            boolean removed = board != null && handler.server.getSubscriptions().unsubscribe(board, handler);
+            Response response = removed ? new Response("取消订阅成功", null, 200) : new Response("未订阅该留言板", null, 404);
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 用会话令牌恢复登录状态，请求的消息为登录或上次恢复时得到的令牌。
+     * 成功时响应的消息为用户名、数据为新的会话令牌，旧令牌随即失效。
+     * 如果服务器还没有发现旧连接已经断开，旧连接的登录状态会被转移到当前连接。
+     */
+    private static void handleResume(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            SessionManager.Session session = handler.server.getSessions().resume(request.getMessage());
+            if (session == null) {
+                response.setMessage("会话已失效，请重新登录");
+                response.setStatusCode(401);
+                sendResponse(handler, request, response);
+                return;
+            }
+
+            String userName = session.getUserName();
+            RequestHandler oldOwner = session.getOwner();
+            if (oldOwner != null && oldOwner != handler) logout(oldOwner);
+            if (handler.userName != null) {
+                handler.server.getSessions().invalidate(handler.sessionToken);
+                logout(handler);
+            }
+
+            int code = handler.userManager.restore(userName, session.getGeneration());
+            if (code == 1) {
+                handler.userName = userName;
+                handler.sessionToken = handler.server.getSessions().issue(userName, session.getGeneration(), handler);
+                Utils.printLog(handler.clientSocket, "用户 " + userName + " 恢复登录");
+                response.setMessage(userName);
+                response.setData(handler.sessionToken.getBytes(StandardCharsets.UTF_8));
+                response.setStatusCode(200);
+            } else if (code == 3) {
+                response.setMessage("没有该用户");
+                response.setStatusCode(404);
+            } else if (code == 4) {
+                response.setMessage(userName + " 已在其他连接上登录");
+                response.setStatusCode(403);
+            }
+
+            sendResponse(handler, request, response);
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 心跳请求。客户端空闲时定期发送，使服务器不会把连接当作失效连接回收；客户端也由此发现失效的连接
+     */
+    private static void handlePing(RequestHandler handler, Request request) {
+        try {
+            sendResponse(handler, request, new Response("pong", null, 200));
+        } catch (Exception e) {
+            closeConnectionWithError(handler, e);
+        }
+    }
+
+    /**
+     * 查看服务器的存储统计，如留言缓存的命中率，只有root用户可以查看
+     */
+    private static void handleStats(RequestHandler handler, Request request) {
+        try {
+            Response response = new Response();
+
+            if (!"root".equals(handler.userName)) {
+                response.setMessage("您没有权限");
+                response.setStatusCode(403);
+            } else {
+                response.setMessage(handler.userManager.getStorageStats());
+                response.setStatusCode(200);
+            }
+
+            sendResponse(handler, request, response);
         } catch (Exception e) {
             closeConnectionWithError(handler, e);
         }
     }
+
+    /**
+     * bio模式下包装套接字输入流，记录读取活动和请求帧开始到达的时间
+     */
+    private class TrackedInputStream extends FilterInputStream {
+        private TrackedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) this.onRead();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) this.onRead();
+            return n;
+        }
+
+        private void onRead() {
+            if (RequestHandler.this.frameStartedAt == 0) RequestHandler.this.markFrameStarted();
+            else RequestHandler.this.markActive();
+        }
+    }
+
+    /**
+     * 非阻塞传输层的输出流实现该接口，推送前由此检查连接上已经写出、尚未发送到套接字的数据
+     */
+    protected interface PendingOutput {
+        long pendingBytes();
+    }
+
+    /**
+     * 阻塞模式下向订阅者推送的写出线程，每个有订阅的连接一个。推送线程只把编码好的响应帧放入它的队列，
+     * 套接字写入阻塞时只阻塞该线程；队列中以及正在写出的数据超过{@link ServerConfig#MAX_PENDING_OUTPUT}时不再接受新的帧
+     */
+    private class PushWriter implements Runnable {
+        private final ArrayDeque<byte[]> frames;
+        // 队列中以及正在写出的字节数
+        private long pendingBytes;
+        private boolean closed;
+
+        private PushWriter() {
+            this.frames = new ArrayDeque<>();
+            this.pendingBytes = 0;
+            this.closed = false;
+        }
+
+        private synchronized boolean offer(byte[] frame) throws IOException {
+            if (this.closed) throw new IOException("连接已关闭");
+            if (this.pendingBytes > ServerConfig.MAX_PENDING_OUTPUT) return false;
+            this.frames.add(frame);
+            this.pendingBytes += frame.length;
+            this.notifyAll();
+            return true;
+        }
+
+        private synchronized void close() {
+            this.closed = true;
+            this.frames.clear();
+            this.notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] frame;
+                    synchronized (this) {
+                        while (!this.closed && this.frames.isEmpty()) this.wait();
+                        if (this.closed) return;
+                        frame = this.frames.poll();
+                    }
+
+                    RequestHandler.this.outputLock.lock();
+                    try {
+                        RequestHandler.this.outputStream.write(frame);
+                        RequestHandler.this.outputStream.flush();
+                    } finally {
+                        RequestHandler.this.outputLock.unlock();
+                    }
+
+                    synchronized (this) {
+                        this.pendingBytes -= frame.length;
+                    }
+                }
+            } catch (InterruptedException ignore) {
+            } catch (Exception e) {
+                closeConnectionWithTip(RequestHandler.this);
+            }
+        }
+    }
+
+    /**
+     * bio模式下包装套接字输出流，记录写出活动。写入阻塞说明对方没有读取数据，此时不会记录活动
+     */
+    private class TrackedOutputStream extends FilterOutputStream {
+        private TrackedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            RequestHandler.this.markActive();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            RequestHandler.this.markActive();
+        }
+    }
 }
@@ -0,0 +1,738 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.SegmentedLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 留言的全文索引。
+ * 每个用户的日志目录下的{@value #DIR_NAME}子目录保存该用户留言的倒排索引，由若干个{@link SearchSegment}组成，
+ * 每个段覆盖一段序号连续的留言，所有段首尾相接。
+ * <p>
+ * 新留言写入日志后由提交线程加入内存中的索引，内存中的留言达到{@code flushMessages}条后冻结，由后台的写入线程写成新的段。
+ * 相邻的{@value #MERGE_FACTOR}个同一级别的段由后台的合并线程合并为一个高一级的段，合并较大的段时不影响新的段写入，段的数量随留言数量对数增长，超过{@value #MAX_SEGMENT_BYTES}字节的段不再合并。
+ * 内存中的索引不写入磁盘，重新打开时从日志中读取最后一个段之后的留言重建。新写入的段不刷盘，断电后不完整的段在打开时无法通过校验，
+ * 之后的留言同样从日志重建；合并得到的段刷盘后才删除合并前的段。中途失败留下的临时文件、被合并后没有删除的段以及不连续的段在打开时删除。
+ * <p>
+ * 查询时用{@link BigramTokenizer}切分查询词，只返回包含全部词的留言，按BM25（不考虑留言长度）计算的相关度从高到低排列，相关度相同时较新的留言在前。
+ * 查找从最新的留言开始，以包含的留言最少的词为主逐条检查，找到{@value #MAX_HITS}条匹配的留言或检查了{@value #MAX_SCANNED}条留言后停止，
+ * 因此常见词的查询只在较新的留言中查找和排序，查询的开销不随留言总数增长。
+ */
+public class SearchIndex implements Closeable {
+    protected static final String DIR_NAME = "search";
+    protected static final int MERGE_FACTOR = 8;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    protected static final int MAX_HITS = 10000;
+    // 每次查询最多检查的留言数量
+    private static final int MAX_SCANNED = 100000;
+    // BM25的词频饱和参数
+    private static final double K1 = 1.2;
+    // 从日志补齐索引时每次读取的留言数量
+    private static final int READ_BATCH_SIZE = 1024;
+    // 从日志补齐索引时最多等待写入的内存索引数量，超出时等待写入线程，避免一次补齐大量留言时内存中积累过多的索引
+    private static final int MAX_PENDING_FLUSHES = 4;
+
+    private final File dir;
+    private final int flushMessages;
+    // 写入段和合并段的后台线程，所有用户的全文索引共用
+    private final Executor flusher;
+    private final Executor merger;
+    // 保证同一时间只有一个请求从日志补齐索引
+    private final Object catchUpLock;
+    // 已经写成的段，按序号排列
+    private final ArrayList<SearchSegment> segments;
+    // 已经冻结、等待写成段的内存索引，按序号排列
+    private final ArrayList<MemTable> frozen;
+    private MemTable memTable;
+    // 已经冻结、还没有完成写入（包括写入失败）的内存索引数量
+    private int pendingFlushes;
+    private boolean merging;
+    private boolean closed;
+
+    /**
+     * 打开全文索引，删除无效的段
+     * @param logDir 日志目录
+     * @param nextSequence 日志中下一条留言的序号，覆盖更大序号的段视为无效
+     * @param flushMessages 内存中的索引写成段的留言数量
+     * @param flusher 写入段的后台线程
+     * @param merger 合并段的后台线程
+     */
+    protected SearchIndex(File logDir, long nextSequence, int flushMessages, Executor flusher, Executor merger) {
+        this.dir = new File(logDir, DIR_NAME);
+        this.flushMessages = Math.max(1, flushMessages);
+        this.flusher = flusher;
+        this.merger = merger;
+        this.catchUpLock = new Object();
+        this.segments = new ArrayList<>();
+        this.frozen = new ArrayList<>();
+        this.pendingFlushes = 0;
+        this.merging = false;
+        this.closed = false;
+        this.memTable = new MemTable(this.load(nextSequence));
+    }
+
+    // 打开首尾相接的段，返回最后一个段的结束序号
+    private long load(long nextSequence) {
+        File[] files = this.dir.listFiles();
+        if (files == null) return 0;
+
+        ArrayList<long[]> ranges = new ArrayList<>();
+        for (final File file : files) {
+            long[] range = SearchSegment.parseRange(file.getName());
+            if (range != null) ranges.add(range);
+            else if (file.getName().endsWith(SearchSegment.TEMP_SUFFIX)) delete(file);
+        }
+        // 起始序号相同时范围大的在前，被合并后没有删除的段被它之前的段包含
+        ranges.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]));
+
+        long end = -1;
+        boolean broken = false;
+        for (final long[] range : ranges) {
+            File file = SearchSegment.file(this.dir, range[0], range[1]);
+            if (end >= 0 && range[1] <= end) {
+                delete(file);
+                continue;
+            }
+            if (!broken && (end < 0 || range[0] == end) && range[1] <= nextSequence) {
+                try {
+                    this.segments.add(SearchSegment.open(file));
+                    end = range[1];
+                    continue;
+                } catch (IOException e) {
+                    AsyncLogger.log(AsyncLogger.Level.WARN, null, "读取全文索引失败，将从日志重建：", String.valueOf(e));
+                }
+            }
+            // 之后的段与已经打开的段不再相接，之后的留言从日志重建索引
+            broken = true;
+            delete(file);
+        }
+        return Math.max(end, 0);
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * @return 已经建立索引的留言的下一个序号
+     */
+    protected synchronized long getIndexedNext() {
+        return this.memTable.end;
+    }
+
+    /**
+     * 把新写入的留言加入索引，已经建立索引的留言跳过，与已有的索引不相接时忽略，由查询前的{@link #catchUp(SegmentedLog, long)}从日志补齐
+     * @param firstSequence 第一条留言的序号
+     * @param lines 留言，每条为"日期,内容"
+     */
+    protected void add(long firstSequence, List<String> lines) {
+        long next = this.getIndexedNext();
+        if (firstSequence > next || firstSequence + lines.size() <= next) return;
+
+        // 在锁外分词，不阻塞查询
+        int skip = (int) (next - firstSequence);
+        ArrayList<HashMap<String, Integer>> documents = new ArrayList<>(lines.size() - skip);
+        for (int i = skip; i < lines.size(); i++) {
+            documents.add(BigramTokenizer.index(content(lines.get(i))));
+        }
+
+        synchronized (this) {
+            if (this.closed) return;
+            long indexed = this.memTable.end;
+            if (indexed < next) return;
+            for (int i = (int) (indexed - next); i < documents.size(); i++) {
+                this.memTable.add(documents.get(i));
+                if (this.memTable.count >= this.flushMessages) this.freeze();
+            }
+        }
+    }
+
+    /**
+     * 为日志中尚未建立索引的留言建立索引
+     * @param log 留言日志
+     * @param maxMessages 最多读取的留言数量
+     * @throws IOException 读取日志失败时抛出
+     */
+    protected void catchUp(SegmentedLog log, long maxMessages) throws IOException {
+        synchronized (this.catchUpLock) {
+            long next = this.getIndexedNext();
+            long first = log.getFirstSequence();
+            if (next < first) {
+                // 已经不存在的留言不需要索引
+                synchronized (this) {
+                    if (this.memTable.end < first) this.memTable.end = first;
+                }
+                next = this.getIndexedNext();
+            }
+
+            long end = log.getNextSequence();
+            if (end - next > maxMessages) end = next + Math.max(0, maxMessages);
+            while (next < end) {
+                List<byte[]> records = log.read(next, (int) Math.min(READ_BATCH_SIZE, end - next));
+                if (records.isEmpty()) break;
+                if (log.getFirstSequence() > next) {
+                    // 读取期间开头的留言被删除，读到的留言不是从next开始，跳过已经不存在的留言
+                    synchronized (this) {
+                        if (this.memTable.end < log.getFirstSequence()) this.memTable.end = log.getFirstSequence();
+                    }
+                    next = this.getIndexedNext();
+                    continue;
+                }
+                ArrayList<String> lines = new ArrayList<>(records.size());
+                for (final byte[] record : records) {
+                    lines.add(new String(record, StandardCharsets.UTF_8));
+                }
+                this.add(next, lines);
+                next = Math.max(next + records.size(), this.getIndexedNext());
+                this.awaitFlushes();
+            }
+        }
+    }
+
+    /**
+     * 删除只包含已经从日志中删除的留言的段，正在合并时不删除，留到下一次
+     * @param sequence 日志中第一条留言的序号
+     */
+    protected void deleteBefore(long sequence) {
+        ArrayList<SearchSegment> deleted = new ArrayList<>();
+        synchronized (this) {
+            if (this.merging || this.closed) return;
+            while (!this.segments.isEmpty() && this.segments.get(0).getEnd() <= sequence) {
+                deleted.add(this.segments.remove(0));
+            }
+        }
+        // 正在查询的请求仍然可以通过映射读取已经删除的段
+        for (final SearchSegment segment : deleted) {
+            delete(segment.getFile());
+        }
+    }
+
+    private synchronized void awaitFlushes() throws IOException {
+        try {
+            while (this.pendingFlushes > MAX_PENDING_FLUSHES && !this.closed) this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待写入全文索引时被中断");
+        }
+    }
+
+    // 去掉留言开头的日期
+    private static String content(String line) {
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(comma + 1);
+    }
+
+    // 冻结内存中的索引，交给后台线程写成段
+    private void freeze() {
+        MemTable table = this.memTable;
+        this.frozen.add(table);
+        this.memTable = new MemTable(table.end);
+        this.pendingFlushes++;
+        this.flusher.execute(() -> this.flush(table));
+    }
+
+    private void flush(MemTable table) {
+        SearchSegment segment;
+        try {
+            if (!this.dir.isDirectory() && !this.dir.mkdirs()) throw new IOException("创建目录失败：" + this.dir);
+            segment = table.write(this.dir);
+        } catch (IOException e) {
+            // 冻结的索引留在内存中，仍然可以查询，重新打开时从日志重建
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "写入全文索引失败：", String.valueOf(e));
+            segment = null;
+        }
+
+        synchronized (this) {
+            this.pendingFlushes--;
+            this.notifyAll();
+            if (segment == null || this.closed) return;
+            this.frozen.remove(table);
+            this.segments.add(segment);
+            this.mergeIfNeeded();
+        }
+    }
+
+    // 查找相邻的MERGE_FACTOR个同一级别的段，交给后台线程合并
+    private void mergeIfNeeded() {
+        if (this.merging || this.closed) return;
+        int runStart = 0;
+        long runBytes = 0;
+        for (int i = 0; i < this.segments.size(); i++) {
+            SearchSegment segment = this.segments.get(i);
+            if (i > runStart) {
+                SearchSegment previous = this.segments.get(i - 1);
+                if (segment.getStart() != previous.getEnd() || this.level(segment) != this.level(previous)) {
+                    runStart = i;
+                    runBytes = 0;
+                }
+            }
+            runBytes += segment.getByteSize();
+            if (i - runStart + 1 < MERGE_FACTOR) continue;
+            if (runBytes > MAX_SEGMENT_BYTES) {
+                runStart = i + 1;
+                runBytes = 0;
+                continue;
+            }
+
+            List<SearchSegment> inputs = new ArrayList<>(this.segments.subList(runStart, i + 1));
+            this.merging = true;
+            this.merger.execute(() -> this.merge(inputs));
+            return;
+        }
+    }
+
+    // 段的级别：写入的段为0级，合并MERGE_FACTOR个n级的段得到n+1级的段
+    private int level(SearchSegment segment) {
+        long span = segment.getEnd() - segment.getStart();
+        int level = 0;
+        for (long capacity = this.flushMessages; span > capacity; capacity *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    private void merge(List<SearchSegment> inputs) {
+        SearchSegment merged = null;
+        try {
+            merged = merge(this.dir, inputs);
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "合并全文索引失败：", String.valueOf(e));
+        }
+
+        synchronized (this) {
+            this.merging = false;
+            // 已经关闭时合并前的段留在磁盘上，下次打开时删除
+            if (merged == null || this.closed) return;
+            int i = this.segments.indexOf(inputs.get(0));
+            this.segments.subList(i, i + inputs.size()).clear();
+            this.segments.add(i, merged);
+        }
+        // 正在查询的请求仍然可以通过映射读取已经删除的段
+        for (final SearchSegment input : inputs) {
+            delete(input.getFile());
+        }
+        synchronized (this) {
+            this.mergeIfNeeded();
+        }
+    }
+
+    /**
+     * 把序号相接的若干个段合并为一个段，各段中相同的词的倒排列表按段的顺序首尾相接
+     */
+    private static SearchSegment merge(File dir, List<SearchSegment> inputs) throws IOException {
+        int n = inputs.size();
+        byte[][] terms = new byte[n][];
+        int[] positions = new int[n];
+        // 按当前的词排序，词相同时按段的顺序
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Arrays.compareUnsigned(terms[a], terms[b]);
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int k = 0; k < n; k++) {
+            if (inputs.get(k).getTermCount() == 0) continue;
+            terms[k] = inputs.get(k).termAt(0);
+            queue.add(k);
+        }
+
+        long[] sequences = new long[SearchSegment.BLOCK_SIZE];
+        int[] frequencies = new int[SearchSegment.BLOCK_SIZE];
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(dir, inputs.get(0).getStart(), inputs.get(n - 1).getEnd())) {
+            while (!queue.isEmpty()) {
+                byte[] term = terms[queue.peek()];
+                writer.beginTerm(term);
+                while (!queue.isEmpty() && Arrays.equals(terms[queue.peek()], term)) {
+                    int k = queue.poll();
+                    SearchSegment input = inputs.get(k);
+                    copy(input.postings(positions[k]), writer, sequences, frequencies);
+                    if (++positions[k] < input.getTermCount()) {
+                        terms[k] = input.termAt(positions[k]);
+                        queue.add(k);
+                    }
+                }
+                writer.endTerm();
+            }
+            writer.commit(true);
+            return SearchSegment.open(writer.getFile());
+        }
+    }
+
+    private static void copy(SearchSegment.PostingList postings, SearchSegment.Writer writer,
+                             long[] sequences, int[] frequencies) {
+        for (int block = 0; block < postings.blocks(); block++) {
+            int count = postings.decodeBlock(block, sequences, frequencies);
+            for (int i = 0; i < count; i++) {
+                writer.add(sequences[i], frequencies[i]);
+            }
+        }
+    }
+
+    /**
+     * 查找包含全部词的留言
+     * @param terms 切分后的查询词
+     * @param minSequence 最早的留言的序号，更早的留言已经不存在
+     * @param limit 最多返回的数量
+     * @return 排名最前的匹配的留言的序号，按相关度从高到低排列。只在较新的匹配的留言中排名，见类的说明
+     */
+    protected long[] search(List<String> terms, long minSequence, int limit) {
+        if (terms.isEmpty()) return new long[0];
+        byte[][] keys = new byte[terms.size()][];
+        for (int t = 0; t < keys.length; t++) {
+            keys[t] = terms.get(t).getBytes(StandardCharsets.UTF_8);
+        }
+
+        // 每个来源中各词的倒排列表，来源按从新到旧排列
+        ArrayList<SearchSegment.PostingList[]> sources = new ArrayList<>();
+        ArrayList<MemTable> frozen;
+        ArrayList<SearchSegment> segments;
+        long documents;
+        synchronized (this) {
+            // 内存中的索引还在变化，复制查询词的倒排列表；冻结的索引和段不再变化，可以在锁外读取
+            sources.add(this.memTable.snapshot(terms));
+            frozen = new ArrayList<>(this.frozen);
+            segments = new ArrayList<>(this.segments);
+            documents = Math.max(1, this.memTable.end - minSequence);
+        }
+        for (int i = frozen.size() - 1; i >= 0; i--) {
+            sources.add(frozen.get(i).lists(terms));
+        }
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            SearchSegment segment = segments.get(i);
+            if (segment.getEnd() <= minSequence) break;
+            SearchSegment.PostingList[] lists = new SearchSegment.PostingList[keys.length];
+            for (int t = 0; t < keys.length; t++) {
+                int position = segment.find(keys[t]);
+                if (position >= 0) lists[t] = segment.postings(position);
+            }
+            sources.add(lists);
+        }
+
+        // 包含各词的留言数量越少，词的权重越高
+        double[] idf = new double[keys.length];
+        for (int t = 0; t < keys.length; t++) {
+            long frequency = 0;
+            for (final SearchSegment.PostingList[] lists : sources) {
+                if (lists[t] != null) frequency += lists[t].size();
+            }
+            if (frequency == 0) return new long[0];
+            // 包含已经不存在的留言时留言数量可能超过总数
+            idf[t] = Math.log(1 + (Math.max(documents, frequency) - frequency + 0.5) / (frequency + 0.5));
+        }
+
+        Hits hits = new Hits();
+        for (final SearchSegment.PostingList[] lists : sources) {
+            if (!collect(lists, idf, minSequence, hits)) break;
+        }
+        return hits.rank(limit);
+    }
+
+    /**
+     * 在一个来源中从新到旧查找包含全部词的留言。以包含的留言最少的词为主，逐条检查其他词是否出现在同一条留言中
+     * @return 是否需要继续查找更早的来源
+     */
+    private static boolean collect(SearchSegment.PostingList[] lists, double[] idf, long minSequence, Hits hits) {
+        int lead = 0;
+        for (int t = 0; t < lists.length; t++) {
+            if (lists[t] == null) return true;
+            if (lists[t].size() < lists[lead].size()) lead = t;
+        }
+        Cursor[] cursors = new Cursor[lists.length];
+        for (int t = 0; t < lists.length; t++) {
+            if (t != lead) cursors[t] = new Cursor(lists[t]);
+        }
+
+        long[] sequences = new long[SearchSegment.BLOCK_SIZE];
+        int[] frequencies = new int[SearchSegment.BLOCK_SIZE];
+        SearchSegment.PostingList postings = lists[lead];
+        for (int block = postings.blocks() - 1; block >= 0; block--) {
+            int count = postings.decodeBlock(block, sequences, frequencies);
+            for (int i = count - 1; i >= 0; i--) {
+                long sequence = sequences[i];
+                if (sequence < minSequence || !hits.scan()) return false;
+                double score = weigh(idf[lead], frequencies[i]);
+                boolean matched = true;
+                for (int t = 0; t < lists.length && matched; t++) {
+                    if (t == lead) continue;
+                    int frequency = cursors[t].find(sequence);
+                    matched = frequency > 0;
+                    score += weigh(idf[t], frequency);
+                }
+                if (matched && !hits.add(sequence, score)) return false;
+            }
+        }
+        return true;
+    }
+
+    private static double weigh(double idf, int frequency) {
+        return idf * frequency * (K1 + 1) / (frequency + K1);
+    }
+
+    /**
+     * 关闭索引，内存中的索引直接丢弃，已经冻结的索引仍然写成段
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    /**
+     * 在倒排列表中按序号查找留言，查找的序号从大到小时大多只需要检查当前块或前一块
+     */
+    private static class Cursor {
+        private final SearchSegment.PostingList postings;
+        private final long[] sequences;
+        private final int[] frequencies;
+        // 当前解码的块及其序号范围 [blockStart, blockEnd)
+        private int block;
+        private int count;
+        private long blockStart;
+        private long blockEnd;
+
+        private Cursor(SearchSegment.PostingList postings) {
+            this.postings = postings;
+            this.sequences = new long[SearchSegment.BLOCK_SIZE];
+            this.frequencies = new int[SearchSegment.BLOCK_SIZE];
+            this.block = -1;
+            this.count = 0;
+        }
+
+        /**
+         * @return 词在该留言中出现的次数，不包含该词时返回0
+         */
+        private int find(long sequence) {
+            if (this.block < 0 || sequence < this.blockStart || sequence >= this.blockEnd) {
+                int block = this.locate(sequence);
+                if (block < 0) return 0;
+                this.count = this.postings.decodeBlock(block, this.sequences, this.frequencies);
+                this.block = block;
+                this.blockStart = this.postings.blockFirst(block);
+                this.blockEnd = block + 1 < this.postings.blocks() ? this.postings.blockFirst(block + 1) : Long.MAX_VALUE;
+            }
+            int i = Arrays.binarySearch(this.sequences, 0, this.count, sequence);
+            return i >= 0 ? this.frequencies[i] : 0;
+        }
+
+        // 最后一个第一条留言的序号不大于sequence的块，没有时返回-1
+        private int locate(long sequence) {
+            int low = 0;
+            int high = this.postings.blocks() - 1;
+            if (this.block >= 0) {
+                if (sequence >= this.blockEnd) {
+                    low = this.block + 1;
+                } else {
+                    high = this.block - 1;
+                    if (high >= 0 && this.postings.blockFirst(high) <= sequence) return high;
+                }
+            }
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (this.postings.blockFirst(middle) <= sequence) low = middle + 1;
+                else high = middle - 1;
+            }
+            return high;
+        }
+    }
+
+    /**
+     * 匹配的留言及其相关度
+     */
+    private static class Hits {
+        private long[] sequences;
+        private double[] scores;
+        private int size;
+        // 已经检查的留言数量
+        private int scanned;
+
+        private Hits() {
+            this.sequences = new long[64];
+            this.scores = new double[64];
+            this.size = 0;
+            this.scanned = 0;
+        }
+
+        /**
+         * 检查一条留言之前调用
+         * @return 是否还可以继续检查
+         */
+        private boolean scan() {
+            return this.scanned++ < MAX_SCANNED;
+        }
+
+        /**
+         * @return 是否还可以继续添加
+         */
+        private boolean add(long sequence, double score) {
+            if (this.size == this.sequences.length) {
+                this.sequences = Arrays.copyOf(this.sequences, this.size * 2);
+                this.scores = Arrays.copyOf(this.scores, this.size * 2);
+            }
+            this.sequences[this.size] = sequence;
+            this.scores[this.size] = score;
+            return ++this.size < MAX_HITS;
+        }
+
+        /**
+         * 选出排名最前的若干条留言，只对选出的留言排序
+         * @param limit 最多选出的数量
+         * @return 留言的序号，按排名排列
+         */
+        private long[] rank(int limit) {
+            int k = Math.min(limit, this.size);
+            if (k <= 0) return new long[0];
+            // 堆顶为已经选出的留言中排名最后的一条
+            PriorityQueue<Integer> heap = new PriorityQueue<>(k, (a, b) -> this.compare(b, a));
+            for (int i = 0; i < this.size; i++) {
+                if (heap.size() < k) {
+                    heap.add(i);
+                } else if (this.compare(i, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(i);
+                }
+            }
+            long[] ranked = new long[heap.size()];
+            for (int i = ranked.length - 1; i >= 0; i--) {
+                ranked[i] = this.sequences[heap.poll()];
+            }
+            return ranked;
+        }
+
+        // 相关度高的在前，相关度相同时较新的在前
+        private int compare(int a, int b) {
+            int cmp = Double.compare(this.scores[b], this.scores[a]);
+            return cmp != 0 ? cmp : Long.compare(this.sequences[b], this.sequences[a]);
+        }
+    }
+
+    /**
+     * 内存中的索引，覆盖序号在 [start, end) 内的留言
+     */
+    private static class MemTable {
+        private final long start;
+        private long end;
+        // 加入的留言数量
+        private int count;
+        private final HashMap<String, MemPostings> postings;
+
+        private MemTable(long start) {
+            this.start = start;
+            this.end = start;
+            this.count = 0;
+            this.postings = new HashMap<>();
+        }
+
+        private void add(Map<String, Integer> terms) {
+            long sequence = this.end++;
+            this.count++;
+            for (final Map.Entry<String, Integer> entry : terms.entrySet()) {
+                this.postings.computeIfAbsent(entry.getKey(), key -> new MemPostings()).add(sequence, entry.getValue());
+            }
+        }
+
+        private SearchSegment.PostingList[] lists(List<String> terms) {
+            SearchSegment.PostingList[] lists = new SearchSegment.PostingList[terms.size()];
+            for (int t = 0; t < lists.length; t++) {
+                lists[t] = this.postings.get(terms.get(t));
+            }
+            return lists;
+        }
+
+        private SearchSegment.PostingList[] snapshot(List<String> terms) {
+            SearchSegment.PostingList[] lists = new SearchSegment.PostingList[terms.size()];
+            for (int t = 0; t < lists.length; t++) {
+                MemPostings postings = this.postings.get(terms.get(t));
+                if (postings != null) lists[t] = postings.copy();
+            }
+            return lists;
+        }
+
+        // 按词的顺序写成段
+        private SearchSegment write(File dir) throws IOException {
+            TreeMap<byte[], MemPostings> sorted = new TreeMap<>(Arrays::compareUnsigned);
+            for (final Map.Entry<String, MemPostings> entry : this.postings.entrySet()) {
+                sorted.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+            }
+
+            long[] sequences = new long[SearchSegment.BLOCK_SIZE];
+            int[] frequencies = new int[SearchSegment.BLOCK_SIZE];
+            try (SearchSegment.Writer writer = new SearchSegment.Writer(dir, this.start, this.end)) {
+                for (final Map.Entry<byte[], MemPostings> entry : sorted.entrySet()) {
+                    writer.beginTerm(entry.getKey());
+                    copy(entry.getValue(), writer, sequences, frequencies);
+                    writer.endTerm();
+                }
+                writer.commit(false);
+                return SearchSegment.open(writer.getFile());
+            }
+        }
+    }
+
+    private static class MemPostings implements SearchSegment.PostingList {
+        private long[] sequences;
+        private int[] frequencies;
+        private int size;
+
+        private MemPostings() {
+            this(new long[4], new int[4], 0);
+        }
+
+        private MemPostings(long[] sequences, int[] frequencies, int size) {
+            this.sequences = sequences;
+            this.frequencies = frequencies;
+            this.size = size;
+        }
+
+        private void add(long sequence, int frequency) {
+            if (this.size == this.sequences.length) {
+                this.sequences = Arrays.copyOf(this.sequences, this.size * 2);
+                this.frequencies = Arrays.copyOf(this.frequencies, this.size * 2);
+            }
+            this.sequences[this.size] = sequence;
+            this.frequencies[this.size] = frequency;
+            this.size++;
+        }
+
+        private MemPostings copy() {
+            return new MemPostings(Arrays.copyOf(this.sequences, this.size), Arrays.copyOf(this.frequencies, this.size), this.size);
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public int blocks() {
+            return (this.size + SearchSegment.BLOCK_SIZE - 1) / SearchSegment.BLOCK_SIZE;
+        }
+
+        @Override
+        public long blockFirst(int block) {
+            return this.sequences[block * SearchSegment.BLOCK_SIZE];
+        }
+
+        @Override
+        public int decodeBlock(int block, long[] sequences, int[] frequencies) {
+            int from = block * SearchSegment.BLOCK_SIZE;
+            int count = Math.min(SearchSegment.BLOCK_SIZE, this.size - from);
+            System.arraycopy(this.sequences, from, sequences, 0, count);
+            System.arraycopy(this.frequencies, from, frequencies, 0, count);
+            return count;
+        }
+    }
+}
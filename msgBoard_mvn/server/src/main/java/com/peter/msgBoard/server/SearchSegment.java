@@ -0,0 +1,423 @@
+package com.peter.msgBoard.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 全文索引的段。
+ * 序号在 [start, end) 内的留言的倒排索引，写成后不再修改，通过内存映射打开，查找词时在偏移表上二分查找，只有访问到的页才会被读入内存。
+ * 文件格式：4字节魔数 + 4字节词数 + 4字节偏移表的位置 + 8字节起始序号 + 8字节结束序号，之后依次为每个词的记录，
+ * 最后为偏移表，按词的顺序保存每条记录的位置（4字节）。词按UTF-8编码的无符号字节顺序排序。
+ * <p>
+ * 每条记录为：2字节词的长度 + 词（UTF-8编码）+ 4字节包含该词的留言数 + 4字节块数 + 每块的跳表项（8字节第一条留言的序号 + 4字节该块在倒排数据中的位置），
+ * 之后为倒排数据。倒排数据按留言序号从小到大，每{@value #BLOCK_SIZE}条留言为一块，每条留言依次保存与前一条留言的序号之差和词在留言中出现的次数（均为变长整数），
+ * 每块的第一条留言与该块跳表项中的序号相比。查找某条留言时通过跳表直接定位到所在的块，不需要解码之前的块。
+ * <p>
+ * 文件名为"起始序号-结束序号.seg"，由{@link Writer}一次写成，写入临时文件（需要时刷盘）后重命名。
+ */
+public class SearchSegment {
+    protected static final String SUFFIX = ".seg";
+    protected static final String TEMP_SUFFIX = ".tmp";
+    protected static final int BLOCK_SIZE = 128;
+    private static final int MAGIC = 0x4D425331;
+    private static final int HEADER_SIZE = 28;
+    private static final int OFFSET_SIZE = 4;
+    private static final int SKIP_ENTRY_SIZE = 12;
+    // 文件名中序号的位数
+    private static final int SEQUENCE_DIGITS = 20;
+
+    private final File file;
+    private final ByteBuffer mapping;
+    private final int termCount;
+    private final int tableOffset;
+    private final long start;
+    private final long end;
+
+    private SearchSegment(File file, ByteBuffer mapping, int termCount, int tableOffset, long start, long end) {
+        this.file = file;
+        this.mapping = mapping;
+        this.termCount = termCount;
+        this.tableOffset = tableOffset;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 映射段文件
+     * @param file 段文件
+     * @return 段
+     * @throws IOException 文件无法映射或格式错误时抛出
+     */
+    protected static SearchSegment open(File file) throws IOException {
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("全文索引大小不合法：" + file);
+            // 映射在通道关闭后仍然有效
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int termCount = mapping.getInt(4);
+        int tableOffset = mapping.getInt(8);
+        long start = mapping.getLong(12);
+        long end = mapping.getLong(20);
+        if (mapping.getInt(0) != MAGIC || termCount < 0 || tableOffset < HEADER_SIZE || start < 0 || end < start
+                || (long) tableOffset + (long) termCount * OFFSET_SIZE != mapping.capacity())
+            throw new IOException("全文索引格式错误：" + file);
+        return new SearchSegment(file, mapping, termCount, tableOffset, start, end);
+    }
+
+    /**
+     * @param dir 全文索引目录
+     * @param start 起始序号
+     * @param end 结束序号（不含）
+     * @return 覆盖该序号范围的段文件
+     */
+    protected static File file(File dir, long start, long end) {
+        return new File(dir, String.format("%0" + SEQUENCE_DIGITS + "d-%0" + SEQUENCE_DIGITS + "d", start, end) + SUFFIX);
+    }
+
+    /**
+     * 从段文件名中解析序号范围
+     * @param name 文件名
+     * @return 起始序号和结束序号，不是段文件时返回null
+     */
+    protected static long[] parseRange(String name) {
+        if (name.length() != SEQUENCE_DIGITS * 2 + 1 + SUFFIX.length() || !name.endsWith(SUFFIX)
+                || name.charAt(SEQUENCE_DIGITS) != '-') return null;
+        try {
+            long start = Long.parseLong(name.substring(0, SEQUENCE_DIGITS));
+            long end = Long.parseLong(name.substring(SEQUENCE_DIGITS + 1, SEQUENCE_DIGITS * 2 + 1));
+            return start < 0 || end < start ? null : new long[]{start, end};
+        } catch (NumberFormatException ignore) {
+            return null;
+        }
+    }
+
+    protected File getFile() {
+        return this.file;
+    }
+
+    protected long getStart() {
+        return this.start;
+    }
+
+    protected long getEnd() {
+        return this.end;
+    }
+
+    protected int getTermCount() {
+        return this.termCount;
+    }
+
+    /**
+     * @return 段文件的字节数
+     */
+    protected long getByteSize() {
+        return this.mapping.capacity();
+    }
+
+    /**
+     * 二分查找词
+     * @param term 词的UTF-8编码
+     * @return 词在段中的位置，不存在时返回-1
+     */
+    protected int find(byte[] term) {
+        int low = 0;
+        int high = this.termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = this.compareTerm(this.recordOffset(middle), term);
+            if (cmp < 0) low = middle + 1;
+            else if (cmp > 0) high = middle - 1;
+            else return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * @param i 词在段中的位置
+     * @return 词的UTF-8编码
+     */
+    protected byte[] termAt(int i) {
+        int offset = this.recordOffset(i);
+        byte[] term = new byte[this.mapping.getShort(offset) & 0xFFFF];
+        this.mapping.get(offset + 2, term);
+        return term;
+    }
+
+    /**
+     * @param i 词在段中的位置
+     * @return 该词的倒排列表
+     */
+    protected PostingList postings(int i) {
+        int offset = this.recordOffset(i);
+        offset += 2 + (this.mapping.getShort(offset) & 0xFFFF);
+        int size = this.mapping.getInt(offset);
+        int blocks = this.mapping.getInt(offset + 4);
+        return new Postings(size, blocks, offset + 8);
+    }
+
+    private int recordOffset(int i) {
+        return this.mapping.getInt(this.tableOffset + i * OFFSET_SIZE);
+    }
+
+    // 不复制字节，直接比较映射中的词
+    private int compareTerm(int offset, byte[] term) {
+        int length = this.mapping.getShort(offset) & 0xFFFF;
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(this.mapping.get(offset + 2 + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    /**
+     * 一个词的倒排列表，按留言序号从小到大分块读取，每块{@value #BLOCK_SIZE}条留言（最后一块可能不足）
+     */
+    protected interface PostingList {
+        /**
+         * @return 包含该词的留言数量
+         */
+        int size();
+
+        int blocks();
+
+        /**
+         * @param block 块的位置
+         * @return 该块第一条留言的序号
+         */
+        long blockFirst(int block);
+
+        /**
+         * 解码一块
+         * @param block 块的位置
+         * @param sequences 保存留言的序号，长度不小于{@value #BLOCK_SIZE}
+         * @param frequencies 保存词在留言中出现的次数，长度不小于{@value #BLOCK_SIZE}
+         * @return 该块的留言数量
+         */
+        int decodeBlock(int block, long[] sequences, int[] frequencies);
+    }
+
+    private class Postings implements PostingList {
+        private final int size;
+        private final int blocks;
+        private final int skipOffset;
+        private final int dataOffset;
+
+        private Postings(int size, int blocks, int skipOffset) {
+            this.size = size;
+            this.blocks = blocks;
+            this.skipOffset = skipOffset;
+            this.dataOffset = skipOffset + blocks * SKIP_ENTRY_SIZE;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public int blocks() {
+            return this.blocks;
+        }
+
+        @Override
+        public long blockFirst(int block) {
+            return SearchSegment.this.mapping.getLong(this.skipOffset + block * SKIP_ENTRY_SIZE);
+        }
+
+        @Override
+        public int decodeBlock(int block, long[] sequences, int[] frequencies) {
+            ByteBuffer mapping = SearchSegment.this.mapping;
+            int position = this.dataOffset + mapping.getInt(this.skipOffset + block * SKIP_ENTRY_SIZE + 8);
+            int count = Math.min(BLOCK_SIZE, this.size - block * BLOCK_SIZE);
+            long sequence = this.blockFirst(block);
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mapping.get(position++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                sequence += delta;
+                sequences[i] = sequence;
+
+                int frequency = 0;
+                shift = 0;
+                do {
+                    b = mapping.get(position++);
+                    frequency |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                frequencies[i] = frequency;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 段的写入器，词必须按顺序添加，每个词的留言必须按序号从小到大添加，调用{@link #commit()}后才替换目标文件
+     */
+    protected static class Writer implements Closeable {
+        private final File file;
+        private final File tempFile;
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream outputStream;
+        private int[] offsets;
+        private int termCount;
+        private long position;
+        private byte[] lastTerm;
+        // 正在写入的词及其倒排数据，词的全部留言添加完后一起写出
+        private byte[] term;
+        private int size;
+        private int blocks;
+        private long[] blockFirsts;
+        private int[] blockOffsets;
+        private byte[] data;
+        private int dataLength;
+        private long lastSequence;
+
+        /**
+         * @param dir 全文索引目录
+         * @param start 起始序号
+         * @param end 结束序号（不含）
+         */
+        protected Writer(File dir, long start, long end) throws IOException {
+            this.file = SearchSegment.file(dir, start, end);
+            this.tempFile = new File(this.file.getPath() + TEMP_SUFFIX);
+            this.fileOutputStream = new FileOutputStream(this.tempFile);
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(this.fileOutputStream, 64 * 1024));
+            this.offsets = new int[1024];
+            this.termCount = 0;
+            this.lastTerm = null;
+            this.blockFirsts = new long[16];
+            this.blockOffsets = new int[16];
+            this.data = new byte[1024];
+            // 词数和偏移表的位置在提交时回填
+            this.outputStream.writeInt(MAGIC);
+            this.outputStream.writeInt(0);
+            this.outputStream.writeInt(0);
+            this.outputStream.writeLong(start);
+            this.outputStream.writeLong(end);
+            this.position = HEADER_SIZE;
+        }
+
+        protected File getFile() {
+            return this.file;
+        }
+
+        /**
+         * 开始写入一个词
+         * @param term 词的UTF-8编码
+         */
+        protected void beginTerm(byte[] term) throws IOException {
+            if (this.lastTerm != null && Arrays.compareUnsigned(this.lastTerm, term) >= 0)
+                throw new IllegalArgumentException("词没有按顺序添加");
+            if (term.length > 0xFFFF) throw new IOException("词过长");
+            this.term = term;
+            this.size = 0;
+            this.blocks = 0;
+            this.dataLength = 0;
+        }
+
+        /**
+         * 添加一条包含当前词的留言
+         * @param sequence 留言序号
+         * @param frequency 词在留言中出现的次数
+         */
+        protected void add(long sequence, int frequency) {
+            if (this.size % BLOCK_SIZE == 0) {
+                if (this.blocks == this.blockFirsts.length) {
+                    this.blockFirsts = Arrays.copyOf(this.blockFirsts, this.blocks * 2);
+                    this.blockOffsets = Arrays.copyOf(this.blockOffsets, this.blocks * 2);
+                }
+                this.blockFirsts[this.blocks] = sequence;
+                this.blockOffsets[this.blocks] = this.dataLength;
+                this.blocks++;
+                this.lastSequence = sequence;
+            }
+            this.writeVarLong(sequence - this.lastSequence);
+            this.writeVarLong(frequency);
+            this.lastSequence = sequence;
+            this.size++;
+        }
+
+        /**
+         * 结束当前词并写出其记录，没有添加任何留言的词不写出
+         */
+        protected void endTerm() throws IOException {
+            if (this.size == 0) return;
+            long recordSize = 2 + this.term.length + 8 + (long) this.blocks * SKIP_ENTRY_SIZE + this.dataLength;
+            if (this.position + recordSize > Integer.MAX_VALUE) throw new IOException("全文索引过大");
+
+            if (this.termCount == this.offsets.length) this.offsets = Arrays.copyOf(this.offsets, this.termCount * 2);
+            this.offsets[this.termCount++] = (int) this.position;
+            this.outputStream.writeShort(this.term.length);
+            this.outputStream.write(this.term);
+            this.outputStream.writeInt(this.size);
+            this.outputStream.writeInt(this.blocks);
+            for (int i = 0; i < this.blocks; i++) {
+                this.outputStream.writeLong(this.blockFirsts[i]);
+                this.outputStream.writeInt(this.blockOffsets[i]);
+            }
+            this.outputStream.write(this.data, 0, this.dataLength);
+            this.position += recordSize;
+            this.lastTerm = this.term;
+        }
+
+        private void writeVarLong(long value) {
+            if (this.dataLength + 10 > this.data.length) this.data = Arrays.copyOf(this.data, this.data.length * 2);
+            while ((value & ~0x7FL) != 0) {
+                this.data[this.dataLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.data[this.dataLength++] = (byte) value;
+        }
+
+        /**
+         * 写入偏移表，重命名为目标文件
+         * @param force 重命名前是否刷盘
+         */
+        protected void commit(boolean force) throws IOException {
+            if (this.position + (long) this.termCount * OFFSET_SIZE > Integer.MAX_VALUE) throw new IOException("全文索引过大");
+            for (int i = 0; i < this.termCount; i++) {
+                this.outputStream.writeInt(this.offsets[i]);
+            }
+            this.outputStream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(this.termCount).putInt((int) this.position).flip();
+            FileChannel channel = this.fileOutputStream.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, 4 + header.position());
+            }
+            if (force) channel.force(true);
+            this.outputStream.close();
+            Files.move(this.tempFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * 关闭写入器，没有提交时删除临时文件
+         */
+        @Override
+        public void close() throws IOException {
+            this.outputStream.close();
+            Files.deleteIfExists(this.tempFile.toPath());
+        }
+    }
+}
@@ -1,30 +1,85 @@
 package com.peter.msgBoard.server;
 
+import com.peter.msgBoard.entity.BinaryCodec;
 import com.peter.msgBoard.entity.Response;
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.FrameCompressor;
 import com.peter.msgBoard.utils.Utils;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
     private static final int PORT = 2580;
-    private static final int MAX_CONNECTION_NUM = 30;
-    private int onlineUserCnt;
+    private static final int MAX_CONNECTION_NUM = ServerConfig.MAX_CONNECTION_NUM;
+    // 回收线程检查超时连接的间隔
+    private static final long REAP_INTERVAL_MILLIS = 1000;
+    private static final byte[] HANDSHAKE_FEATURES = ServerConfig.COMPRESSION_THRESHOLD >= 0
+            ? new byte[]{BinaryCodec.VERSION, BinaryCodec.MIN_VERSION, FrameCompressor.FEATURE_DEFLATE}
+            : new byte[]{BinaryCodec.VERSION, BinaryCodec.MIN_VERSION};
+    private final AtomicInteger onlineUserCnt;
     private final ServerSocket serverSocket;
     private final UserManager userManager;
     private final Map<String, Socket> socketMap;
+    // 所有已完成握手、尚未关闭的连接的请求处理实例，由回收线程检查是否超时
+    private final Set<RequestHandler> handlers;
+    // nio模式下的事件循环，bio模式下为null
+    private final NioEventLoop[] eventLoops;
+    // bio模式下运行RequestHandler的执行器，nio模式下为null
+    private final Executor executor;
+    // 处理带编号请求的工作线程池，这些请求可以并发处理、乱序响应
+    private final ExecutorService workers;
+    // 留言订阅管理
+    private final SubscriptionManager subscriptions;
+    // 会话令牌管理
+    private final SessionManager sessions;
+    // 定期关闭超时连接的回收线程，没有配置任何超时时为null
+    private final ScheduledExecutorService reaper;
+    private int nextEventLoop;
     private Exception err;
 
     protected Server(UserManager userManager) throws IOException {
         this.err = null;
-        this.onlineUserCnt = 0;
-        this.serverSocket = new ServerSocket(PORT);
+        this.onlineUserCnt = new AtomicInteger(0);
         this.userManager = userManager;
-        this.socketMap = new HashMap<>();
-        System.out.println("服务器正在运行，端口：" + PORT);
+        this.socketMap = new ConcurrentHashMap<>();
+        this.handlers = ConcurrentHashMap.newKeySet();
+        this.nextEventLoop = 0;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, ServerConfig.WORKER_NUM));
+        this.subscriptions = new SubscriptionManager(ServerConfig.PUSH_QUEUE_SIZE, ServerConfig.PUSH_THREAD_NUM);
+        this.sessions = new SessionManager(ServerConfig.SESSION_TTL_SECONDS * 1000);
+        this.reaper = createReaper();
+
+        if (ServerConfig.isNio()) {
+            // 监听套接字保持阻塞模式，由主线程接受连接，再分配给各个事件循环
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT));
+            this.serverSocket = serverChannel.socket();
+            this.eventLoops = new NioEventLoop[Math.max(1, ServerConfig.NIO_LOOP_NUM)];
+            for (int i = 0; i < this.eventLoops.length; i++) {
+                this.eventLoops[i] = new NioEventLoop();
+                this.eventLoops[i].start("nio-event-loop-" + i);
+            }
+            this.executor = null;
+        } else {
+            this.serverSocket = new ServerSocket(PORT);
+            this.eventLoops = null;
+            this.executor = createExecutor(ServerConfig.EXECUTOR);
+        }
+
+        System.out.println("服务器正在运行，端口：" + PORT + "，传输模式：" + (ServerConfig.isNio() ? "nio" : "bio"));
         this.start();
     }
 
@@ -32,7 +87,7 @@ public class Server {
         while (true) {
             try {
                 Socket clientSocket = this.serverSocket.accept();
-                if (this.onlineUserCnt + 1 > MAX_CONNECTION_NUM) {
+                if (this.onlineUserCnt.get() + 1 > MAX_CONNECTION_NUM) {
                     Utils.printLog(clientSocket, "连接失败，服务器连接数已达上限");
                     Response response = new Response("连接失败，服务器连接数已达上限", null, 403);
                     RequestHandler.sendResponse(clientSocket, response);
@@ -40,11 +95,12 @@ public class Server {
                     continue;
                 }
 
-                Response response = new Response("连接成功", null, 200);
+                // 握手响应的数据部分声明服务器支持的二进制编码版本和其他特性，旧版本客户端会忽略它
+                Response response = new Response("连接成功", HANDSHAKE_FEATURES, 200);
                 RequestHandler.sendResponse(clientSocket, response);
-                this.onlineUserCnt += 1;
+                this.onlineUserCnt.incrementAndGet();
                 this.addConnection(clientSocket);
-                new Thread(new RequestHandler(this, clientSocket, this.userManager)).start();
+                this.execute(clientSocket);
             } catch (Exception e) {
                 System.err.println("服务器遇到内部错误，即将终止运行...");
                 this.err = e;
@@ -55,8 +111,97 @@ public class Server {
         throw new RuntimeException(this.err);
     }
 
+    /**
+     * 启动回收线程。客户端不辞而别（例如断电、断网）时服务器收不到FIN，bio模式下处理线程会一直阻塞在读取上，
+     * 连接一直占用连接数，用户也一直处于登录状态。回收线程定期关闭超时的连接，释放连接数并登出用户。
+     * @return 回收线程的执行器，没有配置任何超时时返回null
+     */
+    private ScheduledExecutorService createReaper() {
+        if (ServerConfig.IDLE_TIMEOUT_SECONDS <= 0 && ServerConfig.READ_TIMEOUT_SECONDS <= 0) return null;
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return reaper;
+    }
+
+    private void reap() {
+        long now = System.currentTimeMillis();
+        for (final RequestHandler handler : this.handlers) {
+            try {
+                handler.closeIfTimedOut(now);
+            } catch (Exception ignore) {}
+        }
+    }
+
+    /**
+     * 创建bio模式下运行RequestHandler的执行器
+     * @param mode thread-每个连接一个平台线程，virtual-每个连接一个虚拟线程，pool-线程数等于最大连接数的平台线程池
+     * @return 执行器实例。运行环境不支持虚拟线程时，退回到有界平台线程池
+     */
+    private static Executor createExecutor(String mode) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                // 通过反射调用，项目按release 17编译，运行在Java 21及以上时即可使用虚拟线程，不需要另外构建
+                Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                AsyncLogger.log(AsyncLogger.Level.INFO, null, "RequestHandler将运行在虚拟线程上", null);
+                return (ExecutorService) executor;
+            } catch (Exception ignore) {
+                AsyncLogger.log(AsyncLogger.Level.WARN, null, "当前运行环境不支持虚拟线程，改用有界线程池", null);
+                mode = "pool";
+            }
+        }
+
+        if ("pool".equalsIgnoreCase(mode)) {
+            // 每个连接会一直占用一个线程，因此线程数不能少于最大连接数，否则超出的连接得不到处理
+            return Executors.newFixedThreadPool(MAX_CONNECTION_NUM);
+        }
+
+        return runnable -> new Thread(runnable).start();
+    }
+
+    /**
+     * 为已完成握手的连接启动请求处理。
+     * bio模式下将RequestHandler交给执行器运行，nio模式下将连接轮流分配给各个事件循环。
+     * @param clientSocket 客户端套接字实例
+     */
+    private void execute(Socket clientSocket) throws IOException {
+        if (this.eventLoops == null) {
+            RequestHandler handler = new RequestHandler(this, clientSocket, this.userManager);
+            this.handlers.add(handler);
+            this.executor.execute(handler);
+            return;
+        }
+
+        clientSocket.getChannel().configureBlocking(false);
+        NioEventLoop eventLoop = this.eventLoops[this.nextEventLoop];
+        this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+        this.handlers.add(eventLoop.register(this, clientSocket, this.userManager));
+    }
+
+    protected Executor getWorkers() {
+        return this.workers;
+    }
+
+    protected SubscriptionManager getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    protected SessionManager getSessions() {
+        return this.sessions;
+    }
+
+    /**
+     * 连接关闭时调用，回收线程不再检查该连接
+     */
+    protected void removeHandler(RequestHandler handler) {
+        this.handlers.remove(handler);
+    }
+
     protected void reduceOnlineUsers() {
-        this.onlineUserCnt -= 1;
+        this.onlineUserCnt.decrementAndGet();
     }
 
     /**
@@ -75,7 +220,8 @@ public class Server {
     protected void removeConnection(Socket clientSocket) {
         try {
             Socket s = this.socketMap.remove(Utils.getSocketIP(clientSocket));
-            if (s != null && !s.isClosed()) s.close();
+            if (s == null) return;
+            if (!s.isClosed()) s.close();
             this.reduceOnlineUsers();
         } catch (Exception ignore) {
             Utils.printLog(clientSocket, "断开与客户端的连接失败");
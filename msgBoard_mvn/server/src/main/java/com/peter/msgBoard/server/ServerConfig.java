@@ -0,0 +1,135 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.IO;
+
+/**
+ * 服务器配置。
+ * 所有配置项都有默认值，可以在启动时通过 {@code -D配置名=值} 覆盖，例如：
+ * {@code java -DmsgBoard.transport=nio -jar server.jar}
+ */
+public class ServerConfig {
+    private ServerConfig() {}
+
+    // 传输模式：bio-每个连接一个阻塞线程（默认），nio-由少量Selector事件循环线程处理所有连接
+    protected static final String TRANSPORT = System.getProperty("msgBoard.transport", "bio");
+
+    // bio模式下运行RequestHandler的方式：thread-每个连接一个平台线程（默认），virtual-虚拟线程（需要Java 21），pool-有界平台线程池
+    protected static final String EXECUTOR = System.getProperty("msgBoard.executor", "thread");
+
+    // 最大连接数
+    protected static final int MAX_CONNECTION_NUM = Integer.getInteger("msgBoard.maxConnections", 30);
+
+    // nio模式下事件循环线程的数量
+    protected static final int NIO_LOOP_NUM = Integer.getInteger("msgBoard.nioLoops",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // 处理带编号请求（流水线请求）的工作线程数量
+    protected static final int WORKER_NUM = Integer.getInteger("msgBoard.workers",
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    // 帧压缩阈值，超过该字节数的帧会被压缩后发送，小于0表示不支持压缩
+    protected static final int COMPRESSION_THRESHOLD = Integer.getInteger("msgBoard.compressThreshold", 1024);
+
+    // 单个请求帧（解压后）的最大字节数，超过该值的连接会被关闭，避免恶意的长度前缀导致大量内存分配
+    protected static final int MAX_FRAME_SIZE = Integer.getInteger("msgBoard.maxFrameSize", 16 * 1024 * 1024);
+
+    // nio模式下事件循环的读缓冲区是否使用堆外内存，堆外缓冲区可以省去一次套接字读取时的内存复制
+    protected static final boolean DIRECT_BUFFERS = Boolean.parseBoolean(System.getProperty("msgBoard.directBuffers", "true"));
+
+    // 每个连接已经写出、等待发送到套接字的最大字节数。nio模式下写队列中的数据超过该值时，写出响应的线程等待事件循环发送，
+    // 流式传输大量留言给读取缓慢的客户端时堆内存占用有上限。连接上积压的数据超过该值时也不再推送新留言，留言留在订阅者的推送队列中稍后重试
+    protected static final int MAX_PENDING_OUTPUT = Integer.getInteger("msgBoard.maxPendingOutput", 1024 * 1024);
+
+    // 每个订阅者的推送队列长度，队列已满时新的留言不再推送给该订阅者
+    protected static final int PUSH_QUEUE_SIZE = Integer.getInteger("msgBoard.pushQueueSize", 1024);
+
+    // 向订阅者推送新留言的线程数量
+    protected static final int PUSH_THREAD_NUM = Integer.getInteger("msgBoard.pushThreads", 2);
+
+    // 连接断开后会话令牌的有效时间（秒），在此期间客户端可以用令牌恢复登录状态
+    protected static final long SESSION_TTL_SECONDS = Long.getLong("msgBoard.sessionTtl", 300);
+
+    // 连接的空闲超时（秒），超过该时间没有读到也没有写出任何数据的连接会被回收，0表示不回收。
+    // 客户端空闲时每30秒发送一次ping请求，因此该值应明显大于30
+    protected static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("msgBoard.idleTimeout", 120);
+
+    // 读取请求帧的超时（秒），请求帧开始到达后超过该时间仍未读完的连接会被回收，0表示不限制
+    protected static final int READ_TIMEOUT_SECONDS = Integer.getInteger("msgBoard.readTimeout", 30);
+
+    // 留言日志单个段文件的最大字节数，写满后新建一个段
+    protected static final long SEGMENT_SIZE = Long.getLong("msgBoard.segmentSize", 16L * 1024 * 1024);
+
+    // 是否通过内存映射读取留言日志中已经写满的段，关闭后通过文件通道按块读取
+    protected static final boolean MMAP_READS = Boolean.parseBoolean(System.getProperty("msgBoard.mmapReads", "true"));
+
+    // 同时保持打开的留言日志的最大数量，超出时关闭最久未使用的日志
+    protected static final int MAX_OPEN_LOGS = Integer.getInteger("msgBoard.maxOpenLogs", 256);
+
+    // 留言缓存的容量（字节，按估算的内存占用计算），缓存最近查看的用户的完整留言列表，0表示不缓存
+    protected static final long MESSAGE_CACHE_BYTES = Long.getLong("msgBoard.messageCacheBytes", 64L * 1024 * 1024);
+
+    // 全文索引的写入阈值，每个用户在内存中积累的留言达到该数量后在后台写成索引段，之后每8个同一级别的段合并为一个
+    protected static final int SEARCH_FLUSH_MESSAGES = Integer.getInteger("msgBoard.searchFlushMessages", 512);
+
+    // 留言的保留时间（小时），留言日志中写满时间早于该时间的段由后台压缩线程删除，0表示永久保留
+    protected static final long RETENTION_HOURS = Long.getLong("msgBoard.retentionHours", 0);
+
+    // 每个用户最多保留的留言数量，超出部分按日志的段从最早的留言开始删除，0表示不限制
+    protected static final long RETENTION_MESSAGES = Long.getLong("msgBoard.retentionMessages", 0);
+
+    // 留言日志的段写满该时间（小时）后压缩为只读的归档文件，归档的留言读取时按块解压，小于0表示不归档（默认）。
+    // 归档以读取时的解压换取磁盘空间，需要时显式开启，例如 -DmsgBoard.archiveHours=168 归档写满一周的段，0表示段写满后即归档
+    protected static final long ARCHIVE_HOURS = Long.getLong("msgBoard.archiveHours", -1);
+
+    // 后台压缩线程检查所有留言日志的间隔（秒），0表示不进行删除和归档
+    protected static final long COMPACT_INTERVAL_SECONDS = Long.getLong("msgBoard.compactInterval", 3600);
+
+    // 用户日志的压缩阈值，日志中的记录数达到该值且不少于用户数时在后台把用户表写成新的快照
+    protected static final int USER_COMPACT_RECORDS = Integer.getInteger("msgBoard.userCompactRecords", 1000);
+
+    // 保存留言的持久化级别，决定服务器在什么时候回复写入请求：
+    // buffer-放入提交队列后，write-写入操作系统页缓存后（默认），fsync-刷新到磁盘后。fsync模式下用户日志的每条记录也会刷新到磁盘
+    protected static final GroupCommitter.Durability DURABILITY = parseDurability(System.getProperty("msgBoard.durability", "write"));
+
+    // fsync模式下组提交的收集窗口（微秒），提交线程取到第一条留言后在该时间内继续收集并发到达的留言，0表示只合并已经排队的留言
+    protected static final long COMMIT_WINDOW_MICROS = Long.getLong("msgBoard.commitWindow", 0);
+
+    // 日志文件路径，为"-"时输出到标准输出
+    protected static final String LOG_FILE = System.getProperty("msgBoard.logFile", IO.LOG_DIR + "server.log");
+
+    // 最低日志级别：DEBUG、INFO、WARN、ERROR、OFF
+    protected static final AsyncLogger.Level LOG_LEVEL = parseLogLevel(System.getProperty("msgBoard.logLevel", "INFO"));
+
+    // 请求日志的采样率，每N个请求记录一个，1表示全部记录，0表示不记录
+    protected static final int LOG_SAMPLE_RATE = Integer.getInteger("msgBoard.logSampleRate", 1);
+
+    // 日志环形缓冲区的容量，缓冲区满时新的日志会被丢弃
+    protected static final int LOG_BUFFER_SIZE = Integer.getInteger("msgBoard.logBufferSize", 8192);
+
+    // 单个日志文件的最大字节数，超过后滚动
+    protected static final long LOG_MAX_FILE_SIZE = Long.getLong("msgBoard.logMaxFileSize", 10L * 1024 * 1024);
+
+    // 滚动保留的旧日志文件数量
+    protected static final int LOG_MAX_FILES = Integer.getInteger("msgBoard.logMaxFiles", 5);
+
+    protected static boolean isNio() {
+        return "nio".equalsIgnoreCase(TRANSPORT);
+    }
+
+    private static GroupCommitter.Durability parseDurability(String durability) {
+        try {
+            return GroupCommitter.Durability.valueOf(durability.toUpperCase());
+        } catch (Exception ignore) {
+            return GroupCommitter.Durability.WRITE;
+        }
+    }
+
+    private static AsyncLogger.Level parseLogLevel(String level) {
+        try {
+            return AsyncLogger.Level.valueOf(level.toUpperCase());
+        } catch (Exception ignore) {
+            return AsyncLogger.Level.INFO;
+        }
+    }
+}
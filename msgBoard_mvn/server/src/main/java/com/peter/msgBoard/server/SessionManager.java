@@ -0,0 +1,136 @@
+package com.peter.msgBoard.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 会话管理。
+ * 用户登录成功后，服务器为其签发一个不透明的会话令牌。连接意外断开后，令牌在{@code ttlMillis}内有效，
+ * 客户端在新的连接上发送resume请求出示令牌即可恢复登录状态，不需要重新校验用户名和密码。
+ * 令牌每次恢复后都会更换，旧令牌随即失效；用户主动登出或退出时令牌立即失效，账户被删除时该用户的所有令牌失效。
+ * 会话记录签发时账户的代数，账户删除后重新创建的同名账户不能用旧令牌恢复，见{@link UserManager#getGeneration(String)}。
+ */
+public class SessionManager {
+    private static final int TOKEN_BYTES = 18;
+    // 每签发多少个令牌清理一次过期的会话
+    private static final int SWEEP_INTERVAL = 64;
+
+    private final Map<String, Session> sessions;
+    private final SecureRandom random;
+    private final long ttlMillis;
+    private int issuedSinceSweep;
+
+    protected SessionManager(long ttlMillis) {
+        this.sessions = new HashMap<>();
+        this.random = new SecureRandom();
+        this.ttlMillis = ttlMillis;
+        this.issuedSinceSweep = 0;
+    }
+
+    /**
+     * 为已登录的连接签发会话令牌
+     * @param userName 登录的用户名
+     * @param generation 登录时账户的代数
+     * @param owner 当前持有该会话的连接
+     * @return 会话令牌
+     */
+    protected synchronized String issue(String userName, int generation, RequestHandler owner) {
+        if (++this.issuedSinceSweep >= SWEEP_INTERVAL) {
+            this.issuedSinceSweep = 0;
+            this.sweep();
+        }
+
+        byte[] bytes = new byte[TOKEN_BYTES];
+        this.random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        this.sessions.put(token, new Session(userName, generation, owner));
+        return token;
+    }
+
+    /**
+     * 用令牌恢复会话，成功后旧令牌失效
+     * @param token 客户端出示的令牌
+     * @return 恢复的会话，令牌无效或已过期时返回null
+     */
+    protected synchronized Session resume(String token) {
+        if (token == null) return null;
+        Session session = this.sessions.remove(token);
+        if (session == null || session.isExpired()) return null;
+        return session;
+    }
+
+    /**
+     * 连接断开时调用，会话从此刻开始计算有效期
+     * @param token 该连接持有的令牌，可为null
+     */
+    protected synchronized void detach(String token) {
+        if (token == null) return;
+        Session session = this.sessions.get(token);
+        if (session == null) return;
+        session.owner = null;
+        session.expiresAt = System.currentTimeMillis() + this.ttlMillis;
+    }
+
+    /**
+     * 使令牌立即失效，在用户主动登出或退出时调用
+     * @param token 令牌，可为null
+     */
+    protected synchronized void invalidate(String token) {
+        if (token == null) return;
+        this.sessions.remove(token);
+    }
+
+    /**
+     * 使某个用户的所有令牌立即失效，在删除账户时调用
+     * @param userName 用户名
+     */
+    protected synchronized void invalidateUser(String userName) {
+        this.sessions.values().removeIf(session -> session.userName.equals(userName));
+    }
+
+    private void sweep() {
+        Iterator<Session> iterator = this.sessions.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired()) iterator.remove();
+        }
+    }
+
+    protected static class Session {
+        private final String userName;
+        // 签发会话时账户的代数
+        private final int generation;
+        // 当前持有该会话的连接，连接断开后为null
+        private RequestHandler owner;
+        // 连接断开之前会话不会过期
+        private long expiresAt;
+
+        private Session(String userName, int generation, RequestHandler owner) {
+            this.userName = userName;
+            this.generation = generation;
+            this.owner = owner;
+            this.expiresAt = Long.MAX_VALUE;
+        }
+
+        protected String getUserName() {
+            return this.userName;
+        }
+
+        protected int getGeneration() {
+            return this.generation;
+        }
+
+        /**
+         * @return 仍然持有该会话的旧连接，服务器尚未发现旧连接断开时不为null
+         */
+        protected RequestHandler getOwner() {
+            return this.owner;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= this.expiresAt;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.entity.MessageEntity;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 留言订阅管理。
+ * 连接通过subscribe请求订阅某个用户的留言板，之后该留言板上新保存的留言会被推送给所有订阅者。
+ * 每个订阅者有一个有界的推送队列，写入留言的线程只把留言放入队列，由推送线程池负责发送；
+ * 队列已满时新的留言被丢弃并计数，之后向订阅者发送一个通知，因此读取缓慢的客户端不会拖慢写入留言的线程。
+ * 推送线程也不会因读取缓慢的客户端阻塞：连接上已经写出、尚未发送到套接字的数据超过上限时推送失败，
+ * 留言留在订阅者的队列中，稍后重试，在此期间新的留言照常计入队列长度，队列满后丢弃。
+ */
+public class SubscriptionManager {
+    // 留言板（用户名） -> 该留言板的订阅者
+    private final Map<String, Map<RequestHandler, Subscriber>> subscribers;
+    // 连接上积压的数据过多、推送失败后重试的间隔（毫秒）
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private final ScheduledExecutorService pushers;
+    private final int queueSize;
+
+    protected SubscriptionManager(int queueSize, int threadNum) {
+        this.subscribers = new ConcurrentHashMap<>();
+        this.pushers = Executors.newScheduledThreadPool(Math.max(1, threadNum), runnable -> {
+            Thread thread = new Thread(runnable, "message-pusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * 订阅某个留言板，重复订阅不做任何操作
+     * @param board 留言板所属的用户名
+     * @param handler 订阅者所在连接的请求处理实例
+     */
+    protected void subscribe(String board, RequestHandler handler) {
+        this.subscribers.computeIfAbsent(board, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(handler, key -> new Subscriber(board, handler));
+    }
+
+    /**
+     * 取消订阅某个留言板
+     * @return 之前是否订阅了该留言板
+     */
+    protected boolean unsubscribe(String board, RequestHandler handler) {
+        Map<RequestHandler, Subscriber> map = this.subscribers.get(board);
+        if (map == null) return false;
+        Subscriber subscriber = map.remove(handler);
+        if (subscriber == null) return false;
+        subscriber.closed = true;
+        return true;
+    }
+
+    /**
+     * 取消某个连接的所有订阅，在连接关闭时调用
+     */
+    protected void unsubscribeAll(RequestHandler handler) {
+        for (final String board : this.subscribers.keySet()) {
+            this.unsubscribe(board, handler);
+        }
+    }
+
+    /**
+     * 将新保存的留言推送给留言板的所有订阅者，只入队不发送，不会阻塞调用者
+     * @param board 留言板所属的用户名
+     * @param message 新保存的留言
+     */
+    protected void publish(String board, MessageEntity message) {
+        Map<RequestHandler, Subscriber> map = this.subscribers.get(board);
+        if (map == null || map.isEmpty()) return;
+        for (final Subscriber subscriber : map.values()) {
+            subscriber.offer(message);
+        }
+    }
+
+    private class Subscriber implements Runnable {
+        private final String board;
+        private final RequestHandler handler;
+        private final ArrayBlockingQueue<MessageEntity> queue;
+        // 因队列已满而丢弃、尚未通知订阅者的留言数量
+        private final AtomicInteger dropped;
+        // 是否已经提交了发送任务，保证同一订阅者的留言由一个线程按顺序发送
+        private final AtomicBoolean scheduled;
+        private volatile boolean closed;
+
+        private Subscriber(String board, RequestHandler handler) {
+            this.board = board;
+            this.handler = handler;
+            this.queue = new ArrayBlockingQueue<>(SubscriptionManager.this.queueSize);
+            this.dropped = new AtomicInteger(0);
+            this.scheduled = new AtomicBoolean(false);
+            this.closed = false;
+        }
+
+        private void offer(MessageEntity message) {
+            if (this.closed) return;
+            if (!this.queue.offer(message)) this.dropped.incrementAndGet();
+            this.schedule();
+        }
+
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) SubscriptionManager.this.pushers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            boolean congested = false;
+            try {
+                int droppedCount = this.dropped.getAndSet(0);
+                if (droppedCount > 0 && !this.handler.pushNotice("推送队列已满，" + this.board + " 的 " + droppedCount + " 条新留言未能推送")) {
+                    this.dropped.addAndGet(droppedCount);
+                    congested = true;
+                }
+
+                // 留言推送成功后才从队列中移除，推送失败的留言仍然占用队列长度
+                MessageEntity message;
+                while (!congested && !this.closed && (message = this.queue.peek()) != null) {
+                    if (this.handler.pushMessage(this.board, message)) {
+                        this.queue.poll();
+                    } else {
+                        congested = true;
+                    }
+                }
+            } catch (Exception ignore) {
+                // 发送失败说明连接已经断开，连接关闭时会取消所有订阅
+                SubscriptionManager.this.unsubscribe(this.board, this.handler);
+                this.queue.clear();
+            } finally {
+                this.scheduled.set(false);
+            }
+
+            if (this.closed) return;
+            if (congested) {
+                // 连接上积压的数据过多，稍后重试，不占用推送线程等待
+                if (this.scheduled.compareAndSet(false, true))
+                    SubscriptionManager.this.pushers.schedule(this, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } else if (!this.queue.isEmpty() || this.dropped.get() > 0) {
+                // 发送期间可能有新的留言入队，而入队线程看到的scheduled仍为true
+                this.schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.SegmentedLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 留言的时间索引。
+ * 留言按序号每{@value #BLOCK_SIZE}条分为一块，索引记录每块中最早和最晚的发布时间（UTC毫秒），按时间范围查询时只读取时间范围有交集的块。
+ * 留言的发布时间由客户端提供，不保证按序号递增，因此每块同时记录最早和最晚的时间，而不是只记录第一条留言的时间。
+ * 没有可解析的时间的留言不计入索引，也不会被按时间查询到。
+ * <p>
+ * 已经写满的块追加到日志目录下的时间索引文件，每块16字节（最早时间 + 最晚时间），第i块位于 i * 16 处；
+ * 最后一个没有写满的块只保存在内存中，打开时从日志中重新读取。索引不在写入留言时更新，
+ * 而是在查询前通过{@link #catchUp(SegmentedLog)}读取尚未建立索引的留言，写入留言的路径没有额外开销。
+ * 索引文件丢失或损坏时从日志重建，写入失败时只在内存中保存索引。
+ */
+public class TimeIndex implements Closeable {
+    protected static final String FILE_NAME = "messages.time";
+    protected static final int BLOCK_SIZE = 64;
+    private static final int ENTRY_SIZE = 16;
+    // 建立索引时每次从日志读取的留言数量
+    private static final int READ_BATCH_SIZE = BLOCK_SIZE * 16;
+    // 留言的时间前缀"yyyy-MM-dd HH:mm:ss,"的长度
+    private static final int TIME_PREFIX_LENGTH = 20;
+    // 没有可解析的时间
+    protected static final long NO_TIME = Long.MIN_VALUE;
+
+    private final File file;
+    private FileChannel channel;
+    // 每个写满的块中最早和最晚的时间，块中没有可解析的时间时最早时间为Long.MAX_VALUE、最晚时间为Long.MIN_VALUE
+    private long[] minTimes;
+    private long[] maxTimes;
+    // 写满的块的数量
+    private int blocks;
+    // 最后一个没有写满的块中的留言数量及最早、最晚的时间
+    private int partialCount;
+    private long partialMin;
+    private long partialMax;
+
+    /**
+     * 读取时间索引文件中已经写满的块
+     * @param dir 日志目录
+     */
+    protected TimeIndex(File dir) {
+        this.file = new File(dir, FILE_NAME);
+        this.minTimes = new long[64];
+        this.maxTimes = new long[64];
+        this.blocks = 0;
+        this.resetPartial();
+
+        if (!this.file.isFile()) return;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.file.toPath()));
+            while (buffer.remaining() >= ENTRY_SIZE) {
+                this.addBlock(buffer.getLong(), buffer.getLong());
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "读取时间索引失败，将从日志重建：", String.valueOf(e));
+            this.blocks = 0;
+        }
+    }
+
+    /**
+     * @return 已经建立索引的留言的下一个序号
+     */
+    protected synchronized long getIndexedNext() {
+        return (long) this.blocks * BLOCK_SIZE + this.partialCount;
+    }
+
+    /**
+     * 为日志中尚未建立索引的留言建立索引，新写满的块追加到索引文件
+     * @param log 留言日志
+     * @throws IOException 读取日志失败时抛出
+     */
+    protected synchronized void catchUp(SegmentedLog log) throws IOException {
+        long next = log.getNextSequence();
+        long indexed = this.getIndexedNext();
+        if (indexed > next) {
+            // 日志比索引短（例如索引文件来自被替换的日志），丢弃多出的块
+            this.truncate((int) (next / BLOCK_SIZE));
+            indexed = this.getIndexedNext();
+        }
+
+        while (indexed < next) {
+            // 已经不存在的留言按没有时间处理
+            long first = log.getFirstSequence();
+            if (indexed < first) {
+                for (long end = Math.min(first, next); indexed < end; indexed++) {
+                    this.add(NO_TIME);
+                }
+                continue;
+            }
+            List<byte[]> records = log.read(indexed, (int) Math.min(READ_BATCH_SIZE, next - indexed));
+            if (records.isEmpty()) break;
+            // 读取期间开头的留言被删除，读到的留言不是从indexed开始
+            if (log.getFirstSequence() > indexed) continue;
+            for (final byte[] record : records) {
+                this.add(parseTime(record));
+            }
+            indexed += records.size();
+        }
+    }
+
+    /**
+     * 查找可能包含指定时间范围内的留言的块
+     * @param sequence 开始查找的留言序号
+     * @param from 起始时间（含）
+     * @param to 结束时间（不含）
+     * @return 不小于sequence的、可能包含时间范围内的留言的第一个序号，已建立索引的留言中没有时返回{@link #getIndexedNext()}
+     */
+    protected synchronized long nextCandidate(long sequence, long from, long to) {
+        long indexed = this.getIndexedNext();
+        if (sequence >= indexed) return indexed;
+        for (int block = (int) (sequence / BLOCK_SIZE); block < this.blocks; block++) {
+            if (this.maxTimes[block] >= from && this.minTimes[block] < to)
+                return Math.max(sequence, (long) block * BLOCK_SIZE);
+        }
+        if (this.partialCount > 0 && this.partialMax >= from && this.partialMin < to)
+            return Math.max(sequence, (long) this.blocks * BLOCK_SIZE);
+        return indexed;
+    }
+
+    /**
+     * @param sequence 留言序号
+     * @return 该留言所在块之后的第一个序号
+     */
+    protected static long blockEnd(long sequence) {
+        return (sequence / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    private void add(long time) {
+        if (time != NO_TIME) {
+            this.partialMin = Math.min(this.partialMin, time);
+            this.partialMax = Math.max(this.partialMax, time);
+        }
+        if (++this.partialCount < BLOCK_SIZE) return;
+
+        this.addBlock(this.partialMin, this.partialMax);
+        this.resetPartial();
+        this.persist();
+    }
+
+    private void addBlock(long min, long max) {
+        if (this.blocks == this.minTimes.length) {
+            this.minTimes = Arrays.copyOf(this.minTimes, this.blocks * 2);
+            this.maxTimes = Arrays.copyOf(this.maxTimes, this.blocks * 2);
+        }
+        this.minTimes[this.blocks] = min;
+        this.maxTimes[this.blocks] = max;
+        this.blocks++;
+    }
+
+    private void resetPartial() {
+        this.partialCount = 0;
+        this.partialMin = Long.MAX_VALUE;
+        this.partialMax = Long.MIN_VALUE;
+    }
+
+    // 追加写满的块，不刷盘，丢失的块在下次打开时从日志重建
+    private void persist() {
+        try {
+            int from = this.blocks - 1;
+            if (this.channel == null) {
+                this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                // 文件中的块比内存中少时（例如之前写入失败）重写全部的块，多出的块和不完整的条目截断
+                if (this.channel.size() < (long) from * ENTRY_SIZE) from = 0;
+                this.channel.truncate((long) from * ENTRY_SIZE);
+                this.channel.position((long) from * ENTRY_SIZE);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((this.blocks - from) * ENTRY_SIZE);
+            for (int i = from; i < this.blocks; i++) {
+                buffer.putLong(this.minTimes[i]).putLong(this.maxTimes[i]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "写入时间索引失败：", String.valueOf(e));
+            this.closeChannel();
+        }
+    }
+
+    private void truncate(int blocks) {
+        this.blocks = Math.min(this.blocks, blocks);
+        this.resetPartial();
+        // 下次写入时按块数截断文件
+        this.closeChannel();
+        try {
+            if (this.file.isFile() && this.file.length() > (long) this.blocks * ENTRY_SIZE) {
+                try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate((long) this.blocks * ENTRY_SIZE);
+                }
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "截断时间索引失败：", String.valueOf(e));
+        }
+    }
+
+    private void closeChannel() {
+        if (this.channel == null) return;
+        try {
+            this.channel.close();
+        } catch (IOException ignore) {
+        }
+        this.channel = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closeChannel();
+    }
+
+    /**
+     * 解析留言记录开头的发布时间，记录的格式为"yyyy-MM-dd HH:mm:ss,内容"的UTF-8编码
+     * @param record 留言记录
+     * @return 发布时间（按UTC换算的毫秒数），无法解析时返回{@link #NO_TIME}
+     */
+    protected static long parseTime(byte[] record) {
+        if (record.length < TIME_PREFIX_LENGTH || record[4] != '-' || record[7] != '-' || record[10] != ' '
+                || record[13] != ':' || record[16] != ':' || record[19] != ',') return NO_TIME;
+        int year = digits(record, 0, 4);
+        int month = digits(record, 5, 2);
+        int day = digits(record, 8, 2);
+        int hour = digits(record, 11, 2);
+        int minute = digits(record, 14, 2);
+        int second = digits(record, 17, 2);
+        if ((year | month | day | hour | minute | second) < 0) return NO_TIME;
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC) * 1000;
+        } catch (DateTimeException ignore) {
+            return NO_TIME;
+        }
+    }
+
+    private static int digits(byte[] bytes, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
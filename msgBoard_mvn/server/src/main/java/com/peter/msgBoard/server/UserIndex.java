@@ -0,0 +1,195 @@
+package com.peter.msgBoard.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 用户索引。
+ * 按用户名排序的只读用户表文件，通过内存映射打开，打开时不读取任何用户，查找时在偏移表上二分查找，只有访问到的页才会被读入内存。
+ * 文件格式：4字节魔数 + 4字节用户数 + 4字节偏移表的位置，之后依次为每个用户的记录
+ * （2字节用户名长度 + 用户名 + 2字节密码长度 + 密码，均为UTF-8编码），最后为偏移表，按用户名的顺序保存每条记录的位置（4字节）。
+ * 用户名按{@link String#compareTo(String)}排序。文件由{@link Writer}一次写成，写入临时文件并刷盘后重命名，之后不再修改。
+ */
+public class UserIndex {
+    private static final int MAGIC = 0x4D425531;
+    private static final int HEADER_SIZE = 12;
+    private static final int OFFSET_SIZE = 4;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final ByteBuffer mapping;
+    private final int count;
+    private final int tableOffset;
+
+    private UserIndex(ByteBuffer mapping, int count, int tableOffset) {
+        this.mapping = mapping;
+        this.count = count;
+        this.tableOffset = tableOffset;
+    }
+
+    /**
+     * 映射用户索引文件
+     * @param file 索引文件，不存在时返回空的索引
+     * @return 用户索引
+     * @throws IOException 文件无法映射或格式错误时抛出
+     */
+    protected static UserIndex open(File file) throws IOException {
+        if (!file.isFile()) return new UserIndex(ByteBuffer.allocate(0), 0, HEADER_SIZE);
+
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("用户索引大小不合法：" + file);
+            // 映射在通道关闭后仍然有效
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int count = mapping.getInt(4);
+        int tableOffset = mapping.getInt(8);
+        if (mapping.getInt(0) != MAGIC || count < 0 || tableOffset < HEADER_SIZE
+                || (long) tableOffset + (long) count * OFFSET_SIZE != mapping.capacity())
+            throw new IOException("用户索引格式错误：" + file);
+        return new UserIndex(mapping, count, tableOffset);
+    }
+
+    protected int size() {
+        return this.count;
+    }
+
+    /**
+     * 二分查找用户名
+     * @param userName 用户名
+     * @return 用户在索引中的位置，不存在时返回 -(插入位置) - 1
+     */
+    protected int find(String userName) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = this.nameAt(middle).compareTo(userName);
+            if (cmp < 0) low = middle + 1;
+            else if (cmp > 0) high = middle - 1;
+            else return middle;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @param i 用户在索引中的位置
+     * @return 用户名
+     */
+    protected String nameAt(int i) {
+        return this.stringAt(this.recordOffset(i));
+    }
+
+    /**
+     * @param i 用户在索引中的位置
+     * @return 密码的MD5值
+     */
+    protected String passwordAt(int i) {
+        int offset = this.recordOffset(i);
+        return this.stringAt(offset + 2 + (this.mapping.getShort(offset) & 0xFFFF));
+    }
+
+    private int recordOffset(int i) {
+        return this.mapping.getInt(this.tableOffset + i * OFFSET_SIZE);
+    }
+
+    private String stringAt(int offset) {
+        int length = this.mapping.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        this.mapping.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 用户索引的写入器，用户必须按用户名的顺序添加，调用{@link #commit()}后才替换目标文件
+     */
+    protected static class Writer implements Closeable {
+        private final File file;
+        private final File tempFile;
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream outputStream;
+        private int[] offsets;
+        private int count;
+        private long position;
+        private String lastName;
+
+        protected Writer(File file) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + TEMP_SUFFIX);
+            this.fileOutputStream = new FileOutputStream(this.tempFile);
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(this.fileOutputStream, 64 * 1024));
+            this.offsets = new int[1024];
+            this.count = 0;
+            this.lastName = null;
+            // 用户数和偏移表的位置在提交时回填
+            this.outputStream.writeInt(MAGIC);
+            this.outputStream.writeInt(0);
+            this.outputStream.writeInt(0);
+            this.position = HEADER_SIZE;
+        }
+
+        protected void add(String userName, String password) throws IOException {
+            if (this.lastName != null && this.lastName.compareTo(userName) >= 0)
+                throw new IllegalArgumentException("用户名没有按顺序添加：" + userName);
+            byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+            byte[] pwd = password.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF || pwd.length > 0xFFFF) throw new IOException("用户名或密码过长：" + userName);
+            if (this.position + 4 + name.length + pwd.length > Integer.MAX_VALUE) throw new IOException("用户索引过大");
+
+            if (this.count == this.offsets.length) {
+                int[] grown = new int[this.offsets.length * 2];
+                System.arraycopy(this.offsets, 0, grown, 0, this.count);
+                this.offsets = grown;
+            }
+            this.offsets[this.count++] = (int) this.position;
+            this.outputStream.writeShort(name.length);
+            this.outputStream.write(name);
+            this.outputStream.writeShort(pwd.length);
+            this.outputStream.write(pwd);
+            this.position += 4 + name.length + pwd.length;
+            this.lastName = userName;
+        }
+
+        /**
+         * 写入偏移表，刷盘后重命名为目标文件
+         */
+        protected void commit() throws IOException {
+            if (this.position + (long) this.count * OFFSET_SIZE > Integer.MAX_VALUE) throw new IOException("用户索引过大");
+            for (int i = 0; i < this.count; i++) {
+                this.outputStream.writeInt(this.offsets[i]);
+            }
+            this.outputStream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(this.count).putInt((int) this.position).flip();
+            FileChannel channel = this.fileOutputStream.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, 4 + header.position());
+            }
+            channel.force(true);
+            this.outputStream.close();
+            Files.move(this.tempFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * 关闭写入器，没有提交时删除临时文件
+         */
+        @Override
+        public void close() throws IOException {
+            this.outputStream.close();
+            Files.deleteIfExists(this.tempFile.toPath());
+        }
+    }
+}
@@ -1,64 +1,66 @@
 package com.peter.msgBoard.server;
 
+import com.peter.msgBoard.entity.MessagePage;
 import com.peter.msgBoard.entity.UserEntity;
 import com.peter.msgBoard.utils.IO;
 import com.peter.msgBoard.utils.Utils;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 
 public class UserManager {
-    private final Map<String, UserEntity> userList;
+    private final UserStore userStore;
     private final LinkedList<String> onlineUserList;
+    // 用户名 -> 该用户名的账户被删除的次数，会话签发时记录，删除后重新创建的同名账户不能用旧的会话恢复登录
+    private final HashMap<String, Integer> generations;
+    private final MessageStore messageStore;
+    private final MessageCache messageCache;
+    private final MessageCompactor messageCompactor;
     private static final String ROOT_NAME= "root";
     private static final String ROOT_PWD = "123456";
 
     protected UserManager() {
-        this.userList = new HashMap<>();
+        this.userStore = openUserStore();
         this.onlineUserList = new LinkedList<>();
+        this.generations = new HashMap<>();
+        this.messageCache = new MessageCache(ServerConfig.MESSAGE_CACHE_BYTES);
+        this.messageStore = new MessageStore(IO.MSG_DATA_DIR, ServerConfig.SEGMENT_SIZE, ServerConfig.MMAP_READS,
+                new GroupCommitter(ServerConfig.DURABILITY, ServerConfig.COMMIT_WINDOW_MICROS),
+                this.messageCache::append, ServerConfig.MAX_OPEN_LOGS, ServerConfig.SEARCH_FLUSH_MESSAGES);
+        this.messageCompactor = new MessageCompactor(this.messageStore, this.messageCache,
+                ServerConfig.RETENTION_HOURS, ServerConfig.RETENTION_MESSAGES, ServerConfig.ARCHIVE_HOURS);
+        this.messageCompactor.start(ServerConfig.COMPACT_INTERVAL_SECONDS);
 
         this.init();
     }
 
-    @SuppressWarnings("unchecked")
-    private void init() {
-        String userDataFilePath = IO.USER_DATA_PATH;
-        IO._checkFileSilently(userDataFilePath);
-        ArrayList<UserEntity> list = IO.readFileBin(userDataFilePath, ArrayList.class);
-        if (list == null)
-            System.out.println("读取用户文件失败");
-        else {
-            for (final UserEntity user : list) {
-                String userName = user.getUserName();
-                String pwd = user.getPassword_md5();
-                this.userList.put(userName, new UserEntity(userName, pwd));
-            }
-        }
-
-        if (!this.userList.containsKey(ROOT_NAME)) {
-            this.userList.put(ROOT_NAME, new UserEntity(ROOT_NAME, Utils.md5(ROOT_PWD)));
-            IO._checkFileSilently(IO.MSG_DATA_DIR + ROOT_NAME + IO.FILE_SUFFIX);
-            if (!this.storeUsers()) System.exit(-1);
+    private static UserStore openUserStore() {
+        try {
+            return new UserStore(IO.USER_DATA_DIR, ServerConfig.USER_COMPACT_RECORDS,
+                    ServerConfig.DURABILITY == GroupCommitter.Durability.FSYNC);
+        } catch (IOException e) {
+            System.out.println("读取用户文件失败：" + e.getMessage());
+            System.exit(-1);
+            return null;
         }
     }
 
-    private boolean storeUsers() {
-        ArrayList<UserEntity> list = new ArrayList<>();
-        for (final Map.Entry<String, UserEntity> entry : this.userList.entrySet()) {
-            list.add(entry.getValue());
-        }
-        if (!IO.writeFileBin(IO.USER_DATA_PATH, list)) {
-            System.out.println("保存用户信息失败");
-            return false;
+    private void init() {
+        if (!this.userStore.contains(ROOT_NAME)) {
+            if (!this.userStore.put(new UserEntity(ROOT_NAME, Utils.md5(ROOT_PWD)))) {
+                System.out.println("保存用户信息失败");
+                System.exit(-1);
+            }
         }
-
-        return true;
     }
 
-    protected boolean hasUser(String name) {
-        return this.userList.containsKey(name);
+    protected synchronized boolean hasUser(String name) {
+        return this.userStore.contains(name);
     }
 
     /**
@@ -67,35 +69,57 @@ public class UserManager {
      * @param pwd 用户密码
      * @return 1-登录成功 2-密码错误 3-没有该用户 4-用户已登录
      */
-    protected int login(String name, String pwd) {
+    protected synchronized int login(String name, String pwd) {
         if (!this.hasUser(name)) return 3;
         if (this.onlineUserList.contains(name)) return 4;
-        UserEntity user = this.userList.get(name);
+        UserEntity user = this.userStore.get(name);
         if (pwd.equals(user.getPassword_md5())) {
             this.onlineUserList.add(name);
             return 1;
         } else return 2;
     }
 
-    protected void logout(String name) {
+    /**
+     * 获取账户的代数，同名账户每被删除一次加一，签发会话时记录，恢复会话时校验
+     * @param name 用户的账户名
+     * @return 账户的代数
+     */
+    protected synchronized int getGeneration(String name) {
+        return this.generations.getOrDefault(name, 0);
+    }
+
+    /**
+     * 通过会话令牌恢复用户的登录状态，不校验密码
+     * @param name 用户的账户名
+     * @param generation 签发会话时账户的代数，账户在此之后被删除（即使又重新创建）时不能恢复
+     * @return 1-恢复成功 3-没有该用户 4-用户已登录
+     */
+    protected synchronized int restore(String name, int generation) {
+        if (!this.hasUser(name) || generation != this.getGeneration(name)) return 3;
+        if (this.onlineUserList.contains(name)) return 4;
+        this.onlineUserList.add(name);
+        return 1;
+    }
+
+    protected synchronized void logout(String name) {
         this.onlineUserList.remove(name);
     }
 
-    protected String getAllUsersList() {
-        if (this.userList.isEmpty()) return null;
+    protected synchronized String getAllUsersList() {
+        ArrayList<String> names = this.userStore.getUserNames();
+        if (names.isEmpty()) return null;
 
         StringBuilder sb = new StringBuilder();
         int i  = 0;
-        for (final Map.Entry<String, UserEntity> userEntityEntry : this.userList.entrySet()) {
+        for (final String name : names) {
             i += 1;
-            String name = userEntityEntry.getKey();
             sb.append(i).append(". ").append(name).append("\n");
         }
 
         return sb.toString();
     }
 
-    protected String getOnlineUsersList() {
+    protected synchronized String getOnlineUsersList() {
         if (this.onlineUserList.isEmpty()) return null;
 
         StringBuilder sb = new StringBuilder();
@@ -113,12 +137,10 @@ public class UserManager {
      * @param user 用户实例类
      * @return 1-用户已存在 2-添加成功 3-添加失败，服务器内部错误
      */
-    protected int addUser(UserEntity user) {
+    protected synchronized int addUser(UserEntity user) {
         String name = user.getUserName();
-        if (this.userList.containsKey(name)) return 1;
-        this.userList.put(name, user);
-        if (!this.storeUsers()) return 3;
-        IO._checkFileSilently(IO.MSG_DATA_DIR + name + IO.FILE_SUFFIX);
+        if (this.userStore.contains(name)) return 1;
+        if (!this.userStore.put(user)) return 3;
         return 2;
     }
 
@@ -127,24 +149,106 @@ public class UserManager {
      * @param name 用户名称
      * @return 1-没有该用户 2-删除失败，服务器内部错误 3-删除成功 4-用户在线，无法删除 5-不能删除root账户
      */
-    protected int delUser(String name) {
+    protected synchronized int delUser(String name) {
         if (name.equals("root")) return 5;
-        if (!this.userList.containsKey(name)) return 1;
+        if (!this.userStore.contains(name)) return 1;
         if (this.onlineUserList.contains(name)) return 4;
-        this.userList.remove(name);
-        if (!this.storeUsers()) return 2;
+        if (!this.userStore.remove(name)) return 2;
+        this.generations.merge(name, 1, Integer::sum);
         return 3;
     }
 
+    /**
+     * 获取用户的所有留言，优先从留言缓存中获取
+     * @param userName 用户名
+     * @return 所有留言（从旧到新），没有留言记录或读取失败返回null
+     */
     protected ArrayList<String> getAllMessages(String userName) {
-        String dataFilePath = IO.MSG_DATA_DIR + userName + IO.FILE_SUFFIX;
-        ArrayList<String> list = IO.readFileByLine(dataFilePath);
+        ArrayList<String> list = this.messageCache.get(userName);
+        if (list == null) {
+            MessageCache.Load load = this.messageCache.beginLoad(userName);
+            MessageStore.Messages messages = this.messageStore.read(userName, 0, Integer.MAX_VALUE);
+            this.messageCache.endLoad(userName, load, messages);
+            list = messages == null ? null : messages.getLines();
+        }
         if (list == null || list.isEmpty()) return null;
         return list;
     }
 
+    /**
+     * 分页获取留言，通过留言日志的索引定位，不需要读取全部留言
+     * @param userName 用户名
+     * @param cursor 游标，即留言序号。正序时为起始序号，倒序时为结束序号（不含，小于0表示从最新的留言开始）
+     * @param pageSize 每页的留言数量
+     * @param newestFirst 是否按从新到旧的顺序获取
+     * @return 一页留言及下一页的游标，没有留言记录或读取失败返回null
+     */
+    protected MessagePage getAllMessages(String userName, long cursor, int pageSize, boolean newestFirst) {
+        return this.messageStore.readPage(userName, cursor, pageSize, newestFirst);
+    }
+
+    /**
+     * 按时间范围分页获取留言，通过时间索引只读取时间范围有交集的留言块
+     * @param userName 用户名
+     * @param from 起始时间（含），为null表示不限制
+     * @param to 结束时间（不含），为null表示不限制
+     * @param cursor 游标，即开始查找的留言序号
+     * @param pageSize 每页的留言数量
+     * @return 一页留言（从旧到新）及下一页的游标，没有留言记录或读取失败返回null
+     */
+    protected MessagePage getMessagesByTime(String userName, LocalDateTime from, LocalDateTime to, long cursor, int pageSize) {
+        long fromMillis = from == null ? Long.MIN_VALUE : from.toInstant(ZoneOffset.UTC).toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.toInstant(ZoneOffset.UTC).toEpochMilli();
+        return this.messageStore.readRange(userName, fromMillis, toMillis, cursor, pageSize);
+    }
+
+    /**
+     * 全文搜索留言，通过全文索引只读取匹配的留言
+     * @param userName 用户名
+     * @param keywords 查询词，中文按相邻的两个字匹配，其他按单词匹配，多个词之间用空格或标点分隔
+     * @param cursor 游标，即已经返回的结果数量
+     * @param pageSize 每页的留言数量
+     * @return 一页留言（按相关度从高到低）及下一页的游标，没有留言记录或读取失败返回null
+     */
+    protected MessagePage searchMessages(String userName, String keywords, long cursor, int pageSize) {
+        return this.messageStore.search(userName, keywords, cursor, pageSize);
+    }
+
+    /**
+     * @return 留言缓存和留言日志句柄缓存的统计信息，每项一行
+     */
+    protected String getStorageStats() {
+        long hits = this.messageCache.getHitCount();
+        long misses = this.messageCache.getMissCount();
+        long logHits = this.messageStore.getHitCount();
+        long logMisses = this.messageStore.getMissCount();
+
+        return "留言缓存：命中率 " + formatRatio(hits, hits + misses) + "（命中 " + hits + "，未命中 " + misses + "），淘汰 "
+                + this.messageCache.getEvictionCount() + "，缓存 " + this.messageCache.getEntryCount() + " 个用户，占用 "
+                + this.messageCache.getBytes() + " / " + this.messageCache.getMaxBytes() + " 字节\n"
+                + "留言日志：命中率 " + formatRatio(logHits, logHits + logMisses) + "（命中 " + logHits + "，未命中 " + logMisses
+                + "），淘汰 " + this.messageStore.getEvictionCount() + "，打开 " + this.messageStore.getOpenCount() + " 个日志\n"
+                + "留言压缩：删除 " + this.messageStore.getExpiredCount() + " 条过期留言，归档 "
+                + this.messageStore.getArchivedCount() + " 个段\n"
+                + "用户日志：" + this.userStore.size() + " 个用户，日志 " + this.userStore.getJournalRecords() + " 条记录，压缩 "
+                + this.userStore.getCompactionCount() + " 次\n";
+    }
+
+    private static String formatRatio(long part, long total) {
+        return total == 0 ? "-" : String.format("%.1f%%", part * 100.0 / total);
+    }
+
     protected boolean saveMessage(String userName, String content) {
-        String dataFilePath = IO.MSG_DATA_DIR + userName + IO.FILE_SUFFIX;
-        return IO.writeFile(dataFilePath, content, true);
+        return this.messageStore.append(userName, List.of(content));
+    }
+
+    /**
+     * 批量保存留言，所有留言在同一次提交中追加到留言日志
+     * @param userName 用户名
+     * @param contents 要保存的留言
+     * @return 是否保存成功
+     */
+    protected boolean saveMessages(String userName, List<String> contents) {
+        return this.messageStore.append(userName, contents);
     }
 }
@@ -0,0 +1,411 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.entity.UserEntity;
+import com.peter.msgBoard.utils.AsyncLogger;
+import com.peter.msgBoard.utils.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * 用户存储。
+ * 用户表由一个按用户名排序的只读索引文件（users.idx，见{@link UserIndex}）和一个追加写的日志（users.journal）组成。
+ * 索引通过内存映射打开，启动时只重放日志，不需要读取所有用户；查找用户时先查日志中的修改，再在索引中二分查找。
+ * 添加、更新、删除用户只在日志末尾追加一条记录，并记入内存中的修改表，修改表的大小受日志的长度限制。
+ * 日志记录的格式与{@link com.peter.msgBoard.utils.SegmentedLog}相同：4字节长度 + 4字节CRC32校验和 + 记录内容，
+ * 记录内容为1字节操作类型 + 用户名 + 密码（删除时没有密码）。写入记录时崩溃只会留下不完整的最后一条记录，重放时丢弃并截断。
+ * 旧版本的用户文件（users.dat）在第一次启动时导入索引，导入完成后重命名为users.dat.migrated。
+ * <p>
+ * 日志中的记录数达到{@code compactThreshold}且不少于用户数的1/{@value #COMPACT_RATIO}时，由后台线程压缩：
+ * 先把日志重命名为users.journal.old并开始新的日志，再把索引与当时的修改表合并写成新的索引，刷盘后替换，最后删除旧日志。
+ * 每条记录都是覆盖式的，重复应用已经包含在索引中的记录不影响结果，因此启动时依次应用索引、旧日志、日志，压缩的任何一步崩溃都不会丢失用户。
+ */
+public class UserStore {
+    private static final String INDEX_NAME = "users.idx";
+    private static final String LEGACY_NAME = "users" + IO.FILE_SUFFIX;
+    private static final String JOURNAL_NAME = "users.journal";
+    private static final String OLD_SUFFIX = ".old";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    private static final int HEADER_SIZE = 8;
+    // 单条记录的最大字节数，用户名和密码都很短，超过该值的长度说明记录已经损坏
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    // 日志记录数不少于用户数的 1/COMPACT_RATIO 时才压缩，每次压缩的代价与用户数成正比，分摊到每条记录上为常数
+    private static final int COMPACT_RATIO = 4;
+    // 添加或更新用户
+    private static final byte OP_PUT = 1;
+    // 删除用户
+    private static final byte OP_DELETE = 2;
+    // 修改表中表示用户已删除的标记
+    private static final UserEntity DELETED = new UserEntity(null, null);
+
+    private final File indexFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final int compactThreshold;
+    // 每次写入记录后是否刷新到磁盘
+    private final boolean sync;
+    // 用户名 -> 日志中记录的修改（尚未合并到索引），已删除的用户为DELETED
+    private final TreeMap<String, UserEntity> changes;
+    private final ExecutorService compactor;
+    private UserIndex index;
+    private FileChannel journal;
+    private int size;
+    // 当前日志中的记录数
+    private int journalRecords;
+    private boolean compacting;
+    private long compactions;
+
+    /**
+     * 打开用户索引并重放日志，需要时先导入旧版本的用户文件
+     * @param dir 用户数据目录
+     * @param compactThreshold 触发压缩的最少日志记录数
+     * @param sync 每次写入记录后是否刷新到磁盘
+     * @throws IOException 索引或旧版本的用户文件无法读取、日志无法打开时抛出
+     */
+    protected UserStore(String dir, int compactThreshold, boolean sync) throws IOException {
+        File userDir = new File(dir);
+        this.indexFile = new File(userDir, INDEX_NAME);
+        this.journalFile = new File(userDir, JOURNAL_NAME);
+        this.oldJournalFile = new File(this.journalFile.getPath() + OLD_SUFFIX);
+        this.compactThreshold = Math.max(1, compactThreshold);
+        this.sync = sync;
+        this.changes = new TreeMap<>();
+        this.compactions = 0;
+        this.compacting = false;
+
+        if (!userDir.isDirectory() && !userDir.mkdirs()) throw new IOException("创建目录失败：" + userDir);
+        File legacyFile = new File(userDir, LEGACY_NAME);
+        if (!this.indexFile.isFile() && legacyFile.isFile() && legacyFile.length() > 0) migrate(legacyFile, this.indexFile);
+        this.index = UserIndex.open(this.indexFile);
+
+        if (this.oldJournalFile.isFile()) replay(this.oldJournalFile, this.changes);
+        Replay replay = this.journalFile.isFile() ? replay(this.journalFile, this.changes) : new Replay();
+        this.journal = this.openJournal(replay.end);
+        this.journalRecords = replay.records;
+        this.size = this.index.size();
+        for (final Map.Entry<String, UserEntity> entry : this.changes.entrySet()) {
+            boolean indexed = this.index.find(entry.getKey()) >= 0;
+            boolean deleted = entry.getValue() == DELETED;
+            if (indexed && deleted) this.size--;
+            else if (!indexed && !deleted) this.size++;
+        }
+
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 上次压缩没有完成
+        if (this.oldJournalFile.isFile()) {
+            this.compacting = true;
+            this.compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * 将旧版本的用户文件导入索引，只在第一次启动时执行一次
+     */
+    @SuppressWarnings("unchecked")
+    private static void migrate(File legacyFile, File indexFile) throws IOException {
+        TreeMap<String, String> users = new TreeMap<>();
+        try (ObjectInputStream inputStream = new ObjectInputStream(Files.newInputStream(legacyFile.toPath()))) {
+            for (final UserEntity user : (ArrayList<UserEntity>) inputStream.readObject()) {
+                users.put(user.getUserName(), user.getPassword_md5());
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("用户文件格式错误：" + legacyFile, e);
+        }
+
+        try (UserIndex.Writer writer = new UserIndex.Writer(indexFile)) {
+            for (final Map.Entry<String, String> entry : users.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.commit();
+        }
+        if (!legacyFile.renameTo(new File(legacyFile.getPath() + MIGRATED_SUFFIX)))
+            AsyncLogger.log(AsyncLogger.Level.WARN, null, "重命名旧版本用户文件失败：", String.valueOf(legacyFile));
+    }
+
+    /**
+     * 按顺序重放日志中的记录，遇到不完整或损坏的记录时停止
+     * @return 完整记录的数量及最后一条完整记录的结束位置
+     */
+    private static Replay replay(File file, Map<String, UserEntity> changes) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        Replay replay = new Replay();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > buffer.remaining()) return replay;
+            crc.reset();
+            crc.update(bytes, buffer.position(), length);
+            if ((int) crc.getValue() != checksum) return replay;
+
+            try (DataInputStream inputStream = new DataInputStream(
+                    new ByteArrayInputStream(bytes, buffer.position(), length))) {
+                byte op = inputStream.readByte();
+                String userName = inputStream.readUTF();
+                if (op == OP_PUT) {
+                    changes.put(userName, new UserEntity(userName, inputStream.readUTF()));
+                } else if (op == OP_DELETE) {
+                    changes.put(userName, DELETED);
+                } else {
+                    return replay;
+                }
+            }
+            buffer.position(buffer.position() + length);
+            replay.end = buffer.position();
+            replay.records++;
+        }
+        return replay;
+    }
+
+    private FileChannel openJournal(long end) throws IOException {
+        FileChannel channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            // 丢弃崩溃时留下的不完整记录
+            if (channel.size() > end) channel.truncate(end);
+            channel.position(end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    protected synchronized boolean contains(String userName) {
+        UserEntity user = this.changes.get(userName);
+        if (user != null) return user != DELETED;
+        return this.index.find(userName) >= 0;
+    }
+
+    /**
+     * @param userName 用户名
+     * @return 用户，不存在时返回null
+     */
+    protected synchronized UserEntity get(String userName) {
+        UserEntity user = this.changes.get(userName);
+        if (user != null) return user == DELETED ? null : user;
+        int i = this.index.find(userName);
+        return i < 0 ? null : new UserEntity(userName, this.index.passwordAt(i));
+    }
+
+    /**
+     * @return 按用户名排序的所有用户名
+     */
+    protected synchronized ArrayList<String> getUserNames() {
+        ArrayList<String> names = new ArrayList<>(this.size);
+        try {
+            merge(this.index, this.changes, (userName, position) -> names.add(userName));
+        } catch (IOException ignore) {
+            // 只在内存中遍历，不会抛出
+        }
+        return names;
+    }
+
+    protected synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * 添加或更新用户，记录写入日志后才修改用户表
+     * @param user 用户
+     * @return 是否保存成功
+     */
+    protected synchronized boolean put(UserEntity user) {
+        String userName = user.getUserName();
+        if (!this.write(OP_PUT, userName, user.getPassword_md5())) return false;
+        if (!this.contains(userName)) this.size++;
+        this.changes.put(userName, new UserEntity(userName, user.getPassword_md5()));
+        this.compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * 删除用户，记录写入日志后才修改用户表
+     * @param userName 用户名
+     * @return 是否删除成功
+     */
+    protected synchronized boolean remove(String userName) {
+        if (!this.write(OP_DELETE, userName, null)) return false;
+        if (this.contains(userName)) this.size--;
+        // 即使索引中没有该用户也要记录删除，正在进行的压缩可能把之前的添加写入新的索引
+        this.changes.put(userName, DELETED);
+        this.compactIfNeeded();
+        return true;
+    }
+
+    private boolean write(byte op, String userName, String password) {
+        try {
+            // 切换日志失败后重新打开
+            if (this.journal == null) this.journal = this.openJournal(this.journalFile.length());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream outputStream = new DataOutputStream(bytes);
+            outputStream.writeByte(op);
+            outputStream.writeUTF(userName);
+            if (password != null) outputStream.writeUTF(password);
+            byte[] payload = bytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            long position = this.journal.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    this.journal.write(buffer);
+                }
+                if (this.sync) this.journal.force(false);
+            } catch (IOException e) {
+                // 去掉写了一半的记录，之后的记录仍然可以重放
+                this.journal.truncate(position);
+                this.journal.position(position);
+                throw e;
+            }
+            this.journalRecords++;
+            return true;
+        } catch (Exception e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, null, "保存用户信息失败：", String.valueOf(e));
+            return false;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (this.compacting || this.journalRecords < this.compactThreshold
+                || this.journalRecords < this.size / COMPACT_RATIO) return;
+        this.compacting = true;
+        this.compactor.execute(this::compact);
+    }
+
+    /**
+     * 压缩日志，在后台线程中执行。只有切换日志和复制修改表时持有锁，写索引期间不阻塞用户的增删
+     */
+    private void compact() {
+        UserIndex base;
+        TreeMap<String, UserEntity> merged;
+        synchronized (this) {
+            try {
+                // 上次压缩失败时旧日志还在，新的索引同样包含其中的记录，不再切换日志
+                if (!this.oldJournalFile.exists()) {
+                    this.journal.close();
+                    this.journal = null;
+                    Files.move(this.journalFile.toPath(), this.oldJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    this.journal = this.openJournal(0);
+                    this.journalRecords = 0;
+                }
+            } catch (Exception e) {
+                AsyncLogger.log(AsyncLogger.Level.ERROR, null, "切换用户日志失败：", String.valueOf(e));
+                this.compacting = false;
+                return;
+            }
+            base = this.index;
+            merged = new TreeMap<>(this.changes);
+        }
+
+        try {
+            this.writeIndex(base, merged);
+            UserIndex compacted = UserIndex.open(this.indexFile);
+            synchronized (this) {
+                this.index = compacted;
+                // 压缩期间没有再次修改的用户已经包含在新的索引中
+                for (final Map.Entry<String, UserEntity> entry : merged.entrySet()) {
+                    this.changes.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            Files.delete(this.oldJournalFile.toPath());
+            AsyncLogger.log(AsyncLogger.Level.INFO, null, "用户日志压缩完成，用户数：", String.valueOf(compacted.size()));
+        } catch (Exception e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, null, "压缩用户日志失败：", String.valueOf(e));
+        } finally {
+            synchronized (this) {
+                this.compacting = false;
+                this.compactions++;
+            }
+        }
+    }
+
+    /**
+     * 按用户名的顺序合并旧索引和修改表，写成新的索引
+     */
+    private void writeIndex(UserIndex base, TreeMap<String, UserEntity> changes) throws IOException {
+        try (UserIndex.Writer writer = new UserIndex.Writer(this.indexFile)) {
+            merge(base, changes, (userName, position) -> writer.add(userName,
+                    position < 0 ? changes.get(userName).getPassword_md5() : base.passwordAt(position)));
+            writer.commit();
+        }
+    }
+
+    /**
+     * 按用户名的顺序遍历索引与修改表合并后的所有用户，修改表中的记录覆盖索引中的同名用户，已删除的用户跳过
+     */
+    private static void merge(UserIndex base, TreeMap<String, UserEntity> changes, MergeVisitor visitor) throws IOException {
+        Iterator<Map.Entry<String, UserEntity>> iterator = changes.entrySet().iterator();
+        Map.Entry<String, UserEntity> change = iterator.hasNext() ? iterator.next() : null;
+        for (int i = 0; i < base.size(); i++) {
+            String name = base.nameAt(i);
+            int cmp = 1;
+            while (change != null && (cmp = change.getKey().compareTo(name)) <= 0) {
+                if (change.getValue() != DELETED) visitor.visit(change.getKey(), -1);
+                change = iterator.hasNext() ? iterator.next() : null;
+                if (cmp == 0) break;
+            }
+            if (cmp != 0) visitor.visit(name, i);
+        }
+        while (change != null) {
+            if (change.getValue() != DELETED) visitor.visit(change.getKey(), -1);
+            change = iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+
+    private interface MergeVisitor {
+        /**
+         * @param userName 用户名
+         * @param position 用户在索引中的位置，用户来自修改表时为-1
+         */
+        void visit(String userName, int position) throws IOException;
+    }
+
+    /**
+     * @return 当前日志中的记录数
+     */
+    protected synchronized int getJournalRecords() {
+        return this.journalRecords;
+    }
+
+    /**
+     * @return 已完成的压缩次数（包括失败的）
+     */
+    protected synchronized long getCompactionCount() {
+        return this.compactions;
+    }
+
+    private static class Replay {
+        private long end;
+        private int records;
+
+        private Replay() {
+            this.end = 0;
+            this.records = 0;
+        }
+    }
+}
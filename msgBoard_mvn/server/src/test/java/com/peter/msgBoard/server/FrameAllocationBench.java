@@ -0,0 +1,127 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.entity.Codec;
+import com.peter.msgBoard.entity.Request;
+import com.peter.msgBoard.entity.Response;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * 每个请求的内存分配量的基准测试，不属于单元测试，不会在构建时运行。
+ * 在同一进程中启动服务器，由一个连接同步发送未知请求（服务器只解码请求并回复400，不读写磁盘），
+ * 统计所有线程（客户端和服务器）分配的字节数，除以请求数量即为每个请求的分配量，用于比较帧读写路径的改动。
+ * 客户端直接按帧格式（4字节长度前缀 + 数据，不压缩）读写套接字，只依赖编解码器，帧读写的实现改变前后都可以使用同一份基准测试。
+ * <p>
+ * 运行方式（在msgBoard_mvn目录下）：
+ * <pre>
+ * mvn -q -pl server -am test-compile
+ * java -cp utils/target/classes:entity/target/classes:server/target/classes:server/target/test-classes \
+ *     com.peter.msgBoard.server.FrameAllocationBench binary 512
+ * </pre>
+ * 第一个参数为编码方式（java或binary），第二个参数为请求消息的字节数，请求数量通过 {@code -Dbench.requests=N} 指定（默认2000），
+ * 传输模式等服务器配置照常通过 {@code -DmsgBoard.*} 指定。服务器的数据目录为一个新建的临时目录。
+ */
+public class FrameAllocationBench {
+    private static final int PORT = 2580;
+
+    public static void main(String[] args) throws Exception {
+        // 必须在加载服务器的配置之前设置，服务器的数据和日志都写到临时目录中
+        System.setProperty("user.home", Files.createTempDirectory("frame-bench").toString());
+        Codec codec = args.length > 0 && args[0].equals("binary") ? Codec.BINARY : Codec.JAVA;
+        int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        int requests = Integer.getInteger("bench.requests", 2000);
+
+        Thread server = new Thread(() -> {
+            try {
+                Main.main(new String[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bench-server");
+        server.setDaemon(true);
+        server.start();
+
+        try (Socket socket = connect()) {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            // 连接握手
+            readResponse(inputStream);
+
+            byte[] request = codec.encode(new Request("x".repeat(payloadSize), null, "allocationBench"));
+            if (request == null) throw new IllegalStateException("编码请求失败");
+
+            // 预热一轮，使JIT编译和缓冲池都进入稳定状态
+            for (int i = 0; i < requests; i++) {
+                writeRequest(outputStream, request);
+                readResponse(inputStream);
+            }
+
+            System.gc();
+            long allocated = allocatedBytes(), start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                writeRequest(outputStream, request);
+                readResponse(inputStream);
+            }
+            allocated = allocatedBytes() - allocated;
+            double micros = (System.nanoTime() - start) / 1000.0 / requests;
+
+            System.out.printf("%s, %s, %d B payload: %d B/request, %.1f us/request%n", ServerConfig.TRANSPORT,
+                    codec == Codec.BINARY ? "binary" : "java", payloadSize, allocated / requests, micros);
+        }
+        System.exit(0);
+    }
+
+    private static Socket connect() throws InterruptedException {
+        // 等待服务器开始监听
+        for (int i = 0; ; i++) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", PORT), 1000);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                if (i >= 100) throw new IllegalStateException("无法连接服务器", e);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void writeRequest(DataOutputStream outputStream, byte[] request) throws IOException {
+        // 长度前缀和数据一次写出
+        byte[] frame = new byte[4 + request.length];
+        frame[0] = (byte) (request.length >>> 24);
+        frame[1] = (byte) (request.length >>> 16);
+        frame[2] = (byte) (request.length >>> 8);
+        frame[3] = (byte) request.length;
+        System.arraycopy(request, 0, frame, 4, request.length);
+        outputStream.write(frame);
+        outputStream.flush();
+    }
+
+    private static Response readResponse(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        Response response = Codec.of(bytes).decode(bytes, Response.class);
+        if (response == null) throw new IOException("解码响应失败");
+        return response;
+    }
+
+    /**
+     * 所有存活线程分配的字节总数，压测期间服务器和客户端的线程都不会退出
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (final long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,272 @@
+package com.peter.msgBoard.server;
+
+import com.peter.msgBoard.entity.UserEntity;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * UserStore的测试，重点是压缩的每一步崩溃后重新打开时的重放：
+ * 用户表始终等于崩溃前所有写入成功的修改，未完成的压缩在打开后由后台线程继续完成。
+ * 崩溃的状态通过直接组合各个文件构造：旧索引、新索引（旧索引合并修改A）、旧日志（修改A）、日志（修改B）。
+ */
+public class UserStoreTest extends TestCase {
+    private static final String INDEX_NAME = "users.idx";
+    private static final String JOURNAL_NAME = "users.journal";
+    private static final String OLD_JOURNAL_NAME = JOURNAL_NAME + ".old";
+    private static final int NO_COMPACTION = 1_000_000;
+
+    private File dir;
+    // 索引只包含初始用户
+    private byte[] oldIndex;
+    // 索引包含初始用户和修改A
+    private byte[] newIndex;
+    // 只包含修改A的日志
+    private byte[] journalA;
+    // 只包含修改B的日志
+    private byte[] journalB;
+    // 应用修改A、修改A和B之后的用户表
+    private TreeMap<String, String> expectedA;
+    private TreeMap<String, String> expectedAB;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.dir = Files.createTempDirectory("user-store").toFile();
+
+        // 初始用户在日志达到100条记录时压缩进索引
+        File base = this.newDir("base");
+        UserStore store = new UserStore(base.getPath(), 100, false);
+        TreeMap<String, String> users = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            put(store, users, "user" + i, "pwd" + i);
+        }
+        awaitCompactions(store, 1);
+        assertEquals(0, store.getJournalRecords());
+        this.oldIndex = read(base, INDEX_NAME);
+
+        // 修改A：删除、更新和新增用户，其中一个新增的用户随后又被删除
+        store = new UserStore(base.getPath(), NO_COMPACTION, false);
+        remove(store, users, "user0");
+        remove(store, users, "user1");
+        put(store, users, "user2", "changed2");
+        put(store, users, "用户", "中文用户");
+        for (int i = 0; i < 20; i++) {
+            put(store, users, "new" + i, "newPwd" + i);
+        }
+        remove(store, users, "new19");
+        // 删除不存在的用户同样记入日志
+        remove(store, users, "nobody");
+        this.journalA = read(base, JOURNAL_NAME);
+        this.expectedA = new TreeMap<>(users);
+
+        // 修改B：覆盖修改A中的一部分，包括重新添加修改A删除的用户、删除修改A添加的用户
+        put(store, users, "user0", "again0");
+        remove(store, users, "new0");
+        put(store, users, "user2", "changedTwice2");
+        remove(store, users, "user3");
+        put(store, users, "new19", "again19");
+        put(store, users, "late", "latePwd");
+        byte[] journal = read(base, JOURNAL_NAME);
+        this.journalB = Arrays.copyOfRange(journal, this.journalA.length, journal.length);
+        this.expectedAB = new TreeMap<>(users);
+
+        // 新的索引由启动时继续的压缩生成：索引为旧索引，旧日志为修改A
+        File merged = this.newDir("merged");
+        write(merged, INDEX_NAME, this.oldIndex);
+        write(merged, OLD_JOURNAL_NAME, this.journalA);
+        awaitCompactions(new UserStore(merged.getPath(), NO_COMPACTION, false), 1);
+        this.newIndex = read(merged, INDEX_NAME);
+    }
+
+    @Override
+    protected void tearDown() {
+        deleteRecursively(this.dir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File newDir(String name) {
+        File dir = new File(this.dir, name);
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static byte[] read(File dir, String name) throws IOException {
+        return Files.readAllBytes(new File(dir, name).toPath());
+    }
+
+    private static void write(File dir, String name, byte[] bytes) throws IOException {
+        Files.write(new File(dir, name).toPath(), bytes);
+    }
+
+    private static void put(UserStore store, Map<String, String> users, String userName, String password) {
+        assertTrue(store.put(new UserEntity(userName, password)));
+        users.put(userName, password);
+    }
+
+    private static void remove(UserStore store, Map<String, String> users, String userName) {
+        assertTrue(store.remove(userName));
+        users.remove(userName);
+    }
+
+    private static void awaitCompactions(UserStore store, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (store.getCompactionCount() < count) {
+            assertTrue("等待压缩超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertUsers(Map<String, String> expected, UserStore store) {
+        assertEquals(expected.size(), store.size());
+        assertEquals(new ArrayList<>(expected.keySet()), store.getUserNames());
+        for (final Map.Entry<String, String> entry : expected.entrySet()) {
+            UserEntity user = store.get(entry.getKey());
+            assertNotNull(entry.getKey(), user);
+            assertEquals(entry.getValue(), user.getPassword_md5());
+        }
+        for (final String userName : new String[] {"user0", "user1", "user3", "new0", "new19", "nobody", "late"}) {
+            assertEquals(userName, expected.containsKey(userName), store.contains(userName));
+        }
+    }
+
+    /**
+     * 打开崩溃后的目录：用户表立即正确；有旧日志时等待继续的压缩完成，之后旧日志被删除，
+     * 新的索引包含所有修改；再追加修改后重新打开，用户表仍然正确
+     */
+    private void assertRecovers(File dir, Map<String, String> expected) throws Exception {
+        boolean unfinished = new File(dir, OLD_JOURNAL_NAME).exists();
+        UserStore store = new UserStore(dir.getPath(), NO_COMPACTION, false);
+        assertUsers(expected, store);
+        if (unfinished) {
+            awaitCompactions(store, 1);
+            assertFalse(new File(dir, OLD_JOURNAL_NAME).exists());
+            assertFalse(new File(dir, INDEX_NAME + ".tmp").exists());
+            assertUsers(expected, store);
+        }
+
+        TreeMap<String, String> users = new TreeMap<>(expected);
+        put(store, users, "afterCrash", "afterPwd");
+        remove(store, users, "user5");
+        assertUsers(users, new UserStore(dir.getPath(), NO_COMPACTION, false));
+    }
+
+    /**
+     * 压缩开始之前：索引和日志
+     */
+    public void testNoCompaction() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.oldIndex);
+        write(dir, JOURNAL_NAME, concat(this.journalA, this.journalB));
+        assertRecovers(dir, this.expectedAB);
+    }
+
+    /**
+     * 日志重命名为旧日志之后、新的日志创建之前崩溃
+     */
+    public void testCrashAfterJournalRenamed() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.oldIndex);
+        write(dir, OLD_JOURNAL_NAME, this.journalA);
+        assertRecovers(dir, this.expectedA);
+    }
+
+    /**
+     * 新的日志已经写入记录、新的索引还没有开始写时崩溃
+     */
+    public void testCrashBeforeIndexWritten() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.oldIndex);
+        write(dir, OLD_JOURNAL_NAME, this.journalA);
+        write(dir, JOURNAL_NAME, this.journalB);
+        assertRecovers(dir, this.expectedAB);
+    }
+
+    /**
+     * 写新的索引时崩溃：临时文件只写了一半，目标索引仍然是旧索引
+     */
+    public void testCrashWhileWritingIndex() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.oldIndex);
+        write(dir, INDEX_NAME + ".tmp", Arrays.copyOf(this.newIndex, this.newIndex.length / 2));
+        write(dir, OLD_JOURNAL_NAME, this.journalA);
+        write(dir, JOURNAL_NAME, this.journalB);
+        assertRecovers(dir, this.expectedAB);
+    }
+
+    /**
+     * 新的索引已经替换、旧日志删除之前崩溃：旧日志中的记录重复应用在已经包含它们的索引上
+     */
+    public void testCrashBeforeOldJournalDeleted() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.newIndex);
+        write(dir, OLD_JOURNAL_NAME, this.journalA);
+        write(dir, JOURNAL_NAME, this.journalB);
+        assertRecovers(dir, this.expectedAB);
+    }
+
+    /**
+     * 压缩完成后写日志时崩溃：最后一条记录不完整，重放时丢弃并截断，之后的记录接在最后一条完整记录之后
+     */
+    public void testTornJournalRecordAfterCompaction() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.newIndex);
+        write(dir, JOURNAL_NAME, concat(this.journalB, Arrays.copyOf(this.journalA, 12)));
+        assertRecovers(dir, this.expectedAB);
+        assertEquals(this.journalB.length, Arrays.mismatch(this.journalB, read(dir, JOURNAL_NAME)));
+    }
+
+    /**
+     * 日志中间的记录损坏时从该记录开始丢弃，之前的记录仍然有效
+     */
+    public void testCorruptJournalRecord() throws Exception {
+        File dir = this.newDir("crash");
+        write(dir, INDEX_NAME, this.oldIndex);
+        write(dir, JOURNAL_NAME, concat(this.journalA, this.journalB));
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, JOURNAL_NAME), "rw")) {
+            // 修改B的第一条记录的内容
+            raf.seek(this.journalA.length + 10);
+            raf.write('?');
+        }
+        assertRecovers(dir, this.expectedA);
+    }
+
+    /**
+     * 运行中达到阈值时在后台压缩，压缩期间继续增删用户，压缩前后用户表都正确。
+     * 压缩可能仍在进行，不能再打开同一个目录，重新打开的情况由上面的测试覆盖
+     */
+    public void testCompactionWhileWriting() throws Exception {
+        File dir = this.newDir("live");
+        UserStore store = new UserStore(dir.getPath(), 50, true);
+        TreeMap<String, String> users = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            put(store, users, "live" + (i % 300), "pwd" + i);
+            if (i % 7 == 0) remove(store, users, "live" + (i * 13 % 300));
+        }
+        assertUsers(users, store);
+        awaitCompactions(store, 1);
+        assertUsers(users, store);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,313 @@
+package com.peter.msgBoard.utils;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志。
+ * 记录日志的线程只把日志项放入一个有界的无锁环形缓冲区，字符串拼接、获取套接字地址和写文件都由后台线程完成，
+ * 处理请求的线程之间不再竞争标准输出的锁。缓冲区满时丢弃新的日志项并计数，不会阻塞记录日志的线程。
+ * 日志写入按大小滚动的文件：当前文件超过上限时依次重命名为 .1、.2 ……，超出保留数量的旧文件被删除。
+ * 未调用{@link #start}时，日志同步输出到标准输出。
+ */
+public class AsyncLogger {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // 缓冲区为空时后台线程的休眠时间
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static volatile AsyncLogger instance = null;
+
+    private final Level level;
+    // 每sampleRate个请求日志记录一个，0表示不记录请求日志
+    private final int sampleRate;
+    private final int mask;
+    // 环形缓冲区：sequences[i]表示槽位i当前可以被哪个位置的生产者（等于位置）或消费者（等于位置+1）使用
+    private final AtomicLongArray sequences;
+    private final Entry[] entries;
+    private final AtomicLong tail;
+    private final LongAdder dropped;
+    private final RollingFile file;
+    private final Thread thread;
+    private long head;
+    private long reportedDropped;
+    private volatile boolean running;
+
+    private AsyncLogger(Level level, int sampleRate, int capacity, RollingFile file) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.level = level;
+        this.sampleRate = Math.max(0, sampleRate);
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+            this.entries[i] = new Entry();
+        }
+        this.tail = new AtomicLong(0);
+        this.dropped = new LongAdder();
+        this.file = file;
+        this.head = 0;
+        this.reportedDropped = 0;
+        this.running = true;
+        this.thread = new Thread(this::drainLoop, "async-logger");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 启动异步日志，只能调用一次，重复调用无效
+     * @param path 日志文件路径，为"-"时输出到标准输出
+     * @param level 最低日志级别
+     * @param sampleRate 请求日志的采样率，每sampleRate个请求记录一个，0表示不记录
+     * @param capacity 环形缓冲区容量，会向上取整为2的幂
+     * @param maxFileSize 单个日志文件的最大字节数
+     * @param maxFiles 滚动保留的旧日志文件数量
+     * @return 是否启动成功，日志文件无法创建时返回false，此时仍同步输出到标准输出
+     */
+    public static synchronized boolean start(String path, Level level, int sampleRate, int capacity, long maxFileSize, int maxFiles) {
+        if (instance != null) return true;
+        try {
+            RollingFile file = new RollingFile("-".equals(path) ? null : new File(path), maxFileSize, maxFiles);
+            AsyncLogger logger = new AsyncLogger(level, sampleRate, capacity, file);
+            logger.thread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(logger::stop));
+            instance = logger;
+            return true;
+        } catch (Exception ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * 记录一条日志
+     * @param level 日志级别
+     * @param socket 日志相关的客户端套接字，可为null
+     * @param msg 日志内容
+     * @param arg 追加在日志内容之后的参数，可为null，由后台线程拼接
+     */
+    public static void log(Level level, Socket socket, String msg, String arg) {
+        log(level, socket, msg, arg, null);
+    }
+
+    /**
+     * 记录一条带异常的日志，异常的堆栈由后台线程格式化，另起一行追加在日志内容之后
+     * @param error 日志相关的异常，可为null
+     */
+    public static void log(Level level, Socket socket, String msg, String arg, Throwable error) {
+        AsyncLogger logger = instance;
+        if (logger == null) {
+            System.out.println(format(socket, msg, arg));
+            if (error != null) error.printStackTrace(System.out);
+            return;
+        }
+        if (level.compareTo(logger.level) < 0) return;
+        logger.offer(level, socket, msg, arg, error);
+    }
+
+    /**
+     * 记录一条请求日志，请求日志按采样率记录，级别为INFO
+     */
+    public static void request(Socket socket, String msg, String arg) {
+        AsyncLogger logger = instance;
+        if (logger != null) {
+            if (logger.sampleRate == 0 || Level.INFO.compareTo(logger.level) < 0) return;
+            if (logger.sampleRate > 1 && ThreadLocalRandom.current().nextInt(logger.sampleRate) != 0) return;
+        }
+        log(Level.INFO, socket, msg, arg);
+    }
+
+    /**
+     * @return 因缓冲区已满而丢弃的日志数量
+     */
+    public static long getDroppedCount() {
+        AsyncLogger logger = instance;
+        return logger == null ? 0 : logger.dropped.sum();
+    }
+
+    private void offer(Level level, Socket socket, String msg, String arg, Throwable error) {
+        long pos = this.tail.get();
+        while (true) {
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) break;
+                pos = this.tail.get();
+            } else if (diff < 0) {
+                // 消费者尚未取走该槽位上一轮的日志项，缓冲区已满
+                this.dropped.increment();
+                return;
+            } else {
+                pos = this.tail.get();
+            }
+        }
+
+        int index = (int) pos & this.mask;
+        Entry entry = this.entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.socket = socket;
+        entry.msg = msg;
+        entry.arg = arg;
+        entry.error = error;
+        this.sequences.set(index, pos + 1);
+    }
+
+    private void drainLoop() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder builder = new StringBuilder();
+        Date date = new Date();
+        while (true) {
+            boolean stopping = !this.running;
+            int count = 0;
+            while (true) {
+                int index = (int) this.head & this.mask;
+                if (this.sequences.get(index) != this.head + 1) break;
+                Entry entry = this.entries[index];
+                date.setTime(entry.time);
+                builder.setLength(0);
+                builder.append(dateFormat.format(date)).append(' ').append(entry.level).append(' ');
+                builder.append(format(entry.socket, entry.msg, entry.arg));
+                if (entry.error != null) appendStackTrace(builder, entry.error);
+                entry.socket = null;
+                entry.msg = null;
+                entry.arg = null;
+                entry.error = null;
+                this.sequences.set(index, this.head + this.mask + 1);
+                this.head++;
+                count++;
+                this.file.writeLine(builder);
+            }
+
+            long droppedCount = this.dropped.sum();
+            if (droppedCount != this.reportedDropped) {
+                builder.setLength(0);
+                date.setTime(System.currentTimeMillis());
+                builder.append(dateFormat.format(date)).append(' ').append(Level.WARN).append(' ');
+                builder.append("日志缓冲区已满，累计丢弃 ").append(droppedCount).append(" 条日志");
+                this.reportedDropped = droppedCount;
+                this.file.writeLine(builder);
+                count++;
+            }
+
+            if (count > 0) this.file.flush();
+            if (stopping) {
+                this.file.close();
+                return;
+            }
+            if (count == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void stop() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join(1000);
+        } catch (InterruptedException ignore) {}
+    }
+
+    private static String format(Socket socket, String msg, String arg) {
+        String prefix = socket == null ? "" : Utils.getSocketIP(socket) + "：";
+        return prefix + msg + (arg == null ? "" : arg) + "。";
+    }
+
+    // 堆栈的每一帧占一行，去掉末尾的换行，由写入日志行时统一添加
+    private static void appendStackTrace(StringBuilder builder, Throwable error) {
+        StringWriter writer = new StringWriter();
+        error.printStackTrace(new PrintWriter(writer));
+        StringBuffer trace = writer.getBuffer();
+        int end = trace.length();
+        while (end > 0 && (trace.charAt(end - 1) == '\n' || trace.charAt(end - 1) == '\r')) end--;
+        builder.append(System.lineSeparator()).append(trace, 0, end);
+    }
+
+    private static class Entry {
+        private long time;
+        private Level level;
+        private Socket socket;
+        private String msg;
+        private String arg;
+        private Throwable error;
+    }
+
+    /**
+     * 按大小滚动的日志文件，只由后台线程访问
+     */
+    private static class RollingFile {
+        private final File file;
+        private final long maxFileSize;
+        private final int maxFiles;
+        private Writer writer;
+        private long size;
+
+        private RollingFile(File file, long maxFileSize, int maxFiles) throws IOException {
+            this.file = file;
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = Math.max(0, maxFiles);
+            this.open();
+        }
+
+        private void open() throws IOException {
+            if (this.file == null) {
+                this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)));
+                this.size = 0;
+                return;
+            }
+            IO._checkFileWithError(this.file.getPath());
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8));
+            this.size = this.file.length();
+        }
+
+        private void writeLine(CharSequence line) {
+            try {
+                if (this.file != null && this.size >= this.maxFileSize) this.roll();
+                this.writer.append(line).append(System.lineSeparator());
+                this.size += utf8Length(line) + System.lineSeparator().length();
+            } catch (Exception ignore) {}
+        }
+
+        private static long utf8Length(CharSequence line) {
+            long length = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                length += c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 2 : 3;
+            }
+            return length;
+        }
+
+        private void roll() throws IOException {
+            this.writer.close();
+            String path = this.file.getPath();
+            new File(path + "." + this.maxFiles).delete();
+            for (int i = this.maxFiles - 1; i >= 1; i--) {
+                File old = new File(path + "." + i);
+                if (old.exists()) old.renameTo(new File(path + "." + (i + 1)));
+            }
+            if (this.maxFiles > 0) this.file.renameTo(new File(path + ".1"));
+            else this.file.delete();
+            this.open();
+        }
+
+        private void flush() {
+            try {
+                this.writer.flush();
+            } catch (Exception ignore) {}
+        }
+
+        private void close() {
+            try {
+                if (this.file == null) this.writer.flush();
+                else this.writer.close();
+            } catch (Exception ignore) {}
+        }
+    }
+}
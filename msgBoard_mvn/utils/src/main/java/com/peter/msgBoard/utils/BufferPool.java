@@ -0,0 +1,57 @@
+package com.peter.msgBoard.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 按大小分级的字节数组缓冲池，用于帧的读写，避免每个请求都分配新的数组。
+ * 各级的容量为2的幂，从256字节到1MB；超过1MB的缓冲区直接分配，不进入缓冲池。
+ * 每一级缓存的缓冲区总大小约为1MB，因此缓冲池占用的内存是有上限的。
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASS_BUDGET = 1024 * 1024;
+    private static final int MAX_BUFFERS_PER_CLASS = 256;
+    private static final ArrayBlockingQueue<byte[]>[] POOLS = createPools();
+
+    private BufferPool() {}
+
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<byte[]>[] createPools() {
+        ArrayBlockingQueue<byte[]>[] pools = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < pools.length; i++) {
+            int capacity = Math.min(MAX_BUFFERS_PER_CLASS, Math.max(2, CLASS_BUDGET >> (i + MIN_SHIFT)));
+            pools[i] = new ArrayBlockingQueue<>(capacity);
+        }
+        return pools;
+    }
+
+    private static int classIndex(int size) {
+        if (size <= 1 << MIN_SHIFT) return 0;
+        if (size > 1 << MAX_SHIFT) return -1;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * 获取一个长度不小于size的缓冲区，使用完后应调用{@link #release}归还
+     * @param size 需要的字节数
+     * @return 缓冲区，其长度可能大于size
+     */
+    public static byte[] acquire(int size) {
+        int index = classIndex(size);
+        if (index < 0) return new byte[size];
+        byte[] buffer = POOLS[index].poll();
+        return buffer != null ? buffer : new byte[1 << (index + MIN_SHIFT)];
+    }
+
+    /**
+     * 归还缓冲区。归还后调用方不能再使用该缓冲区；不是由缓冲池分配的数组会被忽略
+     * @param buffer 缓冲区，可以为null
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) return;
+        int index = classIndex(buffer.length);
+        if (index < 0 || buffer.length != 1 << (index + MIN_SHIFT)) return;
+        POOLS[index].offer(buffer);
+    }
+}
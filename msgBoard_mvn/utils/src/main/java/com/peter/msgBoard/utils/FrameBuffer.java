@@ -0,0 +1,43 @@
+package com.peter.msgBoard.utils;
+
+/**
+ * 一个已读取的帧，其数据位于缓冲池的缓冲区中。
+ * 每个连接持有一个实例并在每次读取时复用，处理完帧数据后应调用{@link #release}归还缓冲区。
+ */
+public class FrameBuffer {
+    private byte[] array;
+    private int length;
+
+    public FrameBuffer() {
+        this.array = null;
+        this.length = 0;
+    }
+
+    /**
+     * @return 帧数据所在的数组，数组长度可能大于帧的长度
+     */
+    public byte[] array() {
+        return this.array;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    /**
+     * 设置帧数据，之前持有的缓冲区会被归还
+     * @param array 由缓冲池分配的数组，所有权转移给该实例
+     * @param length 帧的长度
+     */
+    public void set(byte[] array, int length) {
+        this.release();
+        this.array = array;
+        this.length = length;
+    }
+
+    public void release() {
+        BufferPool.release(this.array);
+        this.array = null;
+        this.length = 0;
+    }
+}
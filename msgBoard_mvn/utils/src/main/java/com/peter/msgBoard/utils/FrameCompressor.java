@@ -0,0 +1,112 @@
+package com.peter.msgBoard.utils;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧压缩器，每个连接一个实例，内部的Deflater和Inflater在该连接的所有帧之间复用。
+ * 压缩后的数据格式：原始长度(4字节) + Deflate压缩数据。
+ */
+public class FrameCompressor {
+    // 在握手响应中声明支持Deflate压缩的特性码，与二进制编码的版本号不会冲突
+    public static final byte FEATURE_DEFLATE = 0x40;
+    // 在negotiate请求中使用的特性名称
+    public static final String FEATURE_DEFLATE_NAME = "deflate";
+
+    private final int threshold;
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    /**
+     * @param threshold 压缩阈值，小于该字节数的帧不压缩
+     */
+    public FrameCompressor(int threshold) {
+        this.threshold = threshold;
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        this.inflater = new Inflater();
+    }
+
+    /**
+     * 压缩一个帧的数据，直接写入目标缓冲区
+     * @param data 原始数据
+     * @param dst 目标缓冲区，可用空间至少为data.length
+     * @param offset 在目标缓冲区中的起始位置
+     * @return 写入的字节数。数据小于阈值或压缩后没有变小时返回-1，调用方应发送原始数据
+     */
+    public int compress(byte[] data, byte[] dst, int offset) {
+        if (data.length < this.threshold) return -1;
+
+        synchronized (this.deflater) {
+            this.deflater.reset();
+            this.deflater.setInput(data);
+            this.deflater.finish();
+
+            putInt(dst, offset, data.length);
+            // 压缩数据的可用空间比原始数据少4字节（原始长度），写不下说明压缩后没有变小
+            int position = offset + 4;
+            int limit = offset + data.length;
+            while (!this.deflater.finished()) {
+                if (position >= limit) return -1;
+                position += this.deflater.deflate(dst, position, limit - position);
+            }
+            return position - offset;
+        }
+    }
+
+    /**
+     * 获取压缩数据解压后的长度
+     * @param data 由{@link #compress}压缩的数据
+     * @param length 压缩数据的长度
+     */
+    public int decompressedLength(byte[] data, int length) throws IOException {
+        if (length < 4) throw new IOException("压缩帧格式有误");
+        return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    /**
+     * 解压一个帧的数据，直接写入目标缓冲区
+     * @param data 由{@link #compress}压缩的数据
+     * @param length 压缩数据的长度
+     * @param dst 目标缓冲区
+     * @param originalLength 解压后的长度，即{@link #decompressedLength}的返回值
+     * @throws IOException 数据格式有误时抛出
+     */
+    public void decompress(byte[] data, int length, byte[] dst, int originalLength) throws IOException {
+        synchronized (this.inflater) {
+            try {
+                this.inflater.reset();
+                this.inflater.setInput(data, 4, length - 4);
+                int offset = 0;
+                while (offset < originalLength) {
+                    int n = this.inflater.inflate(dst, offset, originalLength - offset);
+                    if (n == 0 && (this.inflater.finished() || this.inflater.needsInput()))
+                        throw new IOException("压缩帧数据不完整");
+                    offset += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("压缩帧格式有误", e);
+            }
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 释放Deflater和Inflater占用的本地内存，之后不能再使用该实例
+     */
+    public void close() {
+        synchronized (this.deflater) {
+            this.deflater.end();
+        }
+        synchronized (this.inflater) {
+            this.inflater.end();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.peter.msgBoard.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 帧的读写。
+ * 帧格式：帧头(4字节) + 数据。帧头的低31位为数据长度，最高位表示数据是否经过压缩，
+ * 只有协商了压缩的连接才会出现压缩帧，因此旧版本的客户端和服务器不受影响。
+ * 读写使用{@link BufferPool}中的缓冲区，帧头与数据合并为一次写出。
+ */
+public class Frames {
+    public static final int COMPRESSED_FLAG = 0x80000000;
+    public static final int LENGTH_MASK = 0x7FFFFFFF;
+    public static final int HEADER_SIZE = 4;
+
+    private Frames() {}
+
+    /**
+     * 写出一个帧
+     * @param outputStream 输出流
+     * @param data 帧数据
+     * @param compressor 连接的压缩器，未协商压缩时为null
+     */
+    public static void write(OutputStream outputStream, byte[] data, FrameCompressor compressor) throws IOException {
+        byte[] buffer = BufferPool.acquire(HEADER_SIZE + data.length);
+        try {
+            int length = compressor == null ? -1 : compressor.compress(data, buffer, HEADER_SIZE);
+            int header;
+            if (length > 0) {
+                header = length | COMPRESSED_FLAG;
+            } else {
+                length = data.length;
+                header = length;
+                System.arraycopy(data, 0, buffer, HEADER_SIZE, length);
+            }
+            putInt(buffer, 0, header);
+            outputStream.write(buffer, 0, HEADER_SIZE + length);
+            outputStream.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 只写出一个未压缩帧的帧头，帧数据由调用者随后写出，用于直接从文件传输的分块帧
+     * @param outputStream 输出流
+     * @param length 帧数据的长度
+     */
+    public static void writeHeader(OutputStream outputStream, int length) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        putInt(header, 0, length & LENGTH_MASK);
+        outputStream.write(header, 0, HEADER_SIZE);
+    }
+
+    /**
+     * 读取一个帧，压缩帧会被解压
+     * @param inputStream 输入流
+     * @param compressor 连接的压缩器，未协商压缩时为null
+     * @param maxFrameSize 允许的最大帧长度（解压前后都会检查），超过时抛出IOException
+     * @param frame 用于存放帧数据的实例，之前持有的缓冲区会被归还
+     */
+    public static void read(InputStream inputStream, FrameCompressor compressor, int maxFrameSize, FrameBuffer frame) throws IOException {
+        int header = readInt(inputStream);
+        int length = checkLength(header & LENGTH_MASK, maxFrameSize);
+        byte[] buffer = BufferPool.acquire(length);
+        try {
+            readFully(inputStream, buffer, length);
+        } catch (IOException e) {
+            BufferPool.release(buffer);
+            throw e;
+        }
+        unwrap(header, buffer, length, compressor, maxFrameSize, frame);
+    }
+
+    /**
+     * 根据帧头处理已读取的帧数据，压缩帧会被解压
+     * @param header 帧头
+     * @param data 帧数据，必须由缓冲池分配，所有权转移给该方法
+     * @param length 帧数据的长度
+     * @param compressor 连接的压缩器，未协商压缩时为null
+     * @param maxFrameSize 允许的最大帧长度
+     * @param frame 用于存放原始帧数据的实例
+     */
+    public static void unwrap(int header, byte[] data, int length, FrameCompressor compressor, int maxFrameSize, FrameBuffer frame) throws IOException {
+        if ((header & COMPRESSED_FLAG) == 0) {
+            frame.set(data, length);
+            return;
+        }
+
+        try {
+            if (compressor == null) throw new IOException("未协商压缩，却收到了压缩帧");
+            int originalLength = checkLength(compressor.decompressedLength(data, length), maxFrameSize);
+            byte[] buffer = BufferPool.acquire(originalLength);
+            try {
+                compressor.decompress(data, length, buffer, originalLength);
+            } catch (IOException e) {
+                BufferPool.release(buffer);
+                throw e;
+            }
+            frame.set(buffer, originalLength);
+        } finally {
+            BufferPool.release(data);
+        }
+    }
+
+    /**
+     * 检查帧长度是否合法，避免错误的长度前缀导致分配过大的内存
+     * @return 合法的帧长度
+     * @throws IOException 长度为负数或超过最大帧长度时抛出
+     */
+    public static int checkLength(int length, int maxFrameSize) throws IOException {
+        if (length < 0 || length > maxFrameSize)
+            throw new IOException("帧长度超出限制：" + length + "，最大为" + maxFrameSize);
+        return length;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(InputStream inputStream) throws IOException {
+        int b1 = inputStream.read(), b2 = inputStream.read(), b3 = inputStream.read(), b4 = inputStream.read();
+        if ((b1 | b2 | b3 | b4) < 0) throw new EOFException();
+        return (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = inputStream.read(buffer, offset, length - offset);
+            if (n < 0) throw new EOFException();
+            offset += n;
+        }
+    }
+}
@@ -12,8 +12,10 @@ public class IO {
 
     public static final String BASE_DIR = USER_DIR + APP_DIR_NAME + File.separator;
     public static final String FILE_SUFFIX = ".dat";
-    public static final String USER_DATA_PATH = BASE_DIR + "user" + File.separator + "users" + FILE_SUFFIX;
+    public static final String USER_DATA_DIR = BASE_DIR + "user" + File.separator;
+    public static final String USER_DATA_PATH = USER_DATA_DIR + "users" + FILE_SUFFIX;
     public static final String MSG_DATA_DIR = BASE_DIR + "data" + File.separator;
+    public static final String LOG_DIR = BASE_DIR + "logs" + File.separator;
 
 
     /**
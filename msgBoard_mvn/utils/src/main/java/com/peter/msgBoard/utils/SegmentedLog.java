@@ -0,0 +1,987 @@
+package com.peter.msgBoard.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 分段追加日志。
+ * 记录依次追加到目录下的段文件中，每条记录的格式为：4字节长度 + 4字节CRC32校验和 + 记录内容，记录内容不能为空。
+ * 段文件以其第一条记录的序号命名（20位十进制数字 + .log），当前段写满{@code maxSegmentSize}后新建一个段，之前的段不再修改。
+ * 每个段有一个同名的索引文件（.idx），依次保存段内每条记录的位置（4字节），追加记录时一并追加，
+ * 因此按序号读取时直接读出记录的位置，读取的代价与日志的总大小无关。
+ * 打开日志时校验最后一个段的索引，只需顺序校验索引之后的记录并截断崩溃时写了一半的记录，不需要扫描整个段；
+ * 只读的段在第一次读取时校验索引。索引文件缺失或损坏时从段文件重建。
+ * 追加操作互斥，读取可以与追加并发进行，只能读到已完整写入的记录。
+ * 以映射模式打开时，只读的段在第一次读取时整体映射到内存（段文件不超过2GB，每个段即一个映射窗口），之后的读取直接从映射中解析记录，
+ * 不再需要系统调用和额外的内存复制；映射在日志关闭时释放，由GC解除映射。当前写入的段仍在增长，始终通过文件通道读取。
+ * 追加只把记录写入操作系统的页缓存，需要落盘时调用{@link #force()}。
+ * <p>
+ * 只读的段可以通过{@link #deleteExpired(long, long)}从日志开头依次删除，也可以通过{@link #archive(long)}压缩为同名的归档文件（.arc），
+ * 归档文件按块压缩，读取时只解压需要的块。删除和归档都在锁外完成，只在替换段列表时短暂持有锁，不阻塞追加；
+ * 已经取得段列表快照的读取仍然可以读取被替换的段，这些段在一段时间后的下一次删除或归档时才关闭。
+ */
+public class SegmentedLog implements Closeable {
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final String ARCHIVE_SUFFIX = ".arc";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // 单条记录的最大字节数，读到超过该值的长度说明文件已损坏
+    public static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    // 索引文件中每个索引项的字节数
+    private static final int INDEX_ENTRY_SIZE = 4;
+    // 校验索引时最多向前查找几条记录，仍然找不到能通过校验的记录时从头重建索引
+    private static final int MAX_INDEX_PROBES = 16;
+    private static final int READ_BLOCK_SIZE = 64 * 1024;
+    // 归档文件的格式：依次为每块记录的Deflate压缩数据，之后为块索引，最后为4字节魔数 + 4字节记录数 + 4字节块数 + 8字节块索引的位置。
+    // 每个块索引项为4字节块中第一条记录的序号（相对于段）+ 8字节压缩数据的位置 + 4字节压缩后的长度 + 4字节压缩前的长度，
+    // 块中的记录与段文件中的格式相同（长度 + 校验和 + 内容），压缩前不超过ARCHIVE_BLOCK_SIZE字节（单条记录超过时一条记录为一块）
+    private static final int ARCHIVE_MAGIC = 0x4D424131;
+    private static final int ARCHIVE_BLOCK_SIZE = 64 * 1024;
+    private static final int ARCHIVE_ENTRY_SIZE = 20;
+    private static final int ARCHIVE_TRAILER_SIZE = 20;
+    // 被删除或归档的段在替换后至少保留的时间（毫秒），之前开始的读取在此期间仍然可以读取
+    private static final long RETIRE_DELAY_MILLIS = 60 * 1000L;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    // 是否通过内存映射读取只读的段
+    private final boolean mapped;
+    // 按起始序号排列的所有段，最后一个为当前写入的段。新建段时整体替换，读取时使用快照
+    private volatile Segment[] segments;
+    // 下一条记录的序号，记录完整写入后才更新，读取只能读到该序号之前的记录
+    private volatile long nextSequence;
+    // 第一个可能有未落盘数据的段在segments中的下标，之前的段都已经落盘
+    private int unsyncedSegment;
+    private boolean closed;
+    // 保证同一时间只有一个删除或归档操作
+    private final Object compactLock;
+    // 已经从段列表中移除、还没有关闭的段，由this保护
+    private final ArrayList<Segment> retired;
+
+    private SegmentedLog(File dir, long maxSegmentSize, boolean mapped, Segment[] segments) throws IOException {
+        this.dir = dir;
+        this.maxSegmentSize = Math.max(HEADER_SIZE + 1, Math.min(maxSegmentSize, Integer.MAX_VALUE));
+        this.mapped = mapped;
+        this.segments = segments;
+        this.unsyncedSegment = segments.length - 1;
+        this.closed = false;
+        this.compactLock = new Object();
+        this.retired = new ArrayList<>();
+
+        Segment active = segments[segments.length - 1];
+        active.openForWrite();
+        active.load(-1);
+        // 当前写入的段已经校验，读取时不能再次校验，否则会与追加并发地截断索引
+        active.loaded = true;
+        active.channel.truncate(active.size);
+        this.nextSequence = active.baseSequence + active.count;
+    }
+
+    public static SegmentedLog open(File dir, long maxSegmentSize) throws IOException {
+        return open(dir, maxSegmentSize, false);
+    }
+
+    /**
+     * 打开目录下的日志，目录不存在时创建一个空日志
+     * @param dir 日志目录
+     * @param maxSegmentSize 单个段文件的最大字节数
+     * @param mapped 是否通过内存映射读取只读的段
+     * @return 日志实例
+     * @throws IOException 创建目录或打开段文件失败时抛出
+     */
+    public static SegmentedLog open(File dir, long maxSegmentSize, boolean mapped) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("创建目录失败：" + dir);
+
+        ArrayList<Segment> list = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            HashSet<Long> archived = new HashSet<>();
+            for (final File file : files) {
+                String name = file.getName();
+                // 归档中途失败留下的临时文件
+                if (name.endsWith(ARCHIVE_SUFFIX + TEMP_SUFFIX)) Files.deleteIfExists(file.toPath());
+                long baseSequence = parseBaseSequence(name, ARCHIVE_SUFFIX);
+                if (baseSequence >= 0 && archived.add(baseSequence)) list.add(new Segment(file, baseSequence));
+            }
+            for (final File file : files) {
+                long baseSequence = parseBaseSequence(file.getName(), SEGMENT_SUFFIX);
+                if (baseSequence < 0) continue;
+                if (archived.contains(baseSequence)) {
+                    // 归档文件写成后、删除段文件前崩溃，归档文件已经完整
+                    Files.deleteIfExists(indexFile(file).toPath());
+                    Files.deleteIfExists(file.toPath());
+                } else {
+                    list.add(new Segment(file, baseSequence));
+                }
+            }
+        }
+        list.sort(Comparator.comparingLong(segment -> segment.baseSequence));
+        if (list.isEmpty()) {
+            list.add(new Segment(segmentFile(dir, 0), 0));
+        } else if (list.get(list.size() - 1).archived) {
+            // 当前写入的段不会被归档，只在段文件丢失时出现，在归档之后新建一个段
+            Segment last = list.get(list.size() - 1);
+            last.ensureLoaded(-1);
+            long next = last.baseSequence + last.count;
+            list.add(new Segment(segmentFile(dir, next), next));
+        }
+
+        return new SegmentedLog(dir, maxSegmentSize, mapped, list.toArray(new Segment[0]));
+    }
+
+    private static File segmentFile(File dir, long baseSequence) {
+        return new File(dir, String.format("%020d", baseSequence) + SEGMENT_SUFFIX);
+    }
+
+    private static File archiveFile(File dir, long baseSequence) {
+        return new File(dir, String.format("%020d", baseSequence) + ARCHIVE_SUFFIX);
+    }
+
+    private static File indexFile(File segmentFile) {
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    // 从文件名中解析段的起始序号，不是以suffix结尾的段文件时返回-1
+    private static long parseBaseSequence(String name, String suffix) {
+        if (!name.endsWith(suffix)) return -1;
+        String digits = name.substring(0, name.length() - suffix.length());
+        if (digits.length() != 20) return -1;
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException ignore) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return 日志中第一条记录的序号
+     */
+    public long getFirstSequence() {
+        return this.segments[0].baseSequence;
+    }
+
+    /**
+     * @return 下一条追加的记录的序号，即日志中最后一条记录的序号 + 1
+     */
+    public long getNextSequence() {
+        return this.nextSequence;
+    }
+
+    public long append(byte[] record) throws IOException {
+        return this.append(List.of(record));
+    }
+
+    /**
+     * 追加多条记录，写入同一个段的记录通过一次写操作完成
+     * @param records 要追加的记录
+     * @return 第一条记录的序号
+     * @throws IOException 写入失败时抛出，此时部分记录可能已经追加
+     */
+    public synchronized long append(List<byte[]> records) throws IOException {
+        if (this.closed) throw new IOException("日志已关闭");
+        long firstSequence = this.nextSequence;
+
+        int from = 0;
+        while (from < records.size()) {
+            Segment active = this.segments[this.segments.length - 1];
+            if (active.count > 0 && active.size + HEADER_SIZE + records.get(from).length > this.maxSegmentSize)
+                active = this.roll();
+
+            // 当前段能容纳的记录，空段至少写入一条记录
+            long bytes = 0;
+            int to = from;
+            while (to < records.size()) {
+                byte[] record = records.get(to);
+                if (record.length == 0 || record.length > MAX_RECORD_SIZE)
+                    throw new IOException("记录长度不合法：" + record.length);
+                if (to > from && active.size + bytes + HEADER_SIZE + record.length > this.maxSegmentSize) break;
+                bytes += HEADER_SIZE + record.length;
+                to++;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) bytes);
+            ByteBuffer indexBuffer = ByteBuffer.allocate((to - from) * INDEX_ENTRY_SIZE);
+            long position = active.size;
+            CRC32 crc = new CRC32();
+            for (int i = from; i < to; i++) {
+                byte[] record = records.get(i);
+                crc.reset();
+                crc.update(record);
+                indexBuffer.putInt((int) (position + buffer.position()));
+                buffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                active.channel.write(buffer, position + buffer.position());
+            }
+            // 先写记录再写索引，崩溃时索引只可能落后于记录，打开时补全
+            indexBuffer.flip();
+            long indexPosition = (long) active.count * INDEX_ENTRY_SIZE;
+            while (indexBuffer.hasRemaining()) {
+                active.indexChannel.write(indexBuffer, indexPosition + indexBuffer.position());
+            }
+
+            active.size = position + bytes;
+            active.count += to - from;
+            this.nextSequence += to - from;
+            from = to;
+        }
+
+        return firstSequence;
+    }
+
+    /**
+     * 将之前追加的所有记录刷新到磁盘，包括追加过程中已经写满的段
+     * @throws IOException 刷新失败时抛出
+     */
+    public synchronized void force() throws IOException {
+        if (this.closed) throw new IOException("日志已关闭");
+        Segment[] segments = this.segments;
+        for (int i = this.unsyncedSegment; i < segments.length; i++) {
+            // 归档文件写成时已经落盘
+            if (segments[i].archived) continue;
+            segments[i].channel.force(false);
+            segments[i].indexChannel.force(false);
+        }
+        this.unsyncedSegment = segments.length - 1;
+    }
+
+    private Segment roll() throws IOException {
+        Segment segment = new Segment(segmentFile(this.dir, this.nextSequence), this.nextSequence);
+        segment.openForWrite();
+        segment.loaded = true;
+        Segment[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+        segments[segments.length - 1] = segment;
+        this.segments = segments;
+        return segment;
+    }
+
+    /**
+     * 读取从指定序号开始的若干条记录
+     * @param from 第一条记录的序号，小于第一条记录的序号时从第一条记录开始
+     * @param maxCount 最多读取的记录数
+     * @return 读取到的记录，按序号排列
+     * @throws IOException 读取失败或记录校验失败时抛出
+     */
+    public List<byte[]> read(long from, int maxCount) throws IOException {
+        long end = this.nextSequence;
+        Segment[] segments = this.segments;
+        long sequence = Math.max(from, segments[0].baseSequence);
+        end = Math.min(end, sequence + Math.max(0, maxCount));
+
+        ArrayList<byte[]> records = new ArrayList<>((int) Math.max(0, Math.min(end - sequence, 1024)));
+        int i = findSegment(segments, sequence);
+        while (sequence < end) {
+            Segment segment = segments[i];
+            long segmentEnd = i + 1 < segments.length ? segments[i + 1].baseSequence : end;
+            int count = (int) (Math.min(end, segmentEnd) - sequence);
+            // 只读的段的记录数由下一个段的起始序号确定
+            boolean sealed = i + 1 < segments.length;
+            segment.ensureLoaded(sealed ? (int) (segments[i + 1].baseSequence - segment.baseSequence) : -1);
+            if (segment.archived) segment.archive.read((int) (sequence - segment.baseSequence), count, records);
+            else if (sealed && this.mapped) segment.readMapped((int) (sequence - segment.baseSequence), count, records);
+            else segment.read((int) (sequence - segment.baseSequence), count, records);
+            sequence += count;
+            i++;
+        }
+        return records;
+    }
+
+    private static int findSegment(Segment[] segments, long sequence) {
+        int low = 0, high = segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments[mid].baseSequence <= sequence) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * 删除日志开头过期的只读段，当前写入的段不会被删除。只删除开头连续的段，之后的段即使过期也要等之前的段删除后才删除
+     * @param expireBefore 段文件的最后修改时间（即写满的时间）早于该时间（毫秒）时过期，{@link Long#MIN_VALUE}表示不按时间过期
+     * @param maxRecords 最多保留的记录数，段中的记录都不在最新的maxRecords条之内时过期，不大于0表示不限制
+     * @return 删除的记录数
+     * @throws IOException 日志已关闭或删除文件失败时抛出，此时段可能已经从日志中移除
+     */
+    public long deleteExpired(long expireBefore, long maxRecords) throws IOException {
+        synchronized (this.compactLock) {
+            this.closeRetired();
+            Segment[] segments = this.segments;
+            long keepFrom = maxRecords > 0 ? this.nextSequence - maxRecords : Long.MIN_VALUE;
+            int expired = 0;
+            while (expired < segments.length - 1) {
+                Segment segment = segments[expired];
+                if (segments[expired + 1].baseSequence > keepFrom && lastModified(segment) >= expireBefore) break;
+                expired++;
+            }
+            if (expired == 0) return 0;
+
+            // 移除前校验索引并打开文件，已经取得段列表快照的读取在段关闭前仍然可以读取
+            for (int i = 0; i < expired; i++) {
+                try {
+                    segments[i].ensureLoaded((int) (segments[i + 1].baseSequence - segments[i].baseSequence));
+                } catch (IOException ignore) {
+                }
+            }
+            synchronized (this) {
+                if (this.closed) throw new IOException("日志已关闭");
+                // 新建段只在末尾追加，开头的段与快照相同
+                this.segments = Arrays.copyOfRange(this.segments, expired, this.segments.length);
+                this.unsyncedSegment = Math.max(0, this.unsyncedSegment - expired);
+                for (int i = 0; i < expired; i++) {
+                    this.retire(segments[i]);
+                }
+            }
+
+            // 从旧到新删除，中途失败时剩下的段仍然首尾相接
+            for (int i = 0; i < expired; i++) {
+                if (!segments[i].archived) Files.deleteIfExists(segments[i].indexFile.toPath());
+                Files.deleteIfExists(segments[i].file.toPath());
+            }
+            return segments[expired].baseSequence - segments[0].baseSequence;
+        }
+    }
+
+    /**
+     * 把较旧的只读段压缩为归档文件，归档文件写成并落盘后替换原来的段，再删除段文件和索引文件
+     * @param archiveBefore 段文件的最后修改时间早于该时间（毫秒）时归档，归档文件保留原来的修改时间
+     * @return 归档的段数
+     * @throws IOException 日志已关闭、读取段或写入归档文件失败时抛出
+     */
+    public int archive(long archiveBefore) throws IOException {
+        synchronized (this.compactLock) {
+            this.closeRetired();
+            Segment[] segments = this.segments;
+            int archived = 0;
+            for (int i = 0; i < segments.length - 1; i++) {
+                Segment segment = segments[i];
+                long modified = lastModified(segment);
+                if (segment.archived || modified >= archiveBefore) continue;
+                // 校验失败、记录数不足的段不归档，读取时仍然报错
+                int expectedCount = (int) (segments[i + 1].baseSequence - segment.baseSequence);
+                segment.ensureLoaded(expectedCount);
+                if (segment.count != expectedCount) continue;
+
+                File file = archiveFile(this.dir, segment.baseSequence);
+                writeArchive(segment, file, modified);
+                Segment replacement = new Segment(file, segment.baseSequence);
+                try {
+                    replacement.ensureLoaded(expectedCount);
+                } catch (IOException e) {
+                    Files.deleteIfExists(file.toPath());
+                    throw e;
+                }
+
+                synchronized (this) {
+                    if (this.closed) {
+                        // 段文件和归档文件同时存在时，下次打开日志时使用归档文件
+                        replacement.close();
+                        throw new IOException("日志已关闭");
+                    }
+                    Segment[] current = this.segments.clone();
+                    current[i] = replacement;
+                    this.segments = current;
+                    this.retire(segment);
+                }
+                Files.deleteIfExists(segment.indexFile.toPath());
+                Files.deleteIfExists(segment.file.toPath());
+                archived++;
+            }
+            return archived;
+        }
+    }
+
+    /**
+     * 不打开日志，根据目录下的文件名和修改时间判断{@link #deleteExpired(long, long)}或{@link #archive(long)}是否可能有需要处理的段，
+     * 记录数按段的起始序号估算，可能把需要处理的日志判断为不需要，下次检查时再处理
+     * @param dir 日志目录
+     * @param expireBefore 见{@link #deleteExpired(long, long)}
+     * @param maxRecords 见{@link #deleteExpired(long, long)}
+     * @param archiveBefore 见{@link #archive(long)}，{@link Long#MIN_VALUE}表示不归档
+     * @return 是否需要打开日志处理
+     */
+    public static boolean needsCompaction(File dir, long expireBefore, long maxRecords, long archiveBefore) {
+        File[] files = dir.listFiles((parent, name) ->
+                parseBaseSequence(name, SEGMENT_SUFFIX) >= 0 || parseBaseSequence(name, ARCHIVE_SUFFIX) >= 0);
+        if (files == null || files.length < 2) return false;
+        // 文件名中的序号位数相同，按文件名排序即按序号排序，最后一个为当前写入的段
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (int i = 0; i < files.length - 1; i++) {
+            long modified = files[i].lastModified();
+            if (modified < expireBefore) return true;
+            if (files[i].getName().endsWith(SEGMENT_SUFFIX) && modified < archiveBefore) return true;
+        }
+        return maxRecords > 0 && baseSequenceOf(files[1]) <= baseSequenceOf(files[files.length - 1]) - maxRecords;
+    }
+
+    private static long baseSequenceOf(File file) {
+        String name = file.getName();
+        return parseBaseSequence(name, name.endsWith(ARCHIVE_SUFFIX) ? ARCHIVE_SUFFIX : SEGMENT_SUFFIX);
+    }
+
+    // 段文件的最后修改时间，文件不存在时为0
+    private static long lastModified(Segment segment) {
+        return segment.file.lastModified();
+    }
+
+    private void retire(Segment segment) {
+        segment.retiredAt = System.currentTimeMillis();
+        this.retired.add(segment);
+    }
+
+    // 关闭移除时间超过RETIRE_DELAY_MILLIS的段
+    private synchronized void closeRetired() {
+        long now = System.currentTimeMillis();
+        this.retired.removeIf(segment -> {
+            if (now - segment.retiredAt < RETIRE_DELAY_MILLIS) return false;
+            try {
+                segment.close();
+            } catch (IOException ignore) {
+            }
+            return true;
+        });
+    }
+
+    /**
+     * 把只读的段压缩为归档文件，先写入临时文件并落盘，再重命名
+     */
+    private static void writeArchive(Segment segment, File file, long modified) throws IOException {
+        int count = segment.count;
+        int[] offsets = new int[count];
+        ByteBuffer indexBuffer = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+        while (indexBuffer.hasRemaining()) {
+            if (segment.indexChannel.read(indexBuffer, indexBuffer.position()) < 0) throw new EOFException("索引不完整：" + segment.file);
+        }
+        indexBuffer.flip();
+        indexBuffer.asIntBuffer().get(offsets);
+
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        ArrayList<long[]> blocks = new ArrayList<>();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (FileOutputStream fileStream = new FileOutputStream(tempFile);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileStream, READ_BLOCK_SIZE))) {
+            byte[] raw = new byte[ARCHIVE_BLOCK_SIZE];
+            byte[] compressed = new byte[ARCHIVE_BLOCK_SIZE];
+            long position = 0;
+            int from = 0;
+            while (from < count) {
+                // 一块中的记录压缩前不超过ARCHIVE_BLOCK_SIZE字节，至少一条记录
+                int to = from + 1;
+                while (to < count && (to + 1 < count ? offsets[to + 1] : segment.size) - offsets[from] <= ARCHIVE_BLOCK_SIZE) {
+                    to++;
+                }
+                long end = to < count ? offsets[to] : segment.size;
+                int length = (int) (end - offsets[from]);
+                if (raw.length < length) raw = new byte[length];
+                ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (segment.channel.read(buffer, offsets[from] + buffer.position()) < 0) throw new EOFException("记录不完整：" + segment.file);
+                }
+                verifyRecords(raw, length, to - from, segment.file);
+
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                long compressedLength = 0;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(compressed);
+                    output.write(compressed, 0, n);
+                    compressedLength += n;
+                }
+                blocks.add(new long[]{from, position, compressedLength, length});
+                position += compressedLength;
+                from = to;
+            }
+
+            for (final long[] block : blocks) {
+                output.writeInt((int) block[0]);
+                output.writeLong(block[1]);
+                output.writeInt((int) block[2]);
+                output.writeInt((int) block[3]);
+            }
+            output.writeInt(ARCHIVE_MAGIC);
+            output.writeInt(count);
+            output.writeInt(blocks.size());
+            output.writeLong(position);
+            output.flush();
+            fileStream.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        if (!tempFile.setLastModified(modified)) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw new IOException("设置修改时间失败：" + tempFile);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // 校验一块中的记录，不把损坏的记录写入归档文件
+    private static void verifyRecords(byte[] raw, int length, int count, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+        CRC32 crc = new CRC32();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + HEADER_SIZE > length) throw new IOException("记录不完整：" + file);
+            int recordLength = buffer.getInt(position);
+            int checksum = buffer.getInt(position + 4);
+            if (recordLength <= 0 || position + HEADER_SIZE + recordLength > length) throw new IOException("记录长度不合法：" + file);
+            crc.reset();
+            crc.update(raw, position + HEADER_SIZE, recordLength);
+            if ((int) crc.getValue() != checksum) throw new IOException("记录校验失败：" + file);
+            position += HEADER_SIZE + recordLength;
+        }
+        if (position != length) throw new IOException("记录长度不合法：" + file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) return;
+        this.closed = true;
+        for (final Segment segment : this.segments) {
+            segment.close();
+        }
+        for (final Segment segment : this.retired) {
+            segment.close();
+        }
+        this.retired.clear();
+    }
+
+    private static class Segment {
+        private final File file;
+        private final File indexFile;
+        private final long baseSequence;
+        // 是否为归档文件，归档的段没有索引文件，通过archive读取
+        private final boolean archived;
+        private volatile Archive archive;
+        // 从段列表中移除的时间
+        private long retiredAt;
+        private FileChannel channel;
+        private FileChannel indexChannel;
+        // 已完整写入的字节数
+        private volatile long size;
+        // 已完整写入的记录数
+        private volatile int count;
+        // 索引是否已经校验，只读的段在第一次读取时才校验，之前为false
+        private volatile boolean loaded;
+        // 只读的段的内存映射，第一次以映射模式读取时建立，关闭时释放
+        private volatile MappedByteBuffer mapping;
+
+        private Segment(File file, long baseSequence) {
+            this.file = file;
+            this.indexFile = indexFile(file);
+            this.baseSequence = baseSequence;
+            this.archived = file.getName().endsWith(ARCHIVE_SUFFIX);
+            this.archive = null;
+            this.retiredAt = 0;
+            this.channel = null;
+            this.indexChannel = null;
+            this.size = 0;
+            this.count = 0;
+            this.loaded = false;
+            this.mapping = null;
+        }
+
+        private void openForWrite() throws IOException {
+            this.channel = FileChannel.open(this.file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(this.indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private synchronized void ensureLoaded(int expectedCount) throws IOException {
+            if (this.loaded) return;
+            if (this.archived) {
+                Archive archive = Archive.open(this.file);
+                if (expectedCount >= 0 && archive.count != expectedCount) {
+                    archive.close();
+                    throw new IOException("归档的记录数不一致：" + this.file);
+                }
+                this.archive = archive;
+                this.count = archive.count;
+                this.size = archive.size;
+                this.loaded = true;
+                return;
+            }
+            if (this.channel == null) this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+            // 索引损坏时需要重建，因此以读写方式打开
+            if (this.indexChannel == null) this.indexChannel = FileChannel.open(this.indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.load(expectedCount);
+            this.loaded = true;
+        }
+
+        /**
+         * 校验索引文件，补全索引之后的记录的索引项并截断多余的索引项。
+         * 索引项必须从0开始严格递增且相邻两项之差是合法的记录长度，从最后一个这样的索引项开始向前找到一条能通过校验的记录，
+         * 之后的记录从段文件中顺序校验；找不到时从段的开头重建索引。完成后size和count为最后一条完整记录之后的位置和记录数
+         * @param expectedCount 段中应有的记录数，当前写入的段为-1
+         */
+        private void load(int expectedCount) throws IOException {
+            long logSize = this.channel.size();
+            long entries = this.indexChannel.size() / INDEX_ENTRY_SIZE;
+            if (expectedCount >= 0) entries = Math.min(entries, expectedCount);
+            int[] offsets = new int[(int) Math.min(entries, Integer.MAX_VALUE)];
+            ByteBuffer buffer = ByteBuffer.allocate(offsets.length * INDEX_ENTRY_SIZE);
+            while (buffer.hasRemaining()) {
+                if (this.indexChannel.read(buffer, buffer.position()) < 0) break;
+            }
+            buffer.flip();
+            buffer.asIntBuffer().get(offsets, 0, buffer.remaining() / INDEX_ENTRY_SIZE);
+
+            int valid = 0;
+            long last = -1;
+            for (final int offset : offsets) {
+                long gap = offset - last;
+                if (last < 0 ? offset != 0 : gap <= HEADER_SIZE || gap > HEADER_SIZE + MAX_RECORD_SIZE) break;
+                if (offset >= logSize) break;
+                last = offset;
+                valid++;
+            }
+
+            BlockReader reader = new BlockReader(this.channel, logSize);
+            long position = 0;
+            int count = 0;
+            for (int i = valid - 1; i >= Math.max(0, valid - MAX_INDEX_PROBES); i--) {
+                long next = reader.verify(offsets[i]);
+                if (next > 0) {
+                    position = next;
+                    count = i + 1;
+                    break;
+                }
+            }
+
+            int indexed = count;
+            ByteBuffer missing = ByteBuffer.allocate(1024 * INDEX_ENTRY_SIZE);
+            long next;
+            while ((next = reader.verify(position)) > 0) {
+                if (!missing.hasRemaining()) {
+                    indexed += this.writeIndex(missing, indexed);
+                }
+                missing.putInt((int) position);
+                position = next;
+                count++;
+            }
+            this.writeIndex(missing, indexed);
+            if (this.indexChannel.size() > (long) count * INDEX_ENTRY_SIZE)
+                this.indexChannel.truncate((long) count * INDEX_ENTRY_SIZE);
+
+            this.size = position;
+            this.count = count;
+        }
+
+        // 将缓冲区中的索引项写到第ordinal个索引项的位置，返回写入的索引项数量
+        private int writeIndex(ByteBuffer entries, int ordinal) throws IOException {
+            entries.flip();
+            int written = entries.remaining() / INDEX_ENTRY_SIZE;
+            long position = (long) ordinal * INDEX_ENTRY_SIZE;
+            while (entries.hasRemaining()) {
+                this.indexChannel.write(entries, position + entries.position());
+            }
+            entries.clear();
+            return written;
+        }
+
+        // 第ordinal条记录在段文件中的位置
+        private long positionOf(int ordinal) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            long position = (long) ordinal * INDEX_ENTRY_SIZE;
+            while (buffer.hasRemaining()) {
+                if (this.indexChannel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("索引不完整：" + ordinal);
+            }
+            return buffer.getInt(0);
+        }
+
+        /**
+         * 读取段内从第offset条开始的count条记录
+         */
+        private void read(int offset, int count, List<byte[]> records) throws IOException {
+            long position = this.positionOf(offset);
+            BlockReader reader = new BlockReader(this.channel, this.size);
+            for (int i = 0; i < count; i++) {
+                byte[] record = reader.read(position);
+                records.add(record);
+                position += HEADER_SIZE + record.length;
+            }
+        }
+
+        /**
+         * 通过内存映射读取段内从第offset条开始的count条记录，只能用于只读的段
+         */
+        private void readMapped(int offset, int count, List<byte[]> records) throws IOException {
+            // 每次读取使用独立的视图，多个线程可以同时读取同一个映射
+            MappedByteBuffer mapping = this.mapping;
+            if (mapping == null) mapping = this.map();
+            ByteBuffer view = mapping.duplicate();
+            long limit = this.size;
+            long position = this.positionOf(offset);
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < count; i++) {
+                if (position + HEADER_SIZE > limit) throw new EOFException("记录不完整：" + position);
+                int length = view.getInt((int) position);
+                int checksum = view.getInt((int) position + 4);
+                if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > limit)
+                    throw new IOException("记录长度不合法：" + position);
+
+                byte[] record = new byte[length];
+                view.get((int) position + HEADER_SIZE, record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) throw new IOException("记录校验失败：" + position);
+                records.add(record);
+                position += HEADER_SIZE + length;
+            }
+        }
+
+        private synchronized MappedByteBuffer map() throws IOException {
+            if (this.mapping == null) {
+                if (this.channel == null || !this.channel.isOpen()) throw new IOException("日志已关闭");
+                this.mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            }
+            return this.mapping;
+        }
+
+        private synchronized void close() throws IOException {
+            this.mapping = null;
+            if (this.archive != null) this.archive.close();
+            if (this.channel != null) this.channel.close();
+            if (this.indexChannel != null) this.indexChannel.close();
+        }
+    }
+
+    /**
+     * 只读的归档文件，打开时读入块索引，读取时只解压包含所需记录的块
+     */
+    private static class Archive implements Closeable {
+        private final FileChannel channel;
+        // 归档文件的字节数
+        private final long size;
+        private final int count;
+        // 每块第一条记录的序号（相对于段）、压缩数据的位置、压缩后和压缩前的长度
+        private final int[] firstOrdinals;
+        private final long[] offsets;
+        private final int[] compressedLengths;
+        private final int[] rawLengths;
+
+        private Archive(FileChannel channel, long size, int count, int[] firstOrdinals, long[] offsets,
+                        int[] compressedLengths, int[] rawLengths) {
+            this.channel = channel;
+            this.size = size;
+            this.count = count;
+            this.firstOrdinals = firstOrdinals;
+            this.offsets = offsets;
+            this.compressedLengths = compressedLengths;
+            this.rawLengths = rawLengths;
+        }
+
+        private static Archive open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < ARCHIVE_TRAILER_SIZE) throw new IOException("归档文件格式错误：" + file);
+                ByteBuffer trailer = readFully(channel, size - ARCHIVE_TRAILER_SIZE, ARCHIVE_TRAILER_SIZE);
+                int magic = trailer.getInt();
+                int count = trailer.getInt();
+                int blocks = trailer.getInt();
+                long indexOffset = trailer.getLong();
+                if (magic != ARCHIVE_MAGIC || count < 0 || blocks < 0 || blocks > count || (count > 0) != (blocks > 0)
+                        || indexOffset < 0 || indexOffset + (long) blocks * ARCHIVE_ENTRY_SIZE + ARCHIVE_TRAILER_SIZE != size)
+                    throw new IOException("归档文件格式错误：" + file);
+
+                int[] firstOrdinals = new int[blocks];
+                long[] offsets = new long[blocks];
+                int[] compressedLengths = new int[blocks];
+                int[] rawLengths = new int[blocks];
+                ByteBuffer index = readFully(channel, indexOffset, blocks * ARCHIVE_ENTRY_SIZE);
+                for (int i = 0; i < blocks; i++) {
+                    firstOrdinals[i] = index.getInt();
+                    offsets[i] = index.getLong();
+                    compressedLengths[i] = index.getInt();
+                    rawLengths[i] = index.getInt();
+                    if ((i == 0 ? firstOrdinals[i] != 0 : firstOrdinals[i] <= firstOrdinals[i - 1]) || firstOrdinals[i] >= count
+                            || compressedLengths[i] < 0 || offsets[i] < 0 || offsets[i] + compressedLengths[i] > indexOffset
+                            || rawLengths[i] <= HEADER_SIZE || rawLengths[i] > ARCHIVE_BLOCK_SIZE + HEADER_SIZE + MAX_RECORD_SIZE)
+                        throw new IOException("归档文件格式错误：" + file);
+                }
+                return new Archive(channel, size, count, firstOrdinals, offsets, compressedLengths, rawLengths);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("文件不完整：" + position);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * 读取从第offset条开始的count条记录
+         */
+        private void read(int offset, int count, List<byte[]> records) throws IOException {
+            if (offset < 0 || offset + count > this.count) throw new EOFException("记录不存在：" + offset);
+            int block = Arrays.binarySearch(this.firstOrdinals, offset);
+            if (block < 0) block = -block - 2;
+            Inflater inflater = new Inflater();
+            try {
+                CRC32 crc = new CRC32();
+                while (count > 0) {
+                    ByteBuffer raw = ByteBuffer.wrap(this.inflate(block, inflater));
+                    int ordinal = this.firstOrdinals[block];
+                    int end = block + 1 < this.firstOrdinals.length ? this.firstOrdinals[block + 1] : this.count;
+                    int position = 0;
+                    for (; ordinal < end && count > 0; ordinal++) {
+                        if (position + HEADER_SIZE > raw.capacity()) throw new IOException("归档记录不完整：" + ordinal);
+                        int length = raw.getInt(position);
+                        int checksum = raw.getInt(position + 4);
+                        if (length <= 0 || position + HEADER_SIZE + length > raw.capacity())
+                            throw new IOException("归档记录长度不合法：" + ordinal);
+                        if (ordinal >= offset) {
+                            byte[] record = new byte[length];
+                            raw.get(position + HEADER_SIZE, record);
+                            crc.reset();
+                            crc.update(record);
+                            if ((int) crc.getValue() != checksum) throw new IOException("归档记录校验失败：" + ordinal);
+                            records.add(record);
+                            count--;
+                        }
+                        position += HEADER_SIZE + length;
+                    }
+                    block++;
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // 读取并解压一块
+        private byte[] inflate(int block, Inflater inflater) throws IOException {
+            ByteBuffer compressed = readFully(this.channel, this.offsets[block], this.compressedLengths[block]);
+            byte[] raw = new byte[this.rawLengths[block]];
+            try {
+                inflater.reset();
+                inflater.setInput(compressed.array(), 0, compressed.limit());
+                int offset = 0;
+                while (offset < raw.length) {
+                    int n = inflater.inflate(raw, offset, raw.length - offset);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("归档数据不完整：" + block);
+                    offset += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("归档数据格式错误：" + block, e);
+            }
+            return raw;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * 按块读取段文件，连续的小记录只需要一次系统调用
+     */
+    private static class BlockReader {
+        private final FileChannel channel;
+        private final long limit;
+        private final ByteBuffer block;
+        private long blockStart;
+        private int blockLength;
+
+        private BlockReader(FileChannel channel, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+            this.block = ByteBuffer.allocate(READ_BLOCK_SIZE);
+            this.blockStart = 0;
+            this.blockLength = 0;
+        }
+
+        // 使[position, position + length)位于块中，length不能超过块的大小，超出文件范围时返回false
+        private boolean load(long position, int length) throws IOException {
+            if (position >= this.blockStart && position + length <= this.blockStart + this.blockLength) return true;
+            if (position + length > this.limit) return false;
+            this.block.clear();
+            this.block.limit((int) Math.min(READ_BLOCK_SIZE, this.limit - position));
+            while (this.block.hasRemaining()) {
+                if (this.channel.read(this.block, position + this.block.position()) < 0) break;
+            }
+            this.blockStart = position;
+            this.blockLength = this.block.position();
+            return length <= this.blockLength;
+        }
+
+        // 读取位于position的记录的长度，记录不完整或长度不合法时返回-1
+        private int length(long position) throws IOException {
+            if (!this.load(position, HEADER_SIZE)) return -1;
+            int length = this.block.getInt((int) (position - this.blockStart));
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > this.limit) return -1;
+            return length;
+        }
+
+        private byte[] read(long position) throws IOException {
+            byte[] record = this.tryRead(position);
+            if (record == null) throw new IOException("记录校验失败：" + position);
+            return record;
+        }
+
+        // 校验位于position的记录，返回下一条记录的位置，记录不完整或校验失败时返回-1
+        private long verify(long position) throws IOException {
+            byte[] record = this.tryRead(position);
+            return record == null ? -1 : position + HEADER_SIZE + record.length;
+        }
+
+        private byte[] tryRead(long position) throws IOException {
+            int length = this.length(position);
+            if (length < 0) return null;
+            int checksum = this.block.getInt((int) (position - this.blockStart) + 4);
+
+            byte[] record = new byte[length];
+            long start = position + HEADER_SIZE;
+            if (length <= READ_BLOCK_SIZE) {
+                if (!this.load(start, length)) return null;
+                System.arraycopy(this.block.array(), (int) (start - this.blockStart), record, 0, length);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    if (this.channel.read(buffer, start + buffer.position()) < 0) return null;
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return (int) crc.getValue() == checksum ? record : null;
+        }
+    }
+}
@@ -48,7 +48,7 @@ public class Utils {
     }
 
     public static void printLog(Socket socket, String msg) {
-        System.out.println(getSocketIP(socket) + "：" + msg + "。");
+        AsyncLogger.log(AsyncLogger.Level.INFO, socket, msg, null);
     }
 
     // 将任意对象进行序列化，返回一个字节序列，序列化失败返回null。
@@ -64,7 +64,13 @@ public class Utils {
 
     // 对字节数组进行反序列化，返回一个指定类型的对象，反序列化失败返回null。
     public static <T> T deSerializeObject(byte[] bytes, Class<T> clazz) {
-        try (ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
+        if (bytes == null) return null;
+        return deSerializeObject(bytes, 0, bytes.length, clazz);
+    }
+
+    // 对字节数组的指定部分进行反序列化，返回一个指定类型的对象，反序列化失败返回null。
+    public static <T> T deSerializeObject(byte[] bytes, int offset, int length, Class<T> clazz) {
+        try (ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes, offset, length);
              ObjectInputStream ois = new ObjectInputStream(inputStream)) {
             Object obj = ois.readObject();
             if (clazz.isInstance(obj))
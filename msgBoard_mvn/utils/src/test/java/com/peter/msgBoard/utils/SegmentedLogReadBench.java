@@ -0,0 +1,121 @@
+package com.peter.msgBoard.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 留言日志整体读取的基准测试，不属于单元测试，不会在构建时运行。
+ * 对每个给定的大小（MB）生成一份留言日志（16MB的段）和一份内容相同、每行一条留言的文本文件，
+ * 然后比较三种方式读出全部留言并解码为字符串的耗时：BufferedReader逐行读取文本文件、文件通道读取日志、内存映射读取日志。
+ * 日志按每页1024条读取，与流式传输留言相同。数据生成后保留在数据目录中，再次运行时直接使用，测量的是页缓存已经预热的情况。
+ * <p>
+ * 运行方式（在msgBoard_mvn目录下）：
+ * <pre>
+ * mvn -q -pl utils test-compile
+ * java -cp utils/target/classes:utils/target/test-classes com.peter.msgBoard.utils.SegmentedLogReadBench
+ * </pre>
+ * 参数为要测试的数据大小（MB），不指定时依次测试1MB、100MB和1GB。
+ * 数据目录默认为临时目录下的segmented-log-bench，可以通过 {@code -Dbench.dir=目录} 指定，1GB的数据需要约2GB的磁盘空间。
+ */
+public class SegmentedLogReadBench {
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final int PAGE_SIZE = 1024;
+    private static final int APPEND_BATCH_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException {
+        File baseDir = new File(System.getProperty("bench.dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "segmented-log-bench"));
+        String[] sizes = args.length > 0 ? args : new String[] {"1", "100", "1024"};
+
+        for (final String size : sizes) {
+            long bytes = Long.parseLong(size) * 1024 * 1024;
+            File logDir = new File(baseDir, "log-" + size);
+            File textFile = new File(baseDir, "text-" + size + ".dat");
+            generate(logDir, textFile, bytes);
+
+            // 数据越小重复次数越多，使每种方式的总耗时都在百毫秒以上
+            int repeats = bytes <= 1024 * 1024 ? 200 : bytes <= 100L * 1024 * 1024 ? 5 : 2;
+            // 第一轮用于预热JIT和页缓存，只输出第二轮的结果
+            for (int round = 0; round < 2; round++) {
+                for (final String mode : new String[] {"bufferedReader", "channel", "mmap"}) {
+                    long start = System.nanoTime(), chars = 0;
+                    for (int i = 0; i < repeats; i++) {
+                        chars += mode.equals("bufferedReader") ? readText(textFile) : readLog(logDir, mode.equals("mmap"));
+                    }
+                    double millis = (System.nanoTime() - start) / 1e6 / repeats;
+                    if (round == 1) {
+                        System.out.printf("%5s MB %-15s %9.2f ms %8.0f MB/s  (chars=%d)%n", size, mode, millis,
+                                bytes / 1048576.0 / (millis / 1000), chars / repeats);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 生成一条留言，格式与服务器保存的留言相同（时间,内容），内容混合中英文，长度不等
+     */
+    private static byte[] message(long i) {
+        String content = (i % 3 == 0 ? "今天天气不错，留言测试第" + i + "条" : "message number " + i + " ") + "x".repeat((int) (i % 80));
+        String time = String.format("2026-10-18 10:%02d:%02d", (i / 60) % 60, i % 60);
+        return (time + "," + content).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void generate(File logDir, File textFile, long bytes) throws IOException {
+        if (logDir.exists() && textFile.exists()) return;
+        if (!logDir.mkdirs()) throw new IOException("无法创建目录：" + logDir);
+
+        try (SegmentedLog log = SegmentedLog.open(logDir, SEGMENT_SIZE);
+             OutputStream text = new BufferedOutputStream(new FileOutputStream(textFile), 1 << 20)) {
+            ArrayList<byte[]> batch = new ArrayList<>();
+            long written = 0;
+            for (long i = 0; written < bytes; i++) {
+                byte[] record = message(i);
+                batch.add(record);
+                // 记录头为8字节
+                written += record.length + 8;
+                text.write(record);
+                text.write('\n');
+                if (batch.size() == APPEND_BATCH_SIZE) {
+                    log.append(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) log.append(batch);
+        }
+    }
+
+    private static long readLog(File logDir, boolean mapped) throws IOException {
+        long chars = 0;
+        try (SegmentedLog log = SegmentedLog.open(logDir, SEGMENT_SIZE, mapped)) {
+            long sequence = log.getFirstSequence(), end = log.getNextSequence();
+            while (sequence < end) {
+                List<byte[]> page = log.read(sequence, PAGE_SIZE);
+                for (final byte[] record : page) {
+                    chars += new String(record, StandardCharsets.UTF_8).length();
+                }
+                sequence += page.size();
+            }
+        }
+        return chars;
+    }
+
+    private static long readText(File textFile) throws IOException {
+        long chars = 0;
+        try (BufferedReader reader = Files.newBufferedReader(textFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chars += line.length();
+            }
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,241 @@
+package com.peter.msgBoard.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SegmentedLog的测试，每个测试使用一个新的临时目录
+ */
+public class SegmentedLogTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("segmented-log").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        deleteRecursively(this.dir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] record(long i) {
+        return ("record #" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendRecords(SegmentedLog log, long from, long to) throws IOException {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            batch.add(record(i));
+            if (batch.size() == 100) {
+                log.append(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) log.append(batch);
+    }
+
+    // 目录下以suffix结尾的文件，按文件名（即段的起始序号）排序
+    private File[] files(String suffix) {
+        File[] files = this.dir.listFiles((dir, name) -> name.endsWith(suffix));
+        assertNotNull(files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(bytes);
+        }
+    }
+
+    private static void assertRecords(SegmentedLog log, long from, long to) throws IOException {
+        List<byte[]> records = log.read(from, (int) (to - from));
+        assertEquals(to - from, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("record #" + (from + i), new String(records.get(i), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 崩溃时最后一条记录只写了一半（记录头完整、内容不完整），并且索引中已经有它的索引项：
+     * 重新打开时截断这条记录和多余的索引项，之后追加的记录接在最后一条完整记录之后
+     */
+    public void testTornTailIsTruncated() throws IOException {
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 20)) {
+            appendRecords(log, 0, 1000);
+        }
+        File segment = this.files(SegmentedLog.SEGMENT_SUFFIX)[0];
+        File index = this.files(SegmentedLog.INDEX_SUFFIX)[0];
+        long segmentSize = segment.length();
+        // 记录头声明100字节，实际只写了10字节
+        appendBytes(segment, new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 'r', 'e', 'c', 'o', 'r', 'd', ' ', '#', '1', '0'});
+        appendBytes(index, new byte[] {(byte) (segmentSize >>> 24), (byte) (segmentSize >>> 16), (byte) (segmentSize >>> 8), (byte) segmentSize});
+
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 20)) {
+            assertEquals(1000, log.getNextSequence());
+            assertEquals(segmentSize, segment.length());
+            assertRecords(log, 0, 1000);
+            appendRecords(log, 1000, 1100);
+        }
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 20)) {
+            assertEquals(1100, log.getNextSequence());
+            assertRecords(log, 0, 1100);
+        }
+    }
+
+    /**
+     * 最后一条记录的长度完整但内容损坏（校验和不一致）时同样被截断
+     */
+    public void testCorruptTailRecordIsTruncated() throws IOException {
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 20)) {
+            appendRecords(log, 0, 1000);
+        }
+        File segment = this.files(SegmentedLog.SEGMENT_SUFFIX)[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write('x');
+        }
+
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 20)) {
+            assertEquals(999, log.getNextSequence());
+            assertRecords(log, 0, 999);
+            appendRecords(log, 999, 1200);
+            assertRecords(log, 0, 1200);
+        }
+    }
+
+    /**
+     * 索引文件缺失时从段文件重建，只读的段在第一次读取时重建，当前写入的段在打开时重建
+     */
+    public void testMissingIndexIsRebuilt() throws IOException {
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 16 * 1024)) {
+            appendRecords(log, 0, 5000);
+        }
+        File[] indexes = this.files(SegmentedLog.INDEX_SUFFIX);
+        assertTrue(indexes.length > 3);
+        for (final File index : indexes) {
+            assertTrue(index.delete());
+        }
+
+        for (final boolean mapped : new boolean[] {false, true}) {
+            try (SegmentedLog log = SegmentedLog.open(this.dir, 16 * 1024, mapped)) {
+                assertEquals(5000, log.getNextSequence());
+                assertRecords(log, 0, 5000);
+                assertRecords(log, 2500, 2600);
+            }
+        }
+        assertEquals(indexes.length, this.files(SegmentedLog.INDEX_SUFFIX).length);
+    }
+
+    /**
+     * 索引文件损坏时从段文件重建：只读的段的索引被覆盖为无效的内容，当前写入的段的索引被截断到一半并在末尾多出无效的索引项
+     */
+    public void testCorruptIndexIsRebuilt() throws IOException {
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 16 * 1024)) {
+            appendRecords(log, 0, 5000);
+        }
+        File[] indexes = this.files(SegmentedLog.INDEX_SUFFIX);
+        assertTrue(indexes.length > 3);
+        // 第一个段的索引：所有索引项都指向同一个位置
+        try (RandomAccessFile raf = new RandomAccessFile(indexes[0], "rw")) {
+            for (long i = 0; i < raf.length(); i++) {
+                raf.write(7);
+            }
+        }
+        // 第二个段的索引：前半部分正确，后半部分为递增但不指向记录开头的位置
+        try (RandomAccessFile raf = new RandomAccessFile(indexes[1], "rw")) {
+            long entries = raf.length() / 4;
+            raf.seek(entries / 2 * 4);
+            for (long i = entries / 2; i < entries; i++) {
+                raf.writeInt((int) (i * 20 + 3));
+            }
+        }
+        // 当前写入的段的索引：截断到一半，再追加无效的索引项
+        File activeIndex = indexes[indexes.length - 1];
+        try (RandomAccessFile raf = new RandomAccessFile(activeIndex, "rw")) {
+            raf.setLength(raf.length() / 8 * 4);
+            raf.seek(raf.length());
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.writeInt(-1);
+        }
+
+        for (final boolean mapped : new boolean[] {false, true}) {
+            try (SegmentedLog log = SegmentedLog.open(this.dir, 16 * 1024, mapped)) {
+                assertEquals(5000, log.getNextSequence());
+                assertRecords(log, 0, 5000);
+                assertRecords(log, 123, 456);
+            }
+        }
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 16 * 1024)) {
+            appendRecords(log, 5000, 6000);
+            assertRecords(log, 0, 6000);
+        }
+    }
+
+    /**
+     * 重新打开日志后一边追加一边读取，读取不能再次校验当前写入的段，所有追加的记录在再次打开后都存在。
+     * 第一次读取与追加并发时才会出错，因此重复打开几次，每次在追加开始后才第一次读取
+     */
+    public void testReopenThenAppendWhileReading() throws Exception {
+        long next = 300000;
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 30)) {
+            appendRecords(log, 0, next);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 30)) {
+                assertEquals(next, log.getNextSequence());
+                long from = next;
+                AtomicBoolean started = new AtomicBoolean(false);
+                AtomicReference<Throwable> error = new AtomicReference<>();
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (long i = from; i < from + 4000; i++) {
+                            log.append(record(i));
+                            started.set(true);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                });
+                writer.start();
+                while (!started.get()) Thread.onSpinWait();
+                while (writer.isAlive()) {
+                    assertRecords(log, 0, 1);
+                    long last = log.getNextSequence();
+                    assertRecords(log, last - 1, last);
+                }
+                writer.join();
+                if (error.get() != null) throw new AssertionError("追加失败", error.get());
+                next = from + 4000;
+            }
+        }
+
+        try (SegmentedLog log = SegmentedLog.open(this.dir, 1 << 30)) {
+            assertEquals(next, log.getNextSequence());
+            assertRecords(log, 0, next);
+        }
+    }
+}